@@ -1,16 +1,59 @@
 package client;
 
+import protocol.Compression;
+import protocol.Protocol;
+import protocol.RequestHeader;
+
 import java.io.*;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Client {
     private final String ADDRESS = "127.0.0.1";
     private final int PORT = 23456;
+    /**
+     * Files larger than this are uploaded in parts of {@link #PART_SIZE} bytes, as resumable uploads or, with
+     * parallel connections, as multipart uploads.
+     */
+    private static final long PART_THRESHOLD = 64L * 1024 * 1024;
+    private static final int PART_SIZE = 8 * 1024 * 1024;
     private String lastRequestType = "";
+    private boolean legacyProtocol;
+    private boolean ackOnReceipt;
+    private boolean compression = true;
+    private int parallel = 1;
+    private boolean sessionOpen = true;
+    private final Scanner scanner = new Scanner(System.in);
+    private final byte[] buffer = new byte[64 * 1024];
+    private SocketChannel channel;
+    private DataInputStream responses;
+    private Path download;
+    private byte lookupMode;
+    private String lookupName;
+    private long lookupId;
+    private byte batchOpcode;
+    private List<String> batchNames = List.of();
 
     /**
      * Creates the user data directory in the specified path if this is not already present.
@@ -31,24 +74,16 @@ public class Client {
      * The file name provided by the user must match with the name of the actual file that user intends to store.
      *
      * @param fileName the name of the file that the user wants to save on server
-     * @return the byte of array of the file content
+     * @return the path of the file, whose content is streamed to the server
      * @throws FileNotFoundException when the file is not found in user data directory
      */
-    private byte[] getFileContent(String fileName) throws FileNotFoundException {
+    private Path getFileContent(String fileName) throws FileNotFoundException {
 
         File userFile = new File(System.getProperty("user.dir") + "//src//client//data//"
                 + fileName);
-        byte[] fileContent;
 
         if (userFile.exists() && !userFile.isDirectory()) {
-            try {
-                fileContent = Files.readAllBytes(userFile.toPath());
-                return fileContent;
-            } catch (IOException e) {
-                System.out.println("Failed finding file to be saved on server");
-                e.printStackTrace();
-                throw new FileNotFoundException();
-            }
+            return userFile.toPath();
         } else {
             throw new FileNotFoundException();
         }
@@ -56,27 +91,610 @@ public class Client {
 
     /**
      * Saves a download file from the server in user data directory.
+     * The content is streamed to the partial download file of the request as it arrives, which is renamed once
+     * the user has named it. A range sent to resume a download is appended to the partial download, and an
+     * interrupted download is kept so that getting the same file again resumes it. With parallel connections a
+     * large file is requested as its first range, and the rest of it is downloaded as ranges on the other
+     * connections, written at their offsets.
+     * The bytes are moved from the socket to the file by {@link FileChannel#transferFrom}, without copies
+     * through the Java heap, unless the server sent them compressed and they are decompressed on the way.
      *
      * @param input the input stream to read bytes from server
+     * @param range true if the server sent the rest of a partial download
      * @throws IOException when the communication with the server gets an error
      */
-    private void saveFile(DataInputStream input)  throws IOException {
+    private void saveFile(DataInputStream input, boolean range)  throws IOException {
         String filePath = System.getProperty("user.dir")
                 + "//src//client//data//";
 
-        int size = input.readInt();
-        byte[] fileContent = new byte[size];
-        input.readFully(fileContent, 0, fileContent.length);
+        byte encoding = !legacyProtocol && compression && !range ? input.readByte() : Protocol.ENCODING_IDENTITY;
+        long wholeLength = range ? input.readLong() : 0;
+        long size = legacyProtocol ? input.readInt() : input.readLong();
+        boolean complete = false;
+
+        try {
+            if (encoding == Protocol.ENCODING_DEFLATE) {
+                try (Compression.InflatingStream inflated = new Compression.InflatingStream(input, size);
+                     OutputStream fileOutput = Files.newOutputStream(download)) {
+                    inflated.transferTo(fileOutput);
+                }
+            } else {
+                try (FileChannel fileOutput = FileChannel.open(download, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE)) {
+                    long position = range ? fileOutput.size() : 0;
+                    fileOutput.truncate(position);
+                    receive(fileOutput, channel, position, size);
+                    if (range && parallel > 1 && position + size < wholeLength) {
+                        downloadParallel(fileOutput, position + size, wholeLength);
+                    }
+                }
+            }
+            complete = true;
+        } finally {
+            if (!complete) {
+                System.out.println("The download was interrupted, get the file again to resume it.");
+            }
+        }
 
         System.out.println("The file was downloaded! Specify a name for it: ");
-        Scanner scanner = new Scanner(System.in);
         String fileName = scanner.nextLine();
 
         filePath += fileName;
-        Files.write(Paths.get(filePath), fileContent);
+        Files.move(download, Paths.get(filePath), StandardCopyOption.REPLACE_EXISTING);
         System.out.println("File saved on the hard drive!");
     }
 
+    /**
+     * Downloads the rest of a file as ranges requested on parallel connections, written at their offsets.
+     * If a range fails the download is cut back to the bytes received in order, so that it can be resumed.
+     *
+     * @param fileOutput the partial download
+     * @param from the offset of the first byte not downloaded yet
+     * @param wholeLength the length of the file
+     * @throws IOException when a range cannot be downloaded
+     */
+    private void downloadParallel(FileChannel fileOutput, long from, long wholeLength) throws IOException {
+        AtomicLong next = new AtomicLong(from);
+        try {
+            // bytes are only transferred to positions within the file, so it is extended to its length first
+            fileOutput.write(ByteBuffer.allocate(1), wholeLength - 1);
+            runParallel((partChannel, input, output) -> {
+                long offset;
+                while ((offset = next.getAndAdd(PART_SIZE)) < wholeLength) {
+                    long partLength = Math.min(PART_SIZE, wholeLength - offset);
+                    RequestHeader.write(output, Protocol.GET, lookupMode, Protocol.RANGE, lookupName, lookupId,
+                            Protocol.RANGE_LENGTH);
+                    output.writeLong(offset);
+                    output.writeLong(partLength);
+                    output.flush();
+
+                    int status = input.readInt();
+                    if (status != 206) {
+                        throw new IOException("The server answered " + status + " to the range at " + offset);
+                    }
+                    input.readLong();
+                    receive(fileOutput, partChannel, offset, input.readLong());
+                }
+            });
+        } catch (IOException e) {
+            fileOutput.truncate(from);
+            throw e;
+        }
+    }
+
+    /**
+     * Moves bytes from the socket to a file by {@link FileChannel#transferFrom}.
+     *
+     * @param fileOutput the file to write to
+     * @param from the channel to receive the bytes from
+     * @param position the position in the file of the first byte received
+     * @param size the number of bytes to receive
+     * @throws IOException when the connection ends early or the file cannot be written
+     */
+    private static void receive(FileChannel fileOutput, SocketChannel from, long position, long size)
+            throws IOException {
+        long end = position + size;
+        while (position < end) {
+            long received = fileOutput.transferFrom(from, position, end - position);
+            if (received == 0) {
+                throw new EOFException();
+            }
+            position += received;
+        }
+    }
+
+    /**
+     * The work done on each connection of a parallel transfer.
+     */
+    private interface PartTransfer {
+        void run(SocketChannel partChannel, DataInputStream input, DataOutputStream output) throws IOException;
+    }
+
+    /**
+     * Runs a transfer on as many connections as the parallel option asks for, each opened for the transfer and
+     * taking parts from a counter shared by the connections until none is left, and waits for all of them.
+     *
+     * @param transfer the work done on each connection
+     * @throws IOException the first error met by one of the connections
+     */
+    private void runParallel(PartTransfer transfer) throws IOException {
+        ExecutorService connections = Executors.newFixedThreadPool(parallel);
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (int i = 0; i < parallel; i++) {
+                results.add(connections.submit(() -> {
+                    try (SocketChannel partChannel = SocketChannel.open(new InetSocketAddress(ADDRESS, PORT));
+                         DataInputStream input = new DataInputStream(partChannel.socket().getInputStream());
+                         DataOutputStream output = new DataOutputStream(
+                                 new BufferedOutputStream(partChannel.socket().getOutputStream()))) {
+                        partChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        transfer.run(partChannel, input, output);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            connections.shutdownNow();
+        }
+    }
+
+    /**
+     * @param key the name or the id of the file to download
+     * @return the partial download file of the file, named after it so that a later download of the same file
+     *         finds it
+     */
+    private Path partialDownload(String key) {
+        String fileName = ".download-" + HexFormat.of().formatHex(key.getBytes(StandardCharsets.UTF_8)) + ".part";
+        return Paths.get(System.getProperty("user.dir"), "src", "client", "data", fileName);
+    }
+
+    /**
+     * Streams the content of a file to the server through the transfer buffer.
+     * Legacy requests have to go through the serialization stream, binary requests hand the file to the kernel
+     * with {@link FileChannel#transferTo} once the request header has been flushed.
+     *
+     * @param output the stream to send the content to
+     * @param content the file to send
+     * @param offset the position of the first byte to send, always 0 for legacy requests
+     * @param size the number of bytes announced for the file
+     * @throws IOException when an error occurs while reading the file or sending it
+     */
+    private void copyFile(OutputStream output, Path content, long offset, long size) throws IOException {
+        if (!legacyProtocol) {
+            output.flush();
+            try (FileChannel fileInput = FileChannel.open(content, StandardOpenOption.READ)) {
+                send(fileInput, channel, offset, size);
+            }
+            return;
+        }
+
+        try (InputStream fileInput = Files.newInputStream(content)) {
+            long remaining = size;
+            while (remaining > 0) {
+                int read = fileInput.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new EOFException("File changed while being sent");
+                }
+                output.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+    }
+
+    /**
+     * Hands a region of a file to the kernel with {@link FileChannel#transferTo}.
+     *
+     * @param fileInput the file to send
+     * @param to the channel to send the region to
+     * @param offset the position of the first byte to send
+     * @param size the number of bytes to send
+     * @throws IOException when an error occurs while reading the file or sending it
+     */
+    private static void send(FileChannel fileInput, SocketChannel to, long offset, long size) throws IOException {
+        long position = offset;
+        long end = offset + size;
+        while (position < end) {
+            long sent = fileInput.transferTo(position, end - position, to);
+            if (sent == 0 && position >= fileInput.size()) {
+                throw new EOFException("File changed while being sent");
+            }
+            position += sent;
+        }
+    }
+
+    /**
+     * Writes a request to the server in the protocol selected for this client.
+     * Binary frames are used by default, legacy servers receive the request as a serialized tokens list.
+     * Unless compression is turned off, binary uploads that compress well are sent compressed and binary
+     * downloads accept compressed contents.
+     *
+     * @param output the output stream to send the request to the server
+     * @param opcode the request opcode
+     * @param mode the lookup mode of the file
+     * @param name the name of the file, if searched or saved by name
+     * @param id the id of the file, if searched by id
+     * @param content the file whose content is to be saved, null for requests without content
+     * @throws IOException when a communication error occurs
+     */
+    private void writeRequest(DataOutputStream output, byte opcode, byte mode, String name, long id, Path content)
+            throws IOException {
+
+        long size = content == null ? 0 : Files.size(content);
+
+        if (legacyProtocol) {
+            ArrayList<String> commandToken = new ArrayList<>();
+            switch (opcode) {
+                case Protocol.GET:
+                    commandToken.add("GET");
+                    break;
+                case Protocol.PUT:
+                    commandToken.add("PUT");
+                    break;
+                case Protocol.DELETE:
+                    commandToken.add("DELETE");
+                    break;
+                default:
+                    commandToken.add("exit");
+            }
+            if (opcode != Protocol.PUT && mode != Protocol.NONE) {
+                commandToken.add(mode == Protocol.BY_NAME ? "BY_NAME" : "BY_ID");
+            }
+            if (mode == Protocol.BY_NAME) {
+                commandToken.add(name);
+            } else if (mode == Protocol.BY_ID) {
+                commandToken.add(String.valueOf(id));
+            }
+
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Legacy servers cannot store files larger than 2 GB");
+            }
+
+            ObjectOutputStream legacyOutput = new ObjectOutputStream(output);
+            legacyOutput.writeObject(commandToken);
+            if (content != null) {
+                legacyOutput.writeInt((int) size);
+                copyFile(legacyOutput, content, 0, size);
+            }
+            legacyOutput.flush();
+            return;
+        }
+
+        byte flags = opcode == Protocol.PUT && ackOnReceipt ? Protocol.ACK_ON_RECEIPT : 0;
+        Path compressed = null;
+        try {
+            if (opcode == Protocol.PUT && compression && content != null) {
+                compressed = compress(content, size);
+                if (compressed != null) {
+                    flags |= Protocol.COMPRESSED_BODY;
+                    content = compressed;
+                    size = Files.size(compressed);
+                }
+            } else if (opcode == Protocol.GET && compression) {
+                flags |= Protocol.ACCEPT_COMPRESSED;
+            }
+
+            long offset = -1;
+            long rangeLength = Long.MAX_VALUE;
+            if (opcode == Protocol.GET && Files.exists(download)) {
+                offset = Files.size(download);
+                flags = Protocol.RANGE;
+            } else if (opcode == Protocol.GET && parallel > 1) {
+                offset = 0;
+                rangeLength = PART_SIZE;
+                flags = Protocol.RANGE;
+            }
+
+            RequestHeader.write(output, opcode, mode, flags, name, id, offset < 0 ? size : Protocol.RANGE_LENGTH);
+            if (offset >= 0) {
+                output.writeLong(offset);
+                output.writeLong(rangeLength);
+            }
+            if (content != null) {
+                copyFile(output, content, 0, size);
+            }
+            output.flush();
+        } finally {
+            if (compressed != null) {
+                Files.deleteIfExists(compressed);
+            }
+        }
+    }
+
+    /**
+     * Compresses a file to upload into a temporary file, unless it does not compress well enough.
+     *
+     * @param content the file to upload
+     * @param size the size of the file
+     * @return the temporary file holding the compressed file, or null if the file is to be sent as it is
+     * @throws IOException when an error occurs while reading the file or writing the compressed file
+     */
+    private Path compress(Path content, long size) throws IOException {
+        Path compressed = Files.createTempFile(content.getParent(), "upload", ".part");
+        try (InputStream fileInput = Files.newInputStream(content);
+             OutputStream compressedOutput = new BufferedOutputStream(Files.newOutputStream(compressed))) {
+            if (Compression.deflate(fileInput, size, compressedOutput)) {
+                return compressed;
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(compressed);
+            throw e;
+        }
+        Files.deleteIfExists(compressed);
+        return null;
+    }
+
+    /**
+     * Uploads a large file as a resumable upload, sent as it is. The client first asks the server how much of the
+     * file it committed during a previous attempt, then sends the rest of the file in parts, each answered once
+     * the server synced it. The last part is answered with the id of the saved file like a PUT, and is left for
+     * {@link #processResponse} to read. A server refusing resumable uploads, as the nodes of a cluster do, is sent
+     * the file in one PUT instead.
+     *
+     * @param output the output stream to send the requests to the server
+     * @param name the name of the file to be saved on server
+     * @param content the file to upload
+     * @return true if the last part was sent, false if the server refused the upload
+     * @throws IOException when a communication error occurs
+     */
+    private boolean uploadResumable(DataOutputStream output, String name, Path content) throws IOException {
+        long length = Files.size(content);
+
+        RequestHeader.write(output, Protocol.RESUME, Protocol.BY_NAME, name, 0, 8);
+        output.writeLong(length);
+        output.flush();
+        int status = responses.readInt();
+        if (status == 501) {
+            writeRequest(output, Protocol.PUT, Protocol.BY_NAME, name, 0, content);
+            return true;
+        }
+        if (status != 200) {
+            processStatus(status, responses);
+            return false;
+        }
+        long offset = responses.readLong();
+        if (offset > 0) {
+            System.out.println("Resuming the upload after " + offset + " bytes.");
+        }
+
+        while (true) {
+            long partLength = Math.min(PART_SIZE, length - offset);
+            RequestHeader.write(output, Protocol.PUT, Protocol.BY_NAME, Protocol.RESUMABLE, name, 0,
+                    Protocol.RANGE_LENGTH + partLength);
+            output.writeLong(offset);
+            output.writeLong(length);
+            copyFile(output, content, offset, partLength);
+            output.flush();
+            if (offset + partLength == length) {
+                return true;
+            }
+
+            status = responses.readInt();
+            if (status != 202 && status != 409) {
+                processStatus(status, responses);
+                return false;
+            }
+            offset = responses.readLong();
+        }
+    }
+
+    /**
+     * Uploads a large file as a multipart upload, sent as it is. The parts are sent on parallel connections,
+     * then the upload is committed on the connection of the client. The commit is answered with the id of the
+     * saved file like a PUT, and is left for {@link #processResponse} to read. A server refusing multipart
+     * uploads, as the nodes of a cluster do, is sent the file in one PUT instead.
+     *
+     * @param output the output stream to send the commit to the server
+     * @param name the name of the file to be saved on server
+     * @param content the file to upload
+     * @return true if the commit was sent, false if a part could not be sent
+     * @throws IOException when a communication error occurs
+     */
+    private boolean uploadMultipart(DataOutputStream output, String name, Path content) throws IOException {
+        long length = Files.size(content);
+        AtomicLong next = new AtomicLong();
+        AtomicBoolean refused = new AtomicBoolean();
+
+        try (FileChannel fileInput = FileChannel.open(content, StandardOpenOption.READ)) {
+            runParallel((partChannel, input, partOutput) -> {
+                long offset;
+                while (!refused.get() && (offset = next.getAndAdd(PART_SIZE)) < length) {
+                    long partLength = Math.min(PART_SIZE, length - offset);
+                    RequestHeader.write(partOutput, Protocol.PUT, Protocol.BY_NAME, Protocol.MULTIPART, name, 0,
+                            Protocol.RANGE_LENGTH + partLength);
+                    partOutput.writeLong(offset);
+                    partOutput.writeLong(length);
+                    partOutput.flush();
+                    send(fileInput, partChannel, offset, partLength);
+
+                    int status = input.readInt();
+                    if (status == 501) {
+                        refused.set(true);
+                        break;
+                    }
+                    if (status != 202) {
+                        throw new IOException("The server answered " + status + " to the part at " + offset);
+                    }
+                    input.readLong();
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("The upload failed, save the file again to retry.");
+            return false;
+        }
+        if (refused.get()) {
+            writeRequest(output, Protocol.PUT, Protocol.BY_NAME, name, 0, content);
+            return true;
+        }
+
+        RequestHeader.write(output, Protocol.COMMIT, Protocol.BY_NAME, name, 0, 8);
+        output.writeLong(length);
+        output.flush();
+        return true;
+    }
+
+    /**
+     * Asks the user for the name or the id of the file to search on server and sends the request.
+     *
+     * @param output the output stream to send the request to the server
+     * @param input the scanner reading the user's choices
+     * @param opcode the request opcode
+     * @param action the action shown to the user
+     * @return true if the request was sent correctly, false otherwise
+     * @throws IOException when a communication error occurs
+     */
+    private boolean sendLookupRequest(DataOutputStream output, Scanner input, byte opcode, String action)
+            throws IOException {
+
+        System.out.println("Do you want to " + action + " the file by name or by id (1 - name, 2 - id): ");
+        String choiceOrId = input.nextLine();
+
+        if (choiceOrId.equals("1")) {
+            System.out.println("Enter filename: ");
+            String name = input.nextLine();
+            download = partialDownload("name:" + name);
+            lookupMode = Protocol.BY_NAME;
+            lookupName = name;
+            writeRequest(output, opcode, Protocol.BY_NAME, name, 0, null);
+            return true;
+
+        } else if (choiceOrId.equals("2")) {
+            System.out.println("Enter file id: ");
+            try {
+                long id = Long.parseLong(input.nextLine());
+                download = partialDownload("id:" + id);
+                lookupMode = Protocol.BY_ID;
+                lookupId = id;
+                writeRequest(output, opcode, Protocol.BY_ID, null, id, null);
+                return true;
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid id.");
+                return false;
+            }
+
+        } else {
+            System.out.println("Invalid choice.");
+            return false;
+        }
+    }
+
+    /**
+     * Asks the user for an action and the names of several files, and sends them as one batch request.
+     * Files to save are read from the user data directory and saved on server under the same name, compressed
+     * when they compress well, and retrieved files are saved in the user data directory under their name.
+     *
+     * @param output the output stream to send the request to the server
+     * @param input the scanner reading the user's choices
+     * @return true if the request was sent correctly, false otherwise
+     * @throws IOException when a communication error occurs
+     */
+    private boolean sendBatch(DataOutputStream output, Scanner input) throws IOException {
+
+        if (legacyProtocol) {
+            System.out.println("Legacy servers do not accept batches.");
+            return false;
+        }
+
+        System.out.println("Enter the action for the files (1 - get, 2 - save, 3 - delete): ");
+        String choice = input.nextLine();
+        byte opcode;
+        if (choice.equals("1")) {
+            opcode = Protocol.GET;
+        } else if (choice.equals("2")) {
+            opcode = Protocol.PUT;
+        } else if (choice.equals("3")) {
+            opcode = Protocol.DELETE;
+        } else {
+            System.out.println("Invalid choice.");
+            return false;
+        }
+
+        System.out.println("Enter the file names separated by spaces: ");
+        List<String> names = new ArrayList<>(Arrays.asList(input.nextLine().trim().split("\\s+")));
+        names.removeIf(String::isEmpty);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream requests = new DataOutputStream(body);
+        requests.writeInt(names.size());
+        for (String name : names) {
+            byte flags = 0;
+            ByteBuffer content = null;
+            if (opcode == Protocol.PUT) {
+                try {
+                    content = ByteBuffer.wrap(Files.readAllBytes(getFileContent(name)));
+                } catch (FileNotFoundException e) {
+                    System.out.println("The file " + name + " is not found.");
+                    return false;
+                }
+                flags = ackOnReceipt ? Protocol.ACK_ON_RECEIPT : 0;
+                ByteBuffer deflated = compression ? Compression.deflate(content) : null;
+                if (deflated != null) {
+                    content = deflated;
+                    flags |= Protocol.COMPRESSED_BODY;
+                }
+            } else if (opcode == Protocol.GET && compression) {
+                flags = Protocol.ACCEPT_COMPRESSED;
+            }
+
+            RequestHeader.write(requests, opcode, Protocol.BY_NAME, flags, name, 0,
+                    content == null ? 0 : content.remaining());
+            if (content != null) {
+                requests.write(content.array(), content.arrayOffset() + content.position(), content.remaining());
+            }
+            if (body.size() > Protocol.MAX_BATCH_LENGTH) {
+                System.out.println("The files are too large for one batch, save them one by one.");
+                return false;
+            }
+        }
+
+        RequestHeader.write(output, Protocol.BATCH, Protocol.NONE, null, 0, body.size());
+        body.writeTo(output);
+        output.flush();
+        batchOpcode = opcode;
+        batchNames = names;
+        return true;
+    }
+
+    /**
+     * Reads the responses to the requests of a batch, in the order of the requests, and tells the user what
+     * happened to each file. Retrieved files are saved in the user data directory under their name.
+     *
+     * @param input input stream to receive the responses
+     * @throws IOException when a communication error occurs or a retrieved file cannot be saved
+     */
+    private void processBatch(DataInputStream input) throws IOException {
+        int count = input.readInt();
+
+        for (int i = 0; i < count; i++) {
+            String name = i < batchNames.size() ? batchNames.get(i) : "#" + i;
+            int status = input.readInt();
+            if (status != 200) {
+                System.out.println(name + ": the response says " + status + "!");
+            } else if (batchOpcode == Protocol.PUT) {
+                System.out.println(name + ": saved! ID = " + input.readLong());
+            } else if (batchOpcode == Protocol.GET) {
+                byte encoding = compression ? input.readByte() : Protocol.ENCODING_IDENTITY;
+                ByteBuffer content = ByteBuffer.wrap(input.readNBytes((int) input.readLong()));
+                if (encoding == Protocol.ENCODING_DEFLATE) {
+                    content = Compression.inflate(content);
+                }
+                Files.write(Paths.get(System.getProperty("user.dir"), "src", "client", "data", name),
+                        Arrays.copyOfRange(content.array(), content.position(), content.limit()));
+                System.out.println(name + ": downloaded and saved on the hard drive!");
+            } else {
+                System.out.println(name + ": deleted!");
+            }
+        }
+    }
+
     /**
      * Forms a request to be sent to the server.
      * It assembles the request putting together different tokens based on user's decisions.
@@ -85,13 +703,13 @@ public class Client {
      * @return true if the request was sent correctly, false otherwise
      * @throws IOException when a communication error occurs
      */
-    private boolean sendRequest(ObjectOutputStream output) throws IOException {
+    private boolean sendRequest(DataOutputStream output) throws IOException {
 
-        ArrayList<String> commandToken = new ArrayList<>();
-        Scanner input = new Scanner(System.in);
+        Scanner input = scanner;
         String choiceOrId;
 
-        System.out.println("Enter action (1 - get a file, 2 - save a file, 3 - delete a file): ");
+        System.out.println("Enter action (1 - get a file, 2 - save a file, 3 - delete a file, "
+                + "4 - process several files, 5 - show server statistics, 0 - disconnect): ");
 
         choiceOrId = input.nextLine();
 
@@ -99,55 +717,24 @@ public class Client {
 
             case "1":
 
-                choiceOrId = "GET";
-                lastRequestType = choiceOrId;
-                commandToken.add(choiceOrId);
-                System.out.println("Do you want to get the file by name or by id (1 - name, 2 - id): ");
-                choiceOrId = input.nextLine();
-
-                if (choiceOrId.equals("1")) {
-                    choiceOrId = "BY_NAME";
-                    commandToken.add(choiceOrId);
-                    System.out.println("Enter filename: ");
-                    choiceOrId = input.nextLine();
-                    commandToken.add(choiceOrId);
-                    output.writeObject(commandToken);
-                    output.flush();
-                    return true;
-
-                } else if (choiceOrId.equals("2")) {
-                    choiceOrId = "BY_ID";
-                    commandToken.add(choiceOrId);
-                    System.out.println("Enter file id: ");
-                    choiceOrId = input.nextLine();
-                    commandToken.add(choiceOrId);
-                    output.writeObject(commandToken);
-                    output.flush();
-                    return true;
-
-                } else {
-                    System.out.println("Invalid choice.");
-                    return false;
-                }
+                lastRequestType = "GET";
+                return sendLookupRequest(output, input, Protocol.GET, "get");
 
             case "2":
 
-                choiceOrId = "PUT";
-                lastRequestType = choiceOrId;
-                commandToken.add(choiceOrId);
+                lastRequestType = "PUT";
                 System.out.println("Enter filename you want to save on server: ");
                 choiceOrId = input.nextLine();
 
                 try {
-                    byte[] fileContent = getFileContent(choiceOrId);
-                    int size = fileContent.length;
+                    Path fileContent = getFileContent(choiceOrId);
                     System.out.println("Enter filename to be saved on server: ");
                     choiceOrId = input.nextLine();
-                    commandToken.add(choiceOrId);
-                    output.writeObject(commandToken);
-                    output.writeInt(size);
-                    output.write(fileContent);
-                    output.flush();
+                    if (!legacyProtocol && !choiceOrId.isEmpty() && Files.size(fileContent) > PART_THRESHOLD) {
+                        return parallel > 1 ? uploadMultipart(output, choiceOrId, fileContent)
+                                : uploadResumable(output, choiceOrId, fileContent);
+                    }
+                    writeRequest(output, Protocol.PUT, Protocol.BY_NAME, choiceOrId, 0, fileContent);
                     return true;
                 } catch (FileNotFoundException e) {
                     e.printStackTrace();
@@ -156,42 +743,33 @@ public class Client {
 
             case "3":
 
-                choiceOrId = "DELETE";
-                lastRequestType = choiceOrId;
-                commandToken.add(choiceOrId);
-                System.out.println("Do you want to delete the file by name or by id (1 - name, 2 - id): ");
-                choiceOrId = input.nextLine();
+                lastRequestType = "DELETE";
+                return sendLookupRequest(output, input, Protocol.DELETE, "delete");
 
-                if (choiceOrId.equals("1")) {
-                    choiceOrId = "BY_NAME";
-                    commandToken.add(choiceOrId);
-                    System.out.println("Enter filename: ");
-                    choiceOrId = input.nextLine();
-                    commandToken.add(choiceOrId);
-                    output.writeObject(commandToken);
-                    output.flush();
-                    return true;
+            case "4":
 
-                } else if (choiceOrId.equals("2")) {
-                    choiceOrId = "BY_ID";
-                    commandToken.add(choiceOrId);
-                    System.out.println("Enter file id: ");
-                    choiceOrId = input.nextLine();
-                    commandToken.add(choiceOrId);
-                    output.writeObject(commandToken);
-                    output.flush();
-                    return true;
+                lastRequestType = "BATCH";
+                return sendBatch(output, input);
+
+            case "5":
 
-                } else {
-                    System.out.println("Invalid choice");
+                if (legacyProtocol) {
+                    System.out.println("Legacy servers do not report statistics.");
                     return false;
                 }
+                lastRequestType = "STATS";
+                writeRequest(output, Protocol.STATS, Protocol.NONE, null, 0, null);
+                return true;
+
+            case "0":
+
+                sessionOpen = false;
+                return false;
 
             case "exit":
 
-                choiceOrId = "exit";
-                commandToken.add(choiceOrId);
-                output.writeObject(commandToken);
+                sessionOpen = false;
+                writeRequest(output, Protocol.EXIT, Protocol.NONE, null, 0, null);
                 return true;
 
             default:
@@ -209,30 +787,58 @@ public class Client {
      * @throws IOException when a communication error occurs
      */
     private void processResponse(DataInputStream input) throws IOException {
+        processStatus(input.readInt(), input);
+    }
 
-        int response;
-        response = input.readInt();
+    /**
+     * Interprets a response code received by the server and reads the rest of the response.
+     *
+     * @param response the response code
+     * @param input input stream to receive the rest of the response
+     * @throws IOException when a communication error occurs
+     */
+    private void processStatus(int response, DataInputStream input) throws IOException {
 
         switch (response) {
 
             case 200:
 
                 if (lastRequestType.equals("PUT")) {
-                    int id = input.readInt();
+                    long id = legacyProtocol ? input.readInt() : input.readLong();
                     System.out.println("Response says that file is saved! ID = " + id);
 
                 } else if (lastRequestType.equals("GET")) {
                     try {
-                        saveFile(input);
+                        saveFile(input, false);
                     } catch (IOException e) {
                         e.printStackTrace();
                     }
 
                 } else if (lastRequestType.equals("DELETE")) {
                     System.out.println("The response says that this file was deleted successfully!");
+
+                } else if (lastRequestType.equals("BATCH")) {
+                    processBatch(input);
+
+                } else if (lastRequestType.equals("STATS")) {
+                    System.out.print(new String(input.readNBytes((int) input.readLong()), StandardCharsets.UTF_8));
+                }
+                break;
+
+            case 206:
+
+                try {
+                    saveFile(input, true);
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
                 break;
 
+            case 400:
+
+                System.out.println("The response says that the request was not valid!");
+                break;
+
             case 403:
 
                 if (lastRequestType.equals("PUT")) {
@@ -248,25 +854,117 @@ public class Client {
 
                 System.out.println("The response says that this file is not found!");
                 break;
+
+            case 409:
+
+                input.readLong();
+                System.out.println("The response says that the upload is incomplete "
+                        + "or is being sent by another client!");
+                break;
+
+            case 413:
+
+                System.out.println("The response says that the files are too large for one batch!");
+                break;
+
+            case 416:
+
+                Files.deleteIfExists(download);
+                System.out.println("The response says that the file changed since it was partially downloaded, "
+                        + "get it again!");
+                break;
+
+            case 500:
+
+                System.out.println("The response says that the server failed to store the file!");
+                break;
+
+            case 503:
+
+                long retryAfter = legacyProtocol ? input.readInt() : input.readLong();
+                System.out.println("The response says that the server is busy, try again in " + retryAfter
+                        + " seconds!");
+                break;
+
+            case 501:
+
+                System.out.println("The response says that the server does not support this request!");
+                break;
+
+            case 507:
+
+                System.out.println("The response says that the server has no space left for the file!");
+                break;
         }
     }
 
+    /**
+     * Connects to the server and sends the requests chosen by the user over the same connection,
+     * until the user disconnects. Legacy servers only answer one request per connection.
+     * Accepted options: {@code --protocol legacy} to send requests as serialized tokens lists,
+     * for servers that do not accept binary request frames yet, {@code --ack receipt} to have uploads
+     * acknowledged as soon as the server received them instead of once they are safely on disk,
+     * {@code --compression off} to send and receive files as they are instead of compressing them when they
+     * compress well, and {@code --parallel N} to upload and download large files in parts over N connections.
+     * With {@code --load} the client generates load on the server instead of asking the user for requests,
+     * see {@link LoadGenerator#configure(String[])} for its options.
+     *
+     * @param args the command line options
+     */
     public static void main(String[] args) {
         Client client = new Client();
 
+        if (Arrays.asList(args).contains("--load")) {
+            LoadGenerator load = new LoadGenerator(client.ADDRESS, client.PORT);
+            try {
+                load.configure(args);
+                load.run();
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("--protocol")) {
+                client.legacyProtocol = args[++i].equals("legacy");
+            } else if (args[i].equals("--ack")) {
+                client.ackOnReceipt = args[++i].equals("receipt");
+            } else if (args[i].equals("--compression")) {
+                client.compression = !args[++i].equals("off");
+            } else if (args[i].equals("--parallel")) {
+                client.parallel = Integer.parseInt(args[++i]);
+            }
+        }
+
         client.setUpClientStorage();
 
         try (
-                Socket socket = new Socket(client.ADDRESS, client.PORT);
-                DataInputStream input = new DataInputStream(socket.getInputStream());
-                ObjectOutputStream output = new ObjectOutputStream(socket.getOutputStream())
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(client.ADDRESS, client.PORT));
+                // left unbuffered, so that downloaded file contents can be transferred straight from the channel
+                DataInputStream input = new DataInputStream(channel.socket().getInputStream());
+                DataOutputStream output = new DataOutputStream(
+                        new BufferedOutputStream(channel.socket().getOutputStream()))
         ) {
 
-            if (client.sendRequest(output)) {
-                System.out.println("The request was sent.");
-                client.processResponse(input);
-            }
+            // the file of an upload is sent after its flushed header, and must not wait for it to be acknowledged
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            client.channel = channel;
+            client.responses = input;
+
+            do {
+                if (client.sendRequest(output)) {
+                    System.out.println("The request was sent.");
+                    if (client.sessionOpen) {
+                        client.processResponse(input);
+                    }
+                }
+            } while (client.sessionOpen && !client.legacyProtocol);
 
+        } catch (NoSuchElementException e) {
+            System.out.println("Disconnected.");
         } catch (IOException e) {
             e.printStackTrace();
             System.out.println("Failed to send a request to the server or the server is offline.");
@@ -0,0 +1,173 @@
+package client;
+
+import protocol.HashRing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+/**
+ * A client of a cluster of servers, which sends each request straight to a node storing the file, found with
+ * the same {@link HashRing} as the servers.
+ * <p>
+ * A file is looked up by name from the slot of its name and by id from the slot its id carries, so no request
+ * is sent to every node. Requests go to the first replica of the file, and on to the next one when a replica
+ * cannot be reached or is overloaded, or for a retrieval when it does not have the file yet. Each node is
+ * reached through a {@link FileClient} of its own.
+ */
+public class ClusterClient implements Closeable {
+    private final HashRing ring;
+    private final FileClient[] clients;
+
+    /**
+     * @param nodes the addresses of the nodes, host:port, in the order given to the servers
+     * @param replicas the number of nodes storing each file, as given to the servers
+     */
+    public ClusterClient(List<String> nodes, int replicas) {
+        this.ring = new HashRing(nodes, Math.min(replicas, nodes.size()));
+        this.clients = new FileClient[nodes.size()];
+        for (int i = 0; i < clients.length; i++) {
+            String node = nodes.get(i);
+            int colon = node.lastIndexOf(':');
+            clients[i] = new FileClient(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+        }
+    }
+
+    /**
+     * Saves a file read from a path.
+     *
+     * @param name the name to save the file under
+     * @param content the file to upload
+     * @return the id of the saved file
+     */
+    public CompletableFuture<Long> put(String name, Path content) {
+        return route(ring.replicasOf(name), false, client -> client.put(name, content));
+    }
+
+    /**
+     * Saves a file held in memory.
+     *
+     * @param name the name to save the file under
+     * @param content the content of the file
+     * @return the id of the saved file
+     */
+    public CompletableFuture<Long> put(String name, byte[] content) {
+        return route(ring.replicasOf(name), false, client -> client.put(name, content));
+    }
+
+    /**
+     * Retrieves a file into memory, meant for small files.
+     *
+     * @param name the name of the file
+     * @return the content of the file
+     */
+    public CompletableFuture<byte[]> get(String name) {
+        return route(ring.replicasOf(name), true, client -> client.get(name));
+    }
+
+    /**
+     * Retrieves a file into memory, meant for small files.
+     *
+     * @param id the id of the file
+     * @return the content of the file
+     */
+    public CompletableFuture<byte[]> get(long id) {
+        return route(ring.replicasOfId(id), true, client -> client.get(id));
+    }
+
+    /**
+     * Retrieves a file into a path, replacing the file there if any.
+     *
+     * @param name the name of the file
+     * @param target the path to write the file to
+     * @return the length of the file
+     */
+    public CompletableFuture<Long> get(String name, Path target) {
+        return route(ring.replicasOf(name), true, client -> client.get(name, target));
+    }
+
+    /**
+     * Retrieves a file into a path, replacing the file there if any.
+     *
+     * @param id the id of the file
+     * @param target the path to write the file to
+     * @return the length of the file
+     */
+    public CompletableFuture<Long> get(long id, Path target) {
+        return route(ring.replicasOfId(id), true, client -> client.get(id, target));
+    }
+
+    /**
+     * Deletes a file from all its replicas.
+     *
+     * @param name the name of the file
+     * @return a future completed once the file is deleted
+     */
+    public CompletableFuture<Void> delete(String name) {
+        return route(ring.replicasOf(name), false, client -> client.delete(name));
+    }
+
+    /**
+     * Deletes a file from all its replicas.
+     *
+     * @param id the id of the file
+     * @return a future completed once the file is deleted
+     */
+    public CompletableFuture<Void> delete(long id) {
+        return route(ring.replicasOfId(id), false, client -> client.delete(id));
+    }
+
+    /**
+     * Sends a request to the replicas of a file in turn, until one of them answers it.
+     *
+     * @param replicas the indexes of the nodes storing the file
+     * @param retrieval true if a replica not having the file should be failed over, as it may not have
+     *                  received the file yet
+     * @param request sends the request with the client of a node
+     * @return the result of the first replica that answered
+     */
+    private <T> CompletableFuture<T> route(int[] replicas, boolean retrieval,
+                                           Function<FileClient, CompletableFuture<T>> request) {
+        return attempt(replicas, 0, retrieval, request);
+    }
+
+    private <T> CompletableFuture<T> attempt(int[] replicas, int attempt, boolean retrieval,
+                                             Function<FileClient, CompletableFuture<T>> request) {
+        return request.apply(clients[replicas[attempt]]).handle((value, e) -> {
+            if (e == null) {
+                return CompletableFuture.completedFuture(value);
+            }
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (attempt + 1 < replicas.length && failsOver(cause, retrieval)) {
+                return attempt(replicas, attempt + 1, retrieval, request);
+            }
+            return CompletableFuture.<T>failedFuture(cause);
+        }).thenCompose(Function.identity());
+    }
+
+    /**
+     * @return true if the error may not happen on another replica: the replica could not be reached, was
+     * overloaded or, for a retrieval, did not have the file
+     */
+    private static boolean failsOver(Throwable error, boolean retrieval) {
+        if (error instanceof FileClient.StatusException) {
+            int status = ((FileClient.StatusException) error).status();
+            return status == 503 || retrieval && status == 404;
+        }
+        return error instanceof IOException;
+    }
+
+    /**
+     * Waits for the requests in flight to complete and closes the connections to every node.
+     */
+    @Override
+    public void close() {
+        for (FileClient client : clients) {
+            client.close();
+        }
+    }
+}
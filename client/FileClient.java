@@ -0,0 +1,479 @@
+package client;
+
+import protocol.Protocol;
+import protocol.RequestHeader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A client of the file server meant to be embedded in applications, as opposed to the console {@link Client}.
+ * <p>
+ * Every request returns at once with a future completed when the response has been received, so that a thread
+ * can keep many requests in flight. Requests are exchanged on a bounded pool of connections: a request takes an
+ * idle connection or opens one, waits while {@code maxConnections} are busy, and gives the connection back
+ * once its response has been read. Connections left idle longer than the server would keep them are closed
+ * rather than reused, and a connection on which an exchange failed is closed.
+ * <p>
+ * Bodies are streamed: a file is uploaded from a path or a stream and downloaded to a path or a stream without
+ * being held in memory, the byte array variants being there for small files. A request the server answers with
+ * another status than 200 completes with a {@link StatusException} carrying that status, 404 for a missing file,
+ * or 503 and the delay after which to retry when the server is overloaded.
+ * <p>
+ * The client never retries a request itself, as a body read from a stream cannot be sent twice: a caller getting
+ * 503 should wait {@link StatusException#retryAfterSeconds()} before sending the request again, and back off
+ * further if it is rejected again.
+ */
+public class FileClient implements Closeable {
+    /** The idle time after which a pooled connection is closed, below the default idle timeout of the server. */
+    private static final long MAX_IDLE_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final InetSocketAddress address;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+    private final ExecutorService executor = newTaskExecutor();
+    private volatile boolean closed;
+
+    /**
+     * A status other than 200 sent by the server in response to a request.
+     */
+    public static final class StatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+        private final long retryAfterSeconds;
+
+        StatusException(int status, long retryAfterSeconds) {
+            super("Server responded with status " + status);
+            this.status = status;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        /**
+         * @return the status of the response, such as 404 for a missing file
+         */
+        public int status() {
+            return status;
+        }
+
+        /**
+         * @return the number of seconds to wait before sending the request again when the server was overloaded
+         *         and answered 503, 0 for the other statuses
+         */
+        public long retryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+
+    /**
+     * The exchange of one request and its response on a connection.
+     *
+     * @param <T> the result of the request
+     */
+    private interface Exchange<T> {
+        T run(DataInputStream input, DataOutputStream output) throws IOException;
+    }
+
+    /**
+     * A pooled connection and its buffered streams.
+     */
+    private static final class Connection {
+        final Socket socket;
+        final DataInputStream input;
+        final DataOutputStream output;
+        long lastUsed;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            input = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+            output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Creates a client using at most 8 connections, with a connect timeout of 10 seconds and a read timeout of
+     * 60 seconds.
+     *
+     * @param host the host of the server
+     * @param port the port of the server
+     */
+    public FileClient(String host, int port) {
+        this(host, port, 8, 10_000, 60_000);
+    }
+
+    /**
+     * @param host the host of the server
+     * @param port the port of the server
+     * @param maxConnections the largest number of connections open at once, which bounds the requests exchanged
+     *                       at the same time, further requests waiting for a connection
+     * @param connectTimeoutMillis how long to wait for a connection to be established, 0 to wait indefinitely
+     * @param readTimeoutMillis how long to wait for each read of a response, 0 to wait indefinitely
+     */
+    public FileClient(String host, int port, int maxConnections, int connectTimeoutMillis, int readTimeoutMillis) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("At least one connection is needed");
+        }
+        this.address = new InetSocketAddress(host, port);
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.permits = new Semaphore(maxConnections);
+    }
+
+    /**
+     * Executes each request on a virtual thread when they are available, and on a cached thread pool otherwise.
+     */
+    private static ExecutorService newTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "file-client");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Saves a file read from a path.
+     *
+     * @param name the name to save the file under
+     * @param content the file to upload
+     * @return the id of the saved file
+     */
+    public CompletableFuture<Long> put(String name, Path content) {
+        return submit((input, output) -> {
+            try (InputStream body = Files.newInputStream(content)) {
+                return upload(input, output, name, body, Files.size(content));
+            }
+        });
+    }
+
+    /**
+     * Saves a file read from a stream. The stream is read on a thread of the client and must be left open
+     * until the returned future is completed.
+     *
+     * @param name the name to save the file under
+     * @param content the content of the file
+     * @param length the number of bytes of the content
+     * @return the id of the saved file
+     */
+    public CompletableFuture<Long> put(String name, InputStream content, long length) {
+        return submit((input, output) -> upload(input, output, name, content, length));
+    }
+
+    /**
+     * Saves a file held in memory.
+     *
+     * @param name the name to save the file under
+     * @param content the content of the file
+     * @return the id of the saved file
+     */
+    public CompletableFuture<Long> put(String name, byte[] content) {
+        return put(name, new ByteArrayInputStream(content), content.length);
+    }
+
+    /**
+     * Retrieves a file into memory, meant for small files.
+     *
+     * @param name the name of the file
+     * @return the content of the file
+     */
+    public CompletableFuture<byte[]> get(String name) {
+        return getBytes(Protocol.BY_NAME, name, 0);
+    }
+
+    /**
+     * Retrieves a file into memory, meant for small files.
+     *
+     * @param id the id of the file
+     * @return the content of the file
+     */
+    public CompletableFuture<byte[]> get(long id) {
+        return getBytes(Protocol.BY_ID, null, id);
+    }
+
+    /**
+     * Retrieves a file into a path, replacing the file there if any.
+     *
+     * @param name the name of the file
+     * @param target the path to write the file to
+     * @return the length of the file
+     */
+    public CompletableFuture<Long> get(String name, Path target) {
+        return download(Protocol.BY_NAME, name, 0, target);
+    }
+
+    /**
+     * Retrieves a file into a path, replacing the file there if any.
+     *
+     * @param id the id of the file
+     * @param target the path to write the file to
+     * @return the length of the file
+     */
+    public CompletableFuture<Long> get(long id, Path target) {
+        return download(Protocol.BY_ID, null, id, target);
+    }
+
+    /**
+     * Retrieves a file into a stream. The stream is written on a thread of the client and is not closed.
+     *
+     * @param name the name of the file
+     * @param target the stream to write the file to
+     * @return the length of the file
+     */
+    public CompletableFuture<Long> get(String name, OutputStream target) {
+        return submit((input, output) -> retrieve(input, output, Protocol.BY_NAME, name, 0, target));
+    }
+
+    /**
+     * Retrieves a file into a stream. The stream is written on a thread of the client and is not closed.
+     *
+     * @param id the id of the file
+     * @param target the stream to write the file to
+     * @return the length of the file
+     */
+    public CompletableFuture<Long> get(long id, OutputStream target) {
+        return submit((input, output) -> retrieve(input, output, Protocol.BY_ID, null, id, target));
+    }
+
+    /**
+     * Deletes a file.
+     *
+     * @param name the name of the file
+     * @return a future completed once the file is deleted
+     */
+    public CompletableFuture<Void> delete(String name) {
+        return submit((input, output) -> remove(input, output, Protocol.BY_NAME, name, 0));
+    }
+
+    /**
+     * Deletes a file.
+     *
+     * @param id the id of the file
+     * @return a future completed once the file is deleted
+     */
+    public CompletableFuture<Void> delete(long id) {
+        return submit((input, output) -> remove(input, output, Protocol.BY_ID, null, id));
+    }
+
+    private CompletableFuture<byte[]> getBytes(byte mode, String name, long id) {
+        return submit((input, output) -> {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            retrieve(input, output, mode, name, id, content);
+            return content.toByteArray();
+        });
+    }
+
+    private CompletableFuture<Long> download(byte mode, String name, long id, Path target) {
+        return submit((input, output) -> {
+            try (OutputStream content = new BufferedOutputStream(Files.newOutputStream(target), BUFFER_SIZE)) {
+                return retrieve(input, output, mode, name, id, content);
+            }
+        });
+    }
+
+    /**
+     * Runs an exchange on a thread of the client, once a connection is available.
+     *
+     * @param exchange the request and the reading of its response
+     * @return a future completed with the result of the exchange, or with the error that ended it
+     */
+    private <T> CompletableFuture<T> submit(Exchange<T> exchange) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (closed) {
+            result.completeExceptionally(new IOException("Client closed"));
+            return result;
+        }
+        try {
+            executor.execute(() -> exchange(exchange, result));
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(new IOException("Client closed", e));
+        }
+        return result;
+    }
+
+    private <T> void exchange(Exchange<T> exchange, CompletableFuture<T> result) {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            result.completeExceptionally(e);
+            return;
+        }
+
+        Connection connection = null;
+        try {
+            connection = acquire();
+            T value;
+            try {
+                value = exchange.run(connection.input, connection.output);
+            } catch (StatusException e) {
+                // the whole response was read, the connection can carry the next request
+                release(connection);
+                connection = null;
+                throw e;
+            }
+            release(connection);
+            connection = null;
+            result.complete(value);
+        } catch (IOException | RuntimeException e) {
+            if (connection != null) {
+                connection.close();
+            }
+            result.completeExceptionally(e);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * @return an idle connection that has not been idle for too long, or a new connection
+     * @throws IOException if a new connection cannot be established
+     */
+    private Connection acquire() throws IOException {
+        Connection connection;
+        while ((connection = idle.pollLast()) != null) {
+            if (System.nanoTime() - connection.lastUsed < MAX_IDLE_NANOS) {
+                return connection;
+            }
+            connection.close();
+        }
+
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(readTimeoutMillis);
+            socket.connect(address, connectTimeoutMillis);
+            return new Connection(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives a connection back to the pool, or closes it if the client was closed meanwhile.
+     */
+    private void release(Connection connection) {
+        connection.lastUsed = System.nanoTime();
+        idle.addLast(connection);
+        if (closed && idle.remove(connection)) {
+            connection.close();
+        }
+    }
+
+    private static long upload(DataInputStream input, DataOutputStream output, String name, InputStream content,
+                               long length) throws IOException {
+        RequestHeader.write(output, Protocol.PUT, Protocol.BY_NAME, name, 0, length);
+        byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(1, length))];
+        long remaining = length;
+        while (remaining > 0) {
+            int read = content.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new EOFException("Content shorter than its length");
+            }
+            output.write(buffer, 0, read);
+            remaining -= read;
+        }
+        output.flush();
+
+        checkStatus(input);
+        return input.readLong();
+    }
+
+    private static long retrieve(DataInputStream input, DataOutputStream output, byte mode, String name, long id,
+                                 OutputStream content) throws IOException {
+        RequestHeader.write(output, Protocol.GET, mode, name, id, 0);
+        output.flush();
+
+        checkStatus(input);
+        long length = input.readLong();
+        byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(1, length))];
+        long remaining = length;
+        while (remaining > 0) {
+            int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new EOFException("Response shorter than the file");
+            }
+            content.write(buffer, 0, read);
+            remaining -= read;
+        }
+        return length;
+    }
+
+    private static Void remove(DataInputStream input, DataOutputStream output, byte mode, String name, long id)
+            throws IOException {
+        RequestHeader.write(output, Protocol.DELETE, mode, name, id, 0);
+        output.flush();
+        checkStatus(input);
+        return null;
+    }
+
+    /**
+     * Reads the status of a response, along with the retry delay of a request rejected with 503.
+     *
+     * @throws StatusException if the status is not 200
+     */
+    private static void checkStatus(DataInputStream input) throws IOException {
+        int status = input.readInt();
+        if (status == 503) {
+            throw new StatusException(status, input.readLong());
+        } else if (status != 200) {
+            throw new StatusException(status, 0);
+        }
+    }
+
+    /**
+     * Stops accepting requests, waits for the requests in flight to complete and closes the connections.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(readTimeoutMillis > 0 ? readTimeoutMillis : Long.MAX_VALUE,
+                    TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        Connection connection;
+        while ((connection = idle.pollLast()) != null) {
+            connection.close();
+        }
+    }
+}
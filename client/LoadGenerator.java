@@ -0,0 +1,364 @@
+package client;
+
+import protocol.Protocol;
+import protocol.RequestHeader;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A headless mode of the client, generating load on a server to measure it before a deployment.
+ * <p>
+ * Workers, each on a connection of its own, send a random mix of PUT, GET and DELETE requests for the duration
+ * of the run. Uploaded files get random contents whose sizes are drawn from a weighted list, and GET and DELETE
+ * requests look up one of the files the worker saved, by name or by id; a worker without a saved file sends a
+ * PUT instead. In closed loop each worker sends its next request as soon as it got the previous response. With
+ * a target rate the requests are scheduled at fixed intervals shared by all the workers, and the latency of a
+ * request is measured from the time it was scheduled at, so that a server falling behind shows in the latencies
+ * rather than in a lower rate alone.
+ * <p>
+ * The report gives the throughput, the error counts by request and status, and latency percentiles for each
+ * kind of request. Connection errors are counted on their own, the worker connecting again after them.
+ * Latencies are kept exactly, one long per request.
+ */
+class LoadGenerator {
+    private static final String[] OPERATIONS = {"PUT", "GET", "DELETE"};
+    private static final int PUT = 0;
+    private static final int GET = 1;
+    private static final int DELETE = 2;
+
+    private final String address;
+    private final int port;
+    private int workers = 8;
+    private long durationNanos = TimeUnit.SECONDS.toNanos(30);
+    private double rate = 0;
+    private int[] mix = {20, 70, 10};
+    private String lookup = "name";
+    private long[] sizes = {1024, 16 * 1024, 256 * 1024};
+    private int[] sizeWeights = {60, 30, 10};
+    private boolean ackOnReceipt;
+    private byte[] payload;
+
+    /**
+     * The requests sent by a worker and what became of them, merged into the report at the end of the run.
+     */
+    private static final class WorkerResult {
+        final long[][] latencies = new long[OPERATIONS.length][1024];
+        final int[] counts = new int[OPERATIONS.length];
+        final Map<String, Integer> errors = new TreeMap<>();
+
+        void record(int operation, long nanos) {
+            if (counts[operation] == latencies[operation].length) {
+                latencies[operation] = Arrays.copyOf(latencies[operation], counts[operation] * 2);
+            }
+            latencies[operation][counts[operation]++] = nanos;
+        }
+
+        void error(String cause) {
+            errors.merge(cause, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * A file saved by a worker, which its later GET and DELETE requests look up.
+     */
+    private static final class SavedFile {
+        final String name;
+        final long id;
+
+        SavedFile(String name, long id) {
+            this.name = name;
+            this.id = id;
+        }
+    }
+
+    LoadGenerator(String address, int port) {
+        this.address = address;
+        this.port = port;
+    }
+
+    /**
+     * Reads the options of the load generator. Accepted options: {@code --workers N} for the number of
+     * concurrent connections (8 by default), {@code --duration SECONDS} (30 by default), {@code --rate N} for
+     * a target number of requests per second over all the workers, closed loop without it,
+     * {@code --mix PUT:GET:DELETE} for the weights of the requests (20:70:10 by default),
+     * {@code --lookup name|id|mixed} for how GET and DELETE requests look up files (name by default),
+     * {@code --sizes BYTES:WEIGHT,...} for the distribution of the uploaded sizes
+     * (1024:60,16384:30,262144:10 by default) and {@code --ack receipt} to have uploads acknowledged on receipt.
+     *
+     * @param args the command line options
+     * @throws IllegalArgumentException if an option is not valid
+     */
+    void configure(String[] args) {
+        for (int i = 0; i < args.length - 1; i++) {
+            switch (args[i]) {
+                case "--workers":
+                    workers = Integer.parseInt(args[++i]);
+                    break;
+                case "--duration":
+                    durationNanos = (long) (Double.parseDouble(args[++i]) * 1e9);
+                    break;
+                case "--rate":
+                    rate = Double.parseDouble(args[++i]);
+                    break;
+                case "--mix":
+                    mix = Arrays.stream(args[++i].split(":")).mapToInt(Integer::parseInt).toArray();
+                    if (mix.length != OPERATIONS.length || Arrays.stream(mix).sum() <= 0) {
+                        throw new IllegalArgumentException("The mix must be PUT:GET:DELETE weights");
+                    }
+                    break;
+                case "--lookup":
+                    lookup = args[++i];
+                    break;
+                case "--sizes":
+                    String[] entries = args[++i].split(",");
+                    sizes = new long[entries.length];
+                    sizeWeights = new int[entries.length];
+                    for (int j = 0; j < entries.length; j++) {
+                        String[] entry = entries[j].split(":");
+                        sizes[j] = Long.parseLong(entry[0]);
+                        sizeWeights[j] = entry.length > 1 ? Integer.parseInt(entry[1]) : 1;
+                    }
+                    break;
+                case "--ack":
+                    ackOnReceipt = args[++i].equals("receipt");
+                    break;
+            }
+        }
+        if (workers <= 0 || Arrays.stream(sizes).anyMatch(size -> size < 0 || size > Integer.MAX_VALUE)) {
+            throw new IllegalArgumentException("Invalid number of workers or payload size");
+        }
+    }
+
+    /**
+     * Runs the workers for the duration of the run and prints the report.
+     *
+     * @throws InterruptedException if the run is interrupted
+     */
+    void run() throws InterruptedException {
+        payload = new byte[(int) Arrays.stream(sizes).max().orElse(0)];
+        ThreadLocalRandom.current().nextBytes(payload);
+
+        String runId = Long.toString(System.currentTimeMillis(), 36);
+        long start = System.nanoTime();
+        long end = start + durationNanos;
+        AtomicLong scheduled = new AtomicLong();
+        System.out.println("Generating load with " + workers + " workers for "
+                + TimeUnit.NANOSECONDS.toSeconds(durationNanos) + " s, "
+                + (rate > 0 ? rate + " requests per second." : "closed loop."));
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        List<Future<WorkerResult>> running = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            String prefix = "load-" + runId + "-" + i + "-";
+            running.add(executor.submit(() -> work(prefix, start, end, scheduled)));
+        }
+
+        List<WorkerResult> results = new ArrayList<>();
+        try {
+            for (Future<WorkerResult> worker : running) {
+                results.add(worker.get());
+            }
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        } finally {
+            executor.shutdownNow();
+        }
+        report(results, (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Sends requests on a connection of its own until the end of the run, reconnecting after a connection error.
+     *
+     * @param prefix the prefix of the names of the files saved by the worker
+     * @param start the start of the run
+     * @param end the end of the run
+     * @param scheduled the number of requests scheduled so far, shared by the workers when a rate is set
+     * @return the requests sent by the worker
+     */
+    private WorkerResult work(String prefix, long start, long end, AtomicLong scheduled) throws InterruptedException {
+        WorkerResult result = new WorkerResult();
+        List<SavedFile> saved = new ArrayList<>();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long intervalNanos = rate > 0 ? (long) (1e9 / rate) : 0;
+        long next = 0;
+
+        while (System.nanoTime() < end) {
+            try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(address, port))) {
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                DataInputStream input = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream()));
+                DataOutputStream output = new DataOutputStream(
+                        new BufferedOutputStream(channel.socket().getOutputStream()));
+
+                while (true) {
+                    long intended = System.nanoTime();
+                    if (intervalNanos > 0) {
+                        intended = start + scheduled.getAndIncrement() * intervalNanos;
+                        long wait = intended - System.nanoTime();
+                        if (wait > 0) {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        }
+                    }
+                    if (intended >= end) {
+                        return result;
+                    }
+
+                    int operation = saved.isEmpty() ? PUT : pick(mix, random);
+                    int status;
+                    if (operation == PUT) {
+                        String name = prefix + next++;
+                        int size = (int) sizes[pick(sizeWeights, random)];
+                        status = put(input, output, name, size);
+                        if (status == 200) {
+                            saved.add(new SavedFile(name, input.readLong()));
+                        }
+                    } else {
+                        int index = random.nextInt(saved.size());
+                        SavedFile file = saved.get(index);
+                        boolean byId = lookup.equals("id") || lookup.equals("mixed") && random.nextBoolean();
+                        status = operation == GET ? get(input, output, file, byId) : delete(input, output, file, byId);
+                        if (operation == DELETE && status == 200) {
+                            saved.set(index, saved.get(saved.size() - 1));
+                            saved.remove(saved.size() - 1);
+                        }
+                    }
+
+                    result.record(operation, System.nanoTime() - intended);
+                    if (status != 200) {
+                        result.error(OPERATIONS[operation] + " " + status);
+                    }
+                }
+            } catch (IOException e) {
+                result.error("connection " + e.getClass().getSimpleName());
+                TimeUnit.MILLISECONDS.sleep(100);
+            }
+        }
+        return result;
+    }
+
+    private int put(DataInputStream input, DataOutputStream output, String name, int size) throws IOException {
+        byte flags = ackOnReceipt ? Protocol.ACK_ON_RECEIPT : 0;
+        RequestHeader.write(output, Protocol.PUT, Protocol.BY_NAME, flags, name, 0, size);
+        output.write(payload, 0, size);
+        output.flush();
+        return readStatus(input);
+    }
+
+    private static int get(DataInputStream input, DataOutputStream output, SavedFile file, boolean byId)
+            throws IOException {
+        RequestHeader.write(output, Protocol.GET, byId ? Protocol.BY_ID : Protocol.BY_NAME, file.name, file.id, 0);
+        output.flush();
+        int status = readStatus(input);
+        if (status == 200) {
+            input.skipNBytes(input.readLong());
+        }
+        return status;
+    }
+
+    private static int delete(DataInputStream input, DataOutputStream output, SavedFile file, boolean byId)
+            throws IOException {
+        RequestHeader.write(output, Protocol.DELETE, byId ? Protocol.BY_ID : Protocol.BY_NAME, file.name, file.id,
+                0);
+        output.flush();
+        return readStatus(input);
+    }
+
+    /**
+     * Reads the status of a response, skipping the retry delay of a request rejected by an overloaded server.
+     */
+    private static int readStatus(DataInputStream input) throws IOException {
+        int status = input.readInt();
+        if (status == 503) {
+            input.readLong();
+        }
+        return status;
+    }
+
+    /**
+     * @param weights the weight of each choice
+     * @return a choice drawn with a probability proportional to its weight
+     */
+    private static int pick(int[] weights, ThreadLocalRandom random) {
+        int draw = random.nextInt(Arrays.stream(weights).sum());
+        for (int i = 0; i < weights.length; i++) {
+            draw -= weights[i];
+            if (draw < 0) {
+                return i;
+            }
+        }
+        return weights.length - 1;
+    }
+
+    /**
+     * Prints the throughput and latency percentiles of each kind of request, then the errors.
+     *
+     * @param results the requests sent by each worker
+     * @param seconds the length of the run
+     */
+    private static void report(List<WorkerResult> results, double seconds) {
+        System.out.println(String.format(Locale.ROOT, "%-8s %10s %8s %10s %10s %10s %10s %10s %10s", "request",
+                "count", "errors", "req/s", "p50 us", "p90 us", "p99 us", "p999 us", "max us"));
+
+        Map<String, Integer> errors = new TreeMap<>();
+        for (WorkerResult result : results) {
+            result.errors.forEach((cause, count) -> errors.merge(cause, count, Integer::sum));
+        }
+
+        long[] all = new long[0];
+        for (int operation = 0; operation < OPERATIONS.length; operation++) {
+            long[] latencies = new long[0];
+            for (WorkerResult result : results) {
+                latencies = concat(latencies, result.latencies[operation], result.counts[operation]);
+            }
+            String prefix = OPERATIONS[operation] + " ";
+            long operationErrors = errors.entrySet().stream().filter(error -> error.getKey().startsWith(prefix))
+                    .mapToLong(Map.Entry::getValue).sum();
+            printLine(OPERATIONS[operation], latencies, operationErrors, seconds);
+            all = concat(all, latencies, latencies.length);
+        }
+        printLine("total", all, errors.values().stream().mapToLong(Integer::longValue).sum(), seconds);
+        errors.forEach((cause, count) -> System.out.println("error " + cause + ": " + count));
+    }
+
+    private static void printLine(String name, long[] latencies, long errors, double seconds) {
+        Arrays.sort(latencies);
+        System.out.println(String.format(Locale.ROOT, "%-8s %10d %8d %10.1f %10d %10d %10d %10d %10d", name,
+                latencies.length, errors, latencies.length / seconds, percentile(latencies, 0.5),
+                percentile(latencies, 0.9), percentile(latencies, 0.99), percentile(latencies, 0.999),
+                percentile(latencies, 1)));
+    }
+
+    /**
+     * @param sorted the latencies, sorted
+     * @param fraction the fraction of the latencies, 0.99 for the 99th percentile
+     * @return the latency below which the fraction of the latencies fall, in microseconds
+     */
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(fraction * sorted.length);
+        return TimeUnit.NANOSECONDS.toMicros(sorted[Math.max(0, rank - 1)]);
+    }
+
+    private static long[] concat(long[] first, long[] second, int secondLength) {
+        long[] both = Arrays.copyOf(first, first.length + secondLength);
+        System.arraycopy(second, 0, both, first.length, secondLength);
+        return both;
+    }
+}
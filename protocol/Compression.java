@@ -0,0 +1,227 @@
+package protocol;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compressed format of the file contents exchanged by client and server, and stored by the server:
+ * <pre>
+ * length(8) deflate stream
+ * </pre>
+ * where the length is the length of the file before compression. A content is only sent compressed if it
+ * shrinks to at most {@link #MAX_RATIO} of its length, so incompressible contents are sent as they are.
+ */
+public final class Compression {
+    public static final double MAX_RATIO = 0.9;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private Compression() {
+    }
+
+    /**
+     * Compresses a file content held in memory.
+     *
+     * @param content the content, from its position to its limit, which is left unchanged
+     * @return the compressed content, or null if the content does not compress well enough
+     */
+    public static ByteBuffer deflate(ByteBuffer content) {
+        long length = content.remaining();
+        long budget = (long) (length * MAX_RATIO);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] chunk = new byte[CHUNK_SIZE];
+        Deflater deflater = new Deflater();
+
+        try {
+            deflater.setInput(content.duplicate());
+            deflater.finish();
+            output.writeBytes(ByteBuffer.allocate(8).putLong(length).array());
+            while (!deflater.finished()) {
+                output.write(chunk, 0, deflater.deflate(chunk));
+                if (output.size() > budget) {
+                    return null;
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        return ByteBuffer.wrap(output.toByteArray());
+    }
+
+    /**
+     * Compresses a file content read from a stream, giving up as soon as it does not compress well enough.
+     *
+     * @param input the stream to read the file from
+     * @param length the length of the file
+     * @param output the stream to write the compressed content to
+     * @return true if the whole compressed content was written, false if it was not worth it
+     * @throws IOException if the file cannot be read or the compressed content cannot be written
+     */
+    public static boolean deflate(InputStream input, long length, OutputStream output) throws IOException {
+        long budget = (long) (length * MAX_RATIO);
+        byte[] buffer = new byte[CHUNK_SIZE];
+        byte[] chunk = new byte[CHUNK_SIZE];
+        Deflater deflater = new Deflater();
+
+        try {
+            new DataOutputStream(output).writeLong(length);
+            long written = 8;
+            long remaining = length;
+            while (!deflater.finished()) {
+                if (deflater.needsInput() && remaining > 0) {
+                    int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new EOFException("File shorter than announced");
+                    }
+                    deflater.setInput(buffer, 0, read);
+                    remaining -= read;
+                } else if (deflater.needsInput()) {
+                    deflater.finish();
+                }
+                int compressed = deflater.deflate(chunk);
+                output.write(chunk, 0, compressed);
+                written += compressed;
+                if (written > budget) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompresses a compressed content held in memory.
+     *
+     * @param compressed the compressed content, from its position to its limit
+     * @return the content of the file
+     * @throws IOException if the content is not in the compressed format
+     */
+    public static ByteBuffer inflate(ByteBuffer compressed) throws IOException {
+        compressed = compressed.duplicate();
+        if (compressed.remaining() < 8) {
+            throw new EOFException("Compressed content without length");
+        }
+        long length = compressed.getLong();
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new StreamCorruptedException("Compressed content of invalid length");
+        }
+
+        ByteBuffer content = ByteBuffer.allocate((int) length);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            while (content.hasRemaining() && !inflater.finished()) {
+                if (inflater.inflate(content) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+            }
+            if (content.hasRemaining() || !inflater.finished()) {
+                throw new StreamCorruptedException("Compressed content of unexpected length");
+            }
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("Invalid compressed content");
+        } finally {
+            inflater.end();
+        }
+        return content.flip();
+    }
+
+    /**
+     * A stream decompressing a compressed content read from another stream.
+     * The underlying stream is read up to the end of the compressed content and is not closed.
+     */
+    public static final class InflatingStream extends InputStream {
+        private final InputStream input;
+        private final Inflater inflater = new Inflater();
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private final long length;
+        private long compressedRemaining;
+        private long remaining;
+
+        /**
+         * Reads the length of the file from the start of the compressed content.
+         *
+         * @param input the stream positioned at the start of the compressed content
+         * @param compressedLength the length of the compressed content, length field included
+         * @throws IOException if the length cannot be read or is not valid
+         */
+        public InflatingStream(InputStream input, long compressedLength) throws IOException {
+            this.input = input;
+            if (compressedLength < 8) {
+                throw new EOFException("Compressed content without length");
+            }
+            length = new DataInputStream(input).readLong();
+            if (length < 0) {
+                throw new StreamCorruptedException("Compressed content of invalid length");
+            }
+            compressedRemaining = compressedLength - 8;
+            remaining = length;
+        }
+
+        /**
+         * @return the length of the file before compression
+         */
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int count) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            } else if (count == 0) {
+                return 0;
+            }
+            count = (int) Math.min(count, remaining);
+            try {
+                int inflated;
+                while ((inflated = inflater.inflate(bytes, offset, count)) == 0) {
+                    if (inflater.finished() || inflater.needsDictionary() || compressedRemaining == 0) {
+                        throw new EOFException("Compressed content shorter than announced");
+                    }
+                    int read = input.read(buffer, 0, (int) Math.min(buffer.length, compressedRemaining));
+                    if (read < 0) {
+                        throw new EOFException("Compressed content shorter than announced");
+                    }
+                    compressedRemaining -= read;
+                    inflater.setInput(buffer, 0, read);
+                }
+                remaining -= inflated;
+                return inflated;
+            } catch (DataFormatException e) {
+                throw new StreamCorruptedException("Invalid compressed content");
+            }
+        }
+
+        /**
+         * Skips what is left of the compressed content in the underlying stream, after the file was read.
+         *
+         * @throws IOException if the underlying stream cannot be read
+         */
+        public void skipRemaining() throws IOException {
+            while (compressedRemaining > 0) {
+                int read = input.read(buffer, 0, (int) Math.min(buffer.length, compressedRemaining));
+                if (read < 0) {
+                    throw new EOFException("Compressed content shorter than announced");
+                }
+                compressedRemaining -= read;
+            }
+        }
+
+        @Override
+        public void close() {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * The placement of files on the nodes of a cluster, computed the same way by the servers and by the clients
+ * routing their requests.
+ * <p>
+ * A file belongs to one of {@link #SLOTS} slots, chosen by hashing its name, and a slot is stored by the
+ * replicas found walking clockwise from the position of the slot on a consistent hash ring, where every node
+ * owns {@value #POINTS_PER_NODE} points. Adding or removing a node only moves the slots next to its points,
+ * about 1/n of the files, and the points spread the load evenly whatever the number of nodes.
+ * <p>
+ * The id of a file saved in a cluster carries its slot, the node that gave it out and a sequence of that node:
+ * <pre>
+ * 0(1) slot(10) node(6) sequence(47)
+ * </pre>
+ * so that a file looked up by id is routed to its replicas without asking every node.
+ */
+public final class HashRing {
+    public static final int SLOTS = 1 << 10;
+    public static final int SEQUENCE_BITS = 47;
+    private static final int NODE_BITS = 6;
+    public static final int MAX_NODES = 1 << NODE_BITS;
+    private static final int POINTS_PER_NODE = 128;
+
+    private final List<String> nodes;
+    private final int[][] replicasBySlot;
+
+    /**
+     * @param nodes the addresses of the nodes, host:port, the same list in the same order on every node
+     *              and client of the cluster
+     * @param replicas the number of nodes storing each file, at most the number of nodes
+     * @throws IllegalArgumentException if there is no node, too many nodes or an invalid number of replicas
+     */
+    public HashRing(List<String> nodes, int replicas) {
+        if (nodes.isEmpty() || nodes.size() > MAX_NODES) {
+            throw new IllegalArgumentException("A cluster has 1 to " + MAX_NODES + " nodes");
+        }
+        if (replicas < 1 || replicas > nodes.size()) {
+            throw new IllegalArgumentException("Invalid number of replicas " + replicas);
+        }
+        this.nodes = List.copyOf(nodes);
+
+        TreeMap<Long, Integer> ring = new TreeMap<>();
+        for (int node = 0; node < nodes.size(); node++) {
+            for (int point = 0; point < POINTS_PER_NODE; point++) {
+                ring.put(position(nodes.get(node) + "#" + point), node);
+            }
+        }
+
+        replicasBySlot = new int[SLOTS][];
+        for (int slot = 0; slot < SLOTS; slot++) {
+            List<Integer> found = new ArrayList<>(replicas);
+            Long point = ring.ceilingKey(position("slot#" + slot));
+            while (found.size() < replicas) {
+                if (point == null) {
+                    point = ring.firstKey();
+                }
+                int node = ring.get(point);
+                if (!found.contains(node)) {
+                    found.add(node);
+                }
+                point = ring.higherKey(point);
+            }
+            replicasBySlot[slot] = found.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    /**
+     * @param list the addresses of the nodes, host:port, separated by commas
+     * @return the addresses, in the order of the list
+     */
+    public static List<String> parseNodes(String list) {
+        List<String> nodes = new ArrayList<>();
+        for (String node : list.split(",")) {
+            if (!node.isBlank()) {
+                nodes.add(node.trim());
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * @return the addresses of the nodes, in the order of the cluster
+     */
+    public List<String> nodes() {
+        return nodes;
+    }
+
+    /**
+     * @param name the name of a file
+     * @return the slot of the file
+     */
+    public static int slotOf(String name) {
+        CRC32 crc = new CRC32();
+        crc.update(name.getBytes(StandardCharsets.UTF_8));
+        return (int) (crc.getValue() % SLOTS);
+    }
+
+    /**
+     * @param id the id of a file saved in a cluster
+     * @return the slot of the file
+     */
+    public static int slotOfId(long id) {
+        return (int) (id >>> (SEQUENCE_BITS + NODE_BITS)) & (SLOTS - 1);
+    }
+
+    /**
+     * @param slot the slot of the file
+     * @param node the index of the node giving out the id
+     * @param sequence the sequence of the node, below 2^{@value #SEQUENCE_BITS}
+     * @return the id of a file saved in a cluster
+     */
+    public static long encodeId(int slot, int node, long sequence) {
+        return (long) slot << (SEQUENCE_BITS + NODE_BITS) | (long) node << SEQUENCE_BITS
+                | sequence & ((1L << SEQUENCE_BITS) - 1);
+    }
+
+    /**
+     * @param slot the slot of a file
+     * @return the indexes of the nodes storing the slot, the first one being the node requests are sent to
+     */
+    public int[] replicasOf(int slot) {
+        return replicasBySlot[slot].clone();
+    }
+
+    /**
+     * @param name the name of a file
+     * @return the indexes of the nodes storing the file
+     */
+    public int[] replicasOf(String name) {
+        return replicasOf(slotOf(name));
+    }
+
+    /**
+     * @param id the id of a file saved in a cluster
+     * @return the indexes of the nodes storing the file
+     */
+    public int[] replicasOfId(long id) {
+        return replicasOf(slotOfId(id));
+    }
+
+    private static long position(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is required by the Java platform", e);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package protocol;
+
+/**
+ * Constants of the binary request frame exchanged between client and server.
+ * <p>
+ * A request frame is made of a magic byte, the protocol version, the opcode, the lookup mode and the request
+ * flags, followed by the file key and the length of the request body:
+ * <pre>
+ * magic(1) version(1) opcode(1) mode(1) flags(1) key body length(8)
+ * </pre>
+ * The key is an unsigned 16 bit length followed by the UTF-8 file name for {@link #BY_NAME},
+ * a 64 bit file id for {@link #BY_ID} and is absent for {@link #NONE}.
+ * The body length is always present and is 0 for requests without a body.
+ * <p>
+ * Responses start with a 32 bit HTTP like status code. A successful PUT is followed by the 64 bit id of the saved
+ * file, a successful GET by the 64 bit length of the file and its content. A GET sent with
+ * {@link #ACCEPT_COMPRESSED} gets the encoding of the content before its length:
+ * <pre>
+ * status(4) encoding(1) length(8) content
+ * </pre>
+ * A {@link #ENCODING_DEFLATE} content, like the body of a PUT sent with {@link #COMPRESSED_BODY}, is the 64 bit
+ * length of the file followed by the file compressed with {@link java.util.zip.Deflater}, see {@link Compression}.
+ * <p>
+ * A GET sent with {@link #RANGE} carries the offset and the length of the range wanted as its body, and a range
+ * is answered with status 206 and the length of the whole file:
+ * <pre>
+ * request body: offset(8) length(8)
+ * response:     206(4) file length(8) range length(8) content
+ * </pre>
+ * The range is cut at the end of the file, and an offset past the end of the file gets 416.
+ * <p>
+ * Large uploads can be sent as the parts of a resumable upload: PUTs sent with {@link #RESUMABLE}, whose body is
+ * the offset of the part in the file and the length of the whole file followed by the part. A part is answered
+ * with 202 and the number of bytes the server committed, or with 409 and that number if the part does not
+ * start there, and the last part with 200 and the id of the saved file. A {@link #RESUME} request, with the
+ * length of the whole file as its body, gets 200 and the number of bytes committed, 0 if the upload has not
+ * started:
+ * <pre>
+ * part body:     offset(8) file length(8) part
+ * part response: status(4) committed(8)
+ * </pre>
+ * A multipart upload is sent as PUTs with {@link #MULTIPART}, whose body is laid out like a resumable part. The
+ * parts may be sent in any order and on several connections at once, each answered with 202 and the number of
+ * bytes of the file received so far. A {@link #COMMIT} request, with the length of the whole file as its body,
+ * saves the file and gets 200 and its id, or 409 and the number of bytes received if parts are missing.
+ * A server that is the node of a cluster answers the parts, {@link #RESUME} and {@link #COMMIT} with 501, and
+ * the file is then sent in one PUT.
+ * <p>
+ * A {@link #BATCH} request carries many requests in one frame: its body is the number of requests followed by
+ * the requests, each a whole request frame with its body. The requests are executed concurrently, those naming
+ * the same file in the order they were sent, and the batch is answered with 200 and the number of responses,
+ * followed by the response to each request in the order of the requests, encoded as it would be sent alone:
+ * <pre>
+ * request body: count(4) request frame...
+ * response:     200(4) count(4) response...
+ * </pre>
+ * Batches are meant for small files: a batch longer than {@link #MAX_BATCH_LENGTH} gets 413, and so does each
+ * retrieved file that would make the response to the batch longer than that. Exit requests and nested batches
+ * get 400.
+ * <p>
+ * A {@link #STATS} request, without key or body, is answered like a GET with the server statistics as a UTF-8
+ * text: request counts, failures, throughput and latency percentiles by opcode, bytes in and out, connections
+ * and queue depths.
+ * <p>
+ * A server holding as many request bodies as it accepts at once answers a further request carrying a body with
+ * status 503 and the number of seconds to wait before sending it again, once it has received and dropped the
+ * body. The request was not executed and can be retried as it is:
+ * <pre>
+ * response: 503(4) retry after(8)
+ * </pre>
+ * <p>
+ * Servers running as a cluster spread the files over their nodes with a {@link HashRing}. The node a PUT or a
+ * DELETE is sent to forwards it to every replica of the file as a request with {@link #REPLICA}, whose key is the
+ * name of the file followed by its id, given out by the first node, and answers once a quorum of the replicas
+ * did. A GET is answered by the node it is sent to, from its own replica:
+ * <pre>
+ * replica key: name length(2) name id(8)
+ * </pre>
+ */
+public final class Protocol {
+    /** First byte of every binary frame, it can never start a Java serialization stream. */
+    public static final byte MAGIC = (byte) 0xF5;
+    /**
+     * Version 2 widened file ids from 32 to 64 bits, version 3 added the flags byte, version 4 added the
+     * compression flags, version 5 added ranges and resumable uploads, version 6 added multipart uploads,
+     * version 7 added batches, version 8 added statistics, version 9 added the retry delay of rejected requests,
+     * version 10 added the requests between the nodes of a cluster.
+     * <p>
+     * Servers read the frames of every version from {@link #MIN_VERSION} on, each with the layout of its version,
+     * and answer them in the layout of that version. The version only needs to be raised when the layout of a
+     * frame or of a response changes: new opcodes and flags are simply not sent by older clients.
+     */
+    public static final byte VERSION = 10;
+    /** The oldest version whose frames are still read, the first one with 64 bit ids. */
+    public static final byte MIN_VERSION = 2;
+    /** The first version whose frames carry the flags byte. */
+    public static final byte FLAGS_VERSION = 3;
+    /** The first version whose 503 responses carry the retry delay. */
+    public static final byte RETRY_DELAY_VERSION = 9;
+    /** The first version whose {@link #REPLICA} requests by name carry the id of the file in their key. */
+    public static final byte REPLICA_VERSION = 10;
+
+    public static final byte EXIT = 0;
+    public static final byte GET = 1;
+    public static final byte PUT = 2;
+    public static final byte DELETE = 3;
+    public static final byte RESUME = 4;
+    public static final byte COMMIT = 5;
+    public static final byte BATCH = 6;
+    public static final byte STATS = 7;
+
+    public static final byte NONE = 0;
+    public static final byte BY_NAME = 1;
+    public static final byte BY_ID = 2;
+
+    /**
+     * Flag of a PUT request asking for the response as soon as the file is received, before it is durable.
+     * Without it the server answers once the file and its id are safely on disk.
+     */
+    public static final byte ACK_ON_RECEIPT = 1;
+    /** Flag of a PUT request whose body is the file compressed, in the {@link Compression} format. */
+    public static final byte COMPRESSED_BODY = 2;
+    /** Flag of a GET request accepting the file compressed, the response then carries the content encoding. */
+    public static final byte ACCEPT_COMPRESSED = 4;
+    /** Flag of a GET request asking for a range of the file, whose offset and length are the request body. */
+    public static final byte RANGE = 8;
+    /** Flag of a PUT request carrying a part of a resumable upload. */
+    public static final byte RESUMABLE = 16;
+    /** Flag of a PUT request carrying a part of a multipart upload, saved by a {@link #COMMIT}. */
+    public static final byte MULTIPART = 32;
+    /**
+     * Flag of a PUT or DELETE request forwarded by a node of a cluster to a replica of the file, which executes it
+     * without forwarding it further. The key of a replica request by name carries the id of the file too.
+     */
+    public static final byte REPLICA = 64;
+
+    public static final byte ENCODING_IDENTITY = 0;
+    public static final byte ENCODING_DEFLATE = 1;
+
+    public static final int MAX_NAME_LENGTH = 0xFFFF;
+    /** Length of a frame of the current version without its key. */
+    public static final int FIXED_HEADER_LENGTH = 5 + 8;
+    /** Length of the body of a {@link #RANGE} request and of the start of the body of a {@link #RESUMABLE} part. */
+    public static final int RANGE_LENGTH = 8 + 8;
+    /** Largest body of a {@link #BATCH} request, and largest content of the response to a batch. */
+    public static final int MAX_BATCH_LENGTH = 64 * 1024 * 1024;
+
+    private Protocol() {
+    }
+}
@@ -0,0 +1,210 @@
+package protocol;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The header of a binary request frame, as described in {@link Protocol}.
+ * A header is mutable so that a connection can decode all of its requests into the same instance.
+ * Headers are written in the current version and read in any version from {@link Protocol#MIN_VERSION}, with the
+ * layout of that version: frames older than {@link Protocol#FLAGS_VERSION} have no flags byte.
+ */
+public final class RequestHeader {
+    public byte version;
+    public byte opcode;
+    public byte mode;
+    public byte flags;
+    public String name;
+    public long id;
+    public long bodyLength;
+
+    private byte[] nameBytes = new byte[64];
+
+    /**
+     * Writes a request frame header without flags.
+     *
+     * @param output the stream to write the header to
+     * @param opcode the request opcode
+     * @param mode the lookup mode, which selects the key written
+     * @param name the file name, used with {@link Protocol#BY_NAME}
+     * @param id the file id, used with {@link Protocol#BY_ID} and with {@link Protocol#REPLICA}
+     * @param bodyLength the number of body bytes following the header
+     * @throws IOException if an error occurs while writing or the name is too long
+     */
+    public static void write(DataOutput output, byte opcode, byte mode, String name, long id, long bodyLength)
+            throws IOException {
+        write(output, opcode, mode, (byte) 0, name, id, bodyLength);
+    }
+
+    /**
+     * Writes a request frame header.
+     *
+     * @param output the stream to write the header to
+     * @param opcode the request opcode
+     * @param mode the lookup mode, which selects the key written
+     * @param flags the request flags, such as {@link Protocol#ACK_ON_RECEIPT}
+     * @param name the file name, used with {@link Protocol#BY_NAME}
+     * @param id the file id, used with {@link Protocol#BY_ID} and with {@link Protocol#REPLICA}
+     * @param bodyLength the number of body bytes following the header
+     * @throws IOException if an error occurs while writing or the name is too long
+     */
+    public static void write(DataOutput output, byte opcode, byte mode, byte flags, String name, long id,
+                             long bodyLength) throws IOException {
+
+        output.writeByte(Protocol.MAGIC);
+        output.writeByte(Protocol.VERSION);
+        output.writeByte(opcode);
+        output.writeByte(mode);
+        output.writeByte(flags);
+
+        if (mode == Protocol.BY_NAME) {
+            byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+            if (encoded.length > Protocol.MAX_NAME_LENGTH) {
+                throw new IOException("File name too long");
+            }
+            output.writeShort(encoded.length);
+            output.write(encoded);
+            if ((flags & Protocol.REPLICA) != 0) {
+                output.writeLong(id);
+            }
+        } else if (mode == Protocol.BY_ID) {
+            output.writeLong(id);
+        }
+
+        output.writeLong(bodyLength);
+    }
+
+    /**
+     * Reads a header from a blocking stream.
+     *
+     * @param input the stream to read the header from
+     * @throws IOException if an error occurs while reading or the frame is not valid
+     */
+    public void read(DataInput input) throws IOException {
+
+        byte frameVersion = checkPrefix(input.readByte(), input.readByte());
+        opcode = input.readByte();
+        mode = input.readByte();
+        flags = frameVersion >= Protocol.FLAGS_VERSION ? input.readByte() : 0;
+        version = frameVersion;
+        name = null;
+        id = 0;
+
+        if (mode == Protocol.BY_NAME) {
+            int length = input.readUnsignedShort();
+            if (nameBytes.length < length) {
+                nameBytes = new byte[length];
+            }
+            input.readFully(nameBytes, 0, length);
+            name = new String(nameBytes, 0, length, StandardCharsets.UTF_8);
+            if (carriesReplicaId(version, flags)) {
+                id = input.readLong();
+            }
+        } else if (mode == Protocol.BY_ID) {
+            id = input.readLong();
+        } else if (mode != Protocol.NONE) {
+            throw new StreamCorruptedException("Unknown lookup mode " + mode);
+        }
+
+        bodyLength = checkBodyLength(input.readLong());
+    }
+
+    /**
+     * Reads a header from the bytes received so far.
+     *
+     * @param buffer the received bytes, ready to be read
+     * @return true if the whole header was read and the buffer moved past it,
+     *         false if more bytes are needed, in which case the buffer is left untouched
+     * @throws IOException if the frame is not valid
+     */
+    public boolean read(ByteBuffer buffer) throws IOException {
+
+        int start = buffer.position();
+        if (buffer.remaining() < 2) {
+            return false;
+        }
+
+        byte frameVersion = checkPrefix(buffer.get(start), buffer.get(start + 1));
+        boolean hasFlags = frameVersion >= Protocol.FLAGS_VERSION;
+        int keyStart = start + (hasFlags ? 5 : 4);
+        int fixedLength = keyStart - start + 8;
+        if (buffer.remaining() < fixedLength) {
+            return false;
+        }
+
+        byte frameMode = buffer.get(start + 3);
+        byte frameFlags = hasFlags ? buffer.get(start + 4) : 0;
+        boolean replica = carriesReplicaId(frameVersion, frameFlags);
+        int keyLength;
+
+        if (frameMode == Protocol.BY_NAME) {
+            keyLength = 2 + Short.toUnsignedInt(buffer.getShort(keyStart)) + (replica ? 8 : 0);
+        } else if (frameMode == Protocol.BY_ID) {
+            keyLength = 8;
+        } else if (frameMode == Protocol.NONE) {
+            keyLength = 0;
+        } else {
+            throw new StreamCorruptedException("Unknown lookup mode " + frameMode);
+        }
+
+        if (buffer.remaining() < fixedLength + keyLength) {
+            return false;
+        }
+
+        version = frameVersion;
+        opcode = buffer.get(start + 2);
+        mode = frameMode;
+        flags = frameFlags;
+        name = null;
+        id = 0;
+
+        if (mode == Protocol.BY_NAME) {
+            int length = keyLength - 2 - (replica ? 8 : 0);
+            if (buffer.hasArray()) {
+                name = new String(buffer.array(), buffer.arrayOffset() + keyStart + 2, length,
+                        StandardCharsets.UTF_8);
+            } else {
+                byte[] bytes = new byte[length];
+                buffer.get(keyStart + 2, bytes);
+                name = new String(bytes, StandardCharsets.UTF_8);
+            }
+            if (replica) {
+                id = buffer.getLong(keyStart + 2 + length);
+            }
+        } else if (mode == Protocol.BY_ID) {
+            id = buffer.getLong(keyStart);
+        }
+
+        bodyLength = checkBodyLength(buffer.getLong(keyStart + keyLength));
+        buffer.position(start + fixedLength + keyLength);
+        return true;
+    }
+
+    /**
+     * @return the version of the frame, if the server reads frames of that version
+     */
+    private static byte checkPrefix(byte magic, byte version) throws StreamCorruptedException {
+        if (magic != Protocol.MAGIC) {
+            throw new StreamCorruptedException("Not a request frame");
+        }
+        if (version < Protocol.MIN_VERSION || version > Protocol.VERSION) {
+            throw new StreamCorruptedException("Unsupported protocol version " + version);
+        }
+        return version;
+    }
+
+    private static boolean carriesReplicaId(byte version, byte flags) {
+        return version >= Protocol.REPLICA_VERSION && (flags & Protocol.REPLICA) != 0;
+    }
+
+    private static long checkBodyLength(long bodyLength) throws StreamCorruptedException {
+        if (bodyLength < 0) {
+            throw new StreamCorruptedException("Negative body length " + bodyLength);
+        }
+        return bodyLength;
+    }
+}
@@ -0,0 +1,90 @@
+package server;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The limits protecting a server from more work than it can hold, so that a burst of clients or of large
+ * uploads slows the server down instead of exhausting its threads, memory or disk.
+ * <p>
+ * Connections are only accepted while fewer than the maximum are open: further clients wait in the listen
+ * backlog of the server socket until a connection closes, which paces them through TCP. The bodies of the
+ * requests being received or executed are counted in a budget of in-flight bytes, reserved as soon as the
+ * header announcing a body is decoded, before the body is received. A request whose body does not fit in the
+ * budget is rejected: its body is discarded as it arrives, without being stored, and it is answered with 503
+ * and the number of seconds to wait before retrying. A body larger than the whole budget is still admitted
+ * when no other body is in flight, so that any file can be uploaded on an idle server.
+ */
+class Admission {
+    private final Semaphore connections;
+    private final long maxInFlightBytes;
+    private final AtomicLong inFlightBytes = new AtomicLong();
+
+    /**
+     * @param maxConnections the largest number of connections open at once, 0 for no limit
+     * @param maxInFlightBytes the largest number of request body bytes in flight, 0 for no limit
+     */
+    Admission(int maxConnections, long maxInFlightBytes) {
+        this.connections = maxConnections > 0 ? new Semaphore(maxConnections) : null;
+        this.maxInFlightBytes = maxInFlightBytes;
+    }
+
+    /**
+     * Waits until a connection may be accepted.
+     *
+     * @param timeoutMillis the longest time to wait
+     * @return true if the connection may be accepted, it must then be released once closed
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    boolean awaitConnection(long timeoutMillis) throws InterruptedException {
+        return connections == null || connections.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Releases a connection admitted by {@link #awaitConnection(long)}, once it is closed.
+     */
+    void connectionClosed() {
+        if (connections != null) {
+            connections.release();
+        }
+    }
+
+    /**
+     * Reserves the in-flight bytes of a request body about to be received.
+     *
+     * @param bodyLength the length of the body
+     * @return true if the body fits in the budget, it must then be released once the request is executed
+     */
+    boolean reserve(long bodyLength) {
+        if (maxInFlightBytes <= 0 || bodyLength == 0) {
+            return true;
+        }
+        long current;
+        do {
+            current = inFlightBytes.get();
+            if (current > 0 && current + bodyLength > maxInFlightBytes) {
+                return false;
+            }
+        } while (!inFlightBytes.compareAndSet(current, current + bodyLength));
+        return true;
+    }
+
+    /**
+     * Releases the bytes reserved by {@link #reserve(long)}.
+     *
+     * @param bodyLength the length of the body
+     */
+    void release(long bodyLength) {
+        if (maxInFlightBytes > 0 && bodyLength > 0) {
+            inFlightBytes.addAndGet(-bodyLength);
+        }
+    }
+
+    /**
+     * @return the number of request body bytes currently in flight
+     */
+    long inFlightBytes() {
+        return inFlightBytes.get();
+    }
+}
@@ -0,0 +1,234 @@
+package server;
+
+import protocol.Protocol;
+import protocol.RequestHeader;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Executes the requests carried by a {@link Protocol#BATCH} request, so that a client handling many small files
+ * gets them saved, retrieved or deleted in one round trip.
+ * <p>
+ * The requests are read from the body of the batch, each with its own body held in memory, and executed on the
+ * batch executor by a few workers at a time. Requests naming the same file are executed by the same worker in
+ * the order they were sent, so that a file saved and then retrieved in one batch is found. Each response is
+ * encoded as soon as its request is executed, reading the content of a retrieved file into memory, and the
+ * responses are sent back in the order of the requests. A request that fails, or that is not executed because
+ * its worker failed or the batch was interrupted, gets 500 on its own, and the other responses are still sent.
+ */
+class BatchExecutor {
+    /** The largest number of requests of a batch executed at the same time. */
+    private static final int MAX_WORKERS = 16;
+
+    private final Server server;
+    private final ExecutorService executor;
+
+    /**
+     * @param server the server executing the requests of a batch
+     * @param executor the executor running the workers of the batches
+     */
+    BatchExecutor(Server server, ExecutorService executor) {
+        this.server = server;
+        this.executor = executor;
+    }
+
+    /**
+     * Executes the requests of a batch and gathers their responses.
+     *
+     * @param body the body of the batch, the number of requests followed by the requests
+     * @return the response to the batch, 413 if the batch is longer than {@link Protocol#MAX_BATCH_LENGTH}
+     * @throws IOException if the body cannot be received or does not hold the number of requests announced
+     */
+    Response execute(RequestBody body) throws IOException {
+        if (body.length() > Protocol.MAX_BATCH_LENGTH) {
+            body.discard();
+            return Response.status(413);
+        }
+
+        List<Request> requests = readRequests(body);
+        AtomicReferenceArray<ByteBuffer> encoded = new AtomicReferenceArray<>(requests.size());
+        AtomicLong budget = new AtomicLong(Protocol.MAX_BATCH_LENGTH);
+
+        Queue<List<Integer>> groups = new ConcurrentLinkedQueue<>(groupByFile(requests));
+        List<Future<?>> workers = new ArrayList<>();
+        for (int i = 0; i < Math.min(MAX_WORKERS, groups.size()); i++) {
+            workers.add(executor.submit(() -> {
+                List<Integer> group;
+                while ((group = groups.poll()) != null) {
+                    for (int index : group) {
+                        ByteBuffer response;
+                        try {
+                            response = encode(executeRequest(requests.get(index)), budget);
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                            response = Response.status(500).encodeHeader(false);
+                        }
+                        encoded.compareAndSet(index, null, response);
+                    }
+                }
+            }));
+        }
+
+        for (Future<?> worker : workers) {
+            try {
+                worker.get();
+            } catch (InterruptedException e) {
+                for (Future<?> running : workers) {
+                    running.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            }
+        }
+
+        int length = 0;
+        for (int i = 0; i < encoded.length(); i++) {
+            encoded.compareAndSet(i, null, Response.status(500).encodeHeader(false));
+            length += encoded.get(i).remaining();
+        }
+        ByteBuffer responses = ByteBuffer.allocate(length);
+        for (int i = 0; i < encoded.length(); i++) {
+            responses.put(encoded.get(i).duplicate());
+        }
+        return Response.batch(responses.flip(), encoded.length());
+    }
+
+    /**
+     * Reads the requests of a batch, each carrying its body read into memory.
+     *
+     * @param body the body of the batch
+     * @return the requests, in the order they were sent
+     * @throws IOException if the body cannot be received or does not hold the number of requests announced
+     */
+    private static List<Request> readRequests(RequestBody body) throws IOException {
+        DataInputStream input = new DataInputStream(body.stream());
+        int count = input.readInt();
+        if (count < 0 || count > body.length() / Protocol.FIXED_HEADER_LENGTH) {
+            throw new StreamCorruptedException("Invalid batch request count " + count);
+        }
+
+        List<Request> requests = new ArrayList<>(count);
+        RequestHeader header = new RequestHeader();
+        for (int i = 0; i < count; i++) {
+            header.read(input);
+            if (header.bodyLength > body.length()) {
+                throw new EOFException("Batch request body longer than the batch");
+            }
+            byte[] content = new byte[(int) header.bodyLength];
+            input.readFully(content);
+            byte[] buffer = new byte[Math.max(1, Math.min(content.length, Server.TRANSFER_BUFFER_SIZE))];
+            requests.add(Request.fromHeader(header,
+                    new StreamBody(new ByteArrayInputStream(content), content.length, buffer)));
+        }
+        return requests;
+    }
+
+    /**
+     * Groups the requests naming the same file, so that they are executed one after the other.
+     *
+     * @param requests the requests of a batch
+     * @return the indexes of the requests of each group, in the order they were sent
+     */
+    private static List<List<Integer>> groupByFile(List<Request> requests) {
+        Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            Request request = requests.get(i);
+            String key;
+            if (request.mode == Protocol.BY_NAME) {
+                key = "name:" + request.name;
+            } else if (request.mode == Protocol.BY_ID) {
+                key = "id:" + request.id;
+            } else {
+                key = "request:" + i;
+            }
+            groups.computeIfAbsent(key, file -> new ArrayList<>()).add(i);
+        }
+        return new ArrayList<>(groups.values());
+    }
+
+    /**
+     * Executes one request of a batch. Requests that cannot be part of a batch, exit requests and nested
+     * batches, get 400.
+     *
+     * @param request a request of the batch
+     * @return the response to the request
+     */
+    private Response executeRequest(Request request) {
+        try {
+            if (request.opcode == Protocol.EXIT || request.opcode == Protocol.BATCH) {
+                return Response.status(400);
+            }
+            return server.execute(request);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return Response.status(500);
+        } finally {
+            try {
+                request.body.discard();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Encodes a response the way it would be sent alone, reading the content it carries into memory.
+     * A content that would make the response to the batch longer than {@link Protocol#MAX_BATCH_LENGTH}
+     * is replaced by 413, so that the client retrieves that file on its own.
+     *
+     * @param response the response to a request of the batch, closed once encoded
+     * @param budget the number of bytes the response to the batch may still grow by
+     * @return the encoded response
+     */
+    private static ByteBuffer encode(Response response, AtomicLong budget) {
+        try {
+            if (response.hasContent() && budget.addAndGet(-response.fileSize) < 0) {
+                budget.addAndGet(response.fileSize);
+                response.close();
+                response = Response.status(413);
+            }
+
+            ByteBuffer header = response.encodeHeader(false);
+            if (!response.hasContent()) {
+                return header;
+            }
+            ByteBuffer encoded = ByteBuffer.allocate(header.remaining() + (int) response.fileSize).put(header);
+            if (response.content != null) {
+                encoded.put(response.content.duplicate());
+            } else {
+                long position = response.fileOffset;
+                while (encoded.hasRemaining()) {
+                    int read = response.file.read(encoded, position);
+                    if (read < 0) {
+                        throw new EOFException("File shorter than announced");
+                    }
+                    position += read;
+                }
+            }
+            return encoded.flip();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return Response.status(500).encodeHeader(false);
+        } finally {
+            response.close();
+        }
+    }
+}
@@ -0,0 +1,482 @@
+package server;
+
+import protocol.Protocol;
+import protocol.RequestHeader;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks of the hot paths of the server, measured the way JMH measures throughput: each benchmark runs its
+ * operation in a loop for a fixed time per iteration, first for warmup iterations whose results are dropped, then
+ * for the measured iterations. The score is the mean number of operations per second over the measured
+ * iterations, given with its standard deviation and with the 50th and 99th percentiles of the operation latency.
+ * <p>
+ * The benchmarks cover the decoding of binary and legacy requests, GET by name and by id against indexes of
+ * several sizes, durable PUT by payload size, saving and reading the id map by map size, and PUT followed by GET
+ * over loopback connections by number of concurrent clients. The servers they need are started in a scratch
+ * directory, which is deleted at the end, and on the port of the server, which must be free.
+ * <p>
+ * Accepted options: {@code --warmup N} and {@code --iterations N} to set the number of warmup and measured
+ * iterations (2 and 5 by default), {@code --time SECONDS} to set the length of an iteration (1 by default),
+ * {@code --only PREFIX} to run the benchmarks whose name starts with the prefix and {@code --csv FILE} to also
+ * write the results to a CSV file, to be compared with the results of another run. The server options, such as
+ * {@code --transport nio} or {@code --cache-size 0}, apply to the servers started by the benchmarks.
+ */
+public class Benchmarks {
+    private static final int[] INDEX_SIZES = {1_000, 100_000};
+    private static final int[] PAYLOAD_SIZES = {1024, 64 * 1024, 1024 * 1024};
+    private static final int[] MAP_SIZES = {10_000, 1_000_000};
+    private static final int[] CONCURRENCY = {1, 4, 16};
+    private static final int STORED_FILE_SIZE = 100;
+    private static final int EXCHANGED_FILE_SIZE = 4 * 1024;
+
+    private final ServerOptions serverOptions;
+    private final List<Result> results = new ArrayList<>();
+    private int warmupIterations = 2;
+    private int iterations = 5;
+    private long iterationNanos = 1_000_000_000L;
+    private String only = "";
+    private String csvFile;
+    private Path scratch;
+
+    /**
+     * An operation measured by a benchmark, run by a single thread.
+     */
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    /**
+     * Creates the operation run by each thread of a benchmark, with the state it does not share.
+     */
+    private interface OperationFactory {
+        Operation create() throws Exception;
+    }
+
+    /**
+     * The score of a benchmark.
+     */
+    private static final class Result {
+        final String benchmark;
+        final String parameter;
+        final double score;
+        final double error;
+        final long p50Micros;
+        final long p99Micros;
+
+        Result(String benchmark, String parameter, double score, double error, long p50Micros, long p99Micros) {
+            this.benchmark = benchmark;
+            this.parameter = parameter;
+            this.score = score;
+            this.error = error;
+            this.p50Micros = p50Micros;
+            this.p99Micros = p99Micros;
+        }
+    }
+
+    private Benchmarks(ServerOptions serverOptions) {
+        this.serverOptions = serverOptions;
+    }
+
+    /**
+     * Tells whether a benchmark was selected by the {@code --only} option, all of them being selected without it.
+     *
+     * @param benchmark the name of the benchmark
+     * @return true if the benchmark was selected
+     */
+    private boolean selected(String benchmark) {
+        return benchmark.startsWith(only) || only.startsWith(benchmark);
+    }
+
+    /**
+     * Runs an operation for the warmup and measured iterations and records its score.
+     *
+     * @param benchmark the name of the benchmark
+     * @param parameter the value of the parameter of the benchmark, "-" if it has none
+     * @param threads the number of threads running the operation at the same time
+     * @param factory creates the operation of each thread
+     * @throws Exception if the operation fails
+     */
+    private void measure(String benchmark, String parameter, int threads, OperationFactory factory) throws Exception {
+        System.out.println("# " + benchmark + " (" + parameter + ")");
+        Operation[] operations = new Operation[threads];
+        for (int i = 0; i < threads; i++) {
+            operations[i] = factory.create();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        double[] scores = new double[iterations];
+        LatencyHistogram latencies = new LatencyHistogram();
+        try {
+            for (int iteration = 0; iteration < warmupIterations + iterations; iteration++) {
+                boolean warmup = iteration < warmupIterations;
+                LatencyHistogram iterationLatencies = warmup ? new LatencyHistogram() : latencies;
+                LongAdder count = new LongAdder();
+                long start = System.nanoTime();
+                long deadline = start + iterationNanos;
+
+                List<Future<?>> running = new ArrayList<>();
+                for (Operation operation : operations) {
+                    running.add(executor.submit(() -> {
+                        long now;
+                        while ((now = System.nanoTime()) < deadline) {
+                            operation.run();
+                            iterationLatencies.record(System.nanoTime() - now);
+                            count.increment();
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> thread : running) {
+                    thread.get();
+                }
+
+                double score = count.sum() / ((System.nanoTime() - start) / 1e9);
+                System.out.println(String.format(Locale.ROOT, "%s %d: %.1f ops/s", warmup ? "Warmup iteration"
+                        : "Iteration", warmup ? iteration + 1 : iteration - warmupIterations + 1, score));
+                if (!warmup) {
+                    scores[iteration - warmupIterations] = score;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        double mean = 0;
+        for (double score : scores) {
+            mean += score / scores.length;
+        }
+        double variance = 0;
+        for (double score : scores) {
+            variance += (score - mean) * (score - mean) / Math.max(1, scores.length - 1);
+        }
+        results.add(new Result(benchmark, parameter, mean, Math.sqrt(variance),
+                latencies.percentile(0.5) / 1000, latencies.percentile(0.99) / 1000));
+    }
+
+    /**
+     * Decodes a binary GET frame and a legacy GET request from memory.
+     */
+    private void benchmarkDecoding() throws Exception {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        RequestHeader.write(new DataOutputStream(frame), Protocol.GET, Protocol.BY_NAME, "benchmark-file.txt", 0, 0);
+        ByteBuffer frameBytes = ByteBuffer.wrap(frame.toByteArray());
+
+        ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(legacy)) {
+            output.writeObject(new ArrayList<>(List.of("GET", "BY_NAME", "benchmark-file.txt")));
+        }
+        ByteBuffer legacyBytes = ByteBuffer.wrap(legacy.toByteArray());
+
+        if (selected("decode.frame")) {
+            measure("decode.frame", "-", 1, () -> {
+                FrameRequestDecoder decoder = new FrameRequestDecoder();
+                return () -> decoder.decode(frameBytes.duplicate());
+            });
+        }
+        if (selected("decode.legacy")) {
+            Admission admission = new Admission(0, 0);
+            measure("decode.legacy", "-", 1,
+                    () -> () -> new LegacyRequestDecoder(0, admission).decode(legacyBytes.duplicate()));
+        }
+    }
+
+    /**
+     * Retrieves random files by name and by id from a server storing the given number of files.
+     */
+    private void benchmarkGet() throws Exception {
+        for (int files : INDEX_SIZES) {
+            if (!selected("get.byName") && !selected("get.byId")) {
+                return;
+            }
+            Server server = startServer("get-" + files, files);
+            try {
+                if (selected("get.byName")) {
+                    measure("get.byName", "files=" + files, 1, () -> () -> {
+                        String name = storedFileName(ThreadLocalRandom.current().nextInt(files));
+                        expect(200, get(server, Protocol.BY_NAME, name, 0));
+                    });
+                }
+                if (selected("get.byId")) {
+                    measure("get.byId", "files=" + files, 1, () -> () -> {
+                        long id = 1 + ThreadLocalRandom.current().nextInt(files);
+                        expect(200, get(server, Protocol.BY_ID, null, id));
+                    });
+                }
+            } finally {
+                stopServer(server);
+            }
+        }
+    }
+
+    /**
+     * Saves new files of each payload size, answered once they are durable.
+     */
+    private void benchmarkPut() throws Exception {
+        if (!selected("put")) {
+            return;
+        }
+        Server server = startServer("put", 0);
+        try {
+            AtomicLong next = new AtomicLong();
+            for (int size : PAYLOAD_SIZES) {
+                byte[] payload = new byte[size];
+                ThreadLocalRandom.current().nextBytes(payload);
+                measure("put", "bytes=" + size, 1, () -> {
+                    byte[] buffer = new byte[Server.TRANSFER_BUFFER_SIZE];
+                    return () -> {
+                        RequestHeader header = new RequestHeader();
+                        header.opcode = Protocol.PUT;
+                        header.mode = Protocol.BY_NAME;
+                        header.name = "put-" + next.incrementAndGet();
+                        header.bodyLength = size;
+                        RequestBody body = new StreamBody(new ByteArrayInputStream(payload), size, buffer);
+                        Response response = server.execute(Request.fromHeader(header, body));
+                        response.close();
+                        expect(200, response.status);
+                    };
+                });
+            }
+        } finally {
+            stopServer(server);
+        }
+    }
+
+    /**
+     * Writes and reads id map snapshots of each size, as the server does when it saves and loads its id map.
+     */
+    private void benchmarkIdMap() throws Exception {
+        for (int size : MAP_SIZES) {
+            if (!selected("idmap.save") && !selected("idmap.read")) {
+                return;
+            }
+            Map<String, Long> entries = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                entries.put(storedFileName(i), (long) i + 1);
+            }
+            Path directory = Files.createDirectories(scratch.resolve("idmap-" + size));
+            Path snapshot = directory.resolve("index-0.bin");
+            IndexSnapshot.write(snapshot, null, entries, size + 1, 0);
+
+            if (selected("idmap.save")) {
+                measure("idmap.save", "entries=" + size, 1, () -> () ->
+                        IndexSnapshot.write(directory.resolve("index.bin.tmp"), null, entries, size + 1, 0));
+            }
+            if (selected("idmap.read")) {
+                measure("idmap.read", "entries=" + size, 1, () -> () -> {
+                    FileIndex index = new FileIndex();
+                    IndexSnapshot loaded = IndexSnapshot.open(snapshot);
+                    index.load(loaded);
+                    if (loaded.count() != size) {
+                        throw new IOException("Id map of " + loaded.count() + " entries read");
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Saves a file then retrieves it over loopback connections, with each number of concurrent clients.
+     */
+    private void benchmarkEndToEnd() throws Exception {
+        if (!selected("e2e.putGet")) {
+            return;
+        }
+        Server server = startServer("e2e", 0);
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            AtomicLong next = new AtomicLong();
+            byte[] payload = new byte[EXCHANGED_FILE_SIZE];
+            ThreadLocalRandom.current().nextBytes(payload);
+
+            for (int clients : CONCURRENCY) {
+                measure("e2e.putGet", "clients=" + clients, clients, () -> {
+                    Socket socket = new Socket("127.0.0.1", server.PORT);
+                    socket.setTcpNoDelay(true);
+                    synchronized (sockets) {
+                        sockets.add(socket);
+                    }
+                    DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    DataOutputStream output = new DataOutputStream(
+                            new BufferedOutputStream(socket.getOutputStream()));
+                    byte[] content = new byte[EXCHANGED_FILE_SIZE];
+
+                    return () -> {
+                        String name = "e2e-" + next.incrementAndGet();
+                        RequestHeader.write(output, Protocol.PUT, Protocol.BY_NAME, name, 0, payload.length);
+                        output.write(payload);
+                        output.flush();
+                        expect(200, input.readInt());
+                        input.readLong();
+
+                        RequestHeader.write(output, Protocol.GET, Protocol.BY_NAME, name, 0, 0);
+                        output.flush();
+                        expect(200, input.readInt());
+                        input.readFully(content, 0, (int) input.readLong());
+                    };
+                });
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            stopServer(server);
+        }
+    }
+
+    /**
+     * Executes a GET on the server without a connection.
+     *
+     * @return the status of the response
+     */
+    private static int get(Server server, byte mode, String name, long id) {
+        RequestHeader header = new RequestHeader();
+        header.opcode = Protocol.GET;
+        header.mode = mode;
+        header.name = name;
+        header.id = id;
+        Response response = server.execute(Request.fromHeader(header, null));
+        response.close();
+        return response.status;
+    }
+
+    private static void expect(int expected, int status) throws IOException {
+        if (status != expected) {
+            throw new IOException("The server answered " + status + " instead of " + expected);
+        }
+    }
+
+    private static String storedFileName(int i) {
+        return String.format("file-%08d.txt", i);
+    }
+
+    /**
+     * Starts a server in a directory of its own, holding the given number of files, and waits until it accepts
+     * connections. The files get the ids 1 to the number of files when the server rebuilds its id map.
+     *
+     * @param name the name of the directory
+     * @param files the number of files stored before the server starts
+     * @return the running server
+     * @throws Exception if the directory cannot be set up or the server does not start
+     */
+    private Server startServer(String name, int files) throws Exception {
+        Path directory = scratch.resolve(name);
+        Path data = Files.createDirectories(directory.resolve("src").resolve("server").resolve("data"));
+        Files.createDirectories(directory.resolve("src").resolve("server").resolve("ID map"));
+        byte[] content = new byte[STORED_FILE_SIZE];
+        for (int i = 0; i < files; i++) {
+            Files.write(data.resolve(storedFileName(i)), content);
+        }
+
+        System.setProperty("user.dir", directory.toString());
+        Server server = serverOptions.transport.equals("nio") ? new NioServer(serverOptions)
+                : new Server(serverOptions);
+        server.start();
+
+        long deadline = System.nanoTime() + 60_000_000_000L;
+        while (true) {
+            try {
+                new Socket("127.0.0.1", server.PORT).close();
+                return server;
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline || !server.isAlive()) {
+                    throw new IOException("The server did not start", e);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static void stopServer(Server server) throws Exception {
+        server.shutdown();
+        server.join();
+    }
+
+    /**
+     * Prints the results as a table, and writes them to the CSV file if one was asked for.
+     */
+    private void report() throws IOException {
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "%-14s %-16s %5s %4s %14s %12s %6s %10s %10s", "Benchmark",
+                "(param)", "Mode", "Cnt", "Score", "Error", "Units", "p50 us", "p99 us"));
+        for (Result result : results) {
+            System.out.println(String.format(Locale.ROOT, "%-14s %-16s %5s %4d %14.1f +- %9.1f %6s %10d %10d",
+                    result.benchmark, result.parameter, "thrpt", iterations, result.score, result.error, "ops/s",
+                    result.p50Micros, result.p99Micros));
+        }
+
+        if (csvFile != null) {
+            try (PrintWriter csv = new PrintWriter(Files.newBufferedWriter(Path.of(csvFile)))) {
+                csv.println("benchmark,param,score,error,units,p50_us,p99_us");
+                for (Result result : results) {
+                    csv.println(String.format(Locale.ROOT, "%s,%s,%.3f,%.3f,ops/s,%d,%d", result.benchmark,
+                            result.parameter, result.score, result.error, result.p50Micros, result.p99Micros));
+                }
+            }
+            System.out.println("Results written to " + csvFile + ".");
+        }
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * Runs the benchmarks.
+     *
+     * @param args the options of the benchmarks followed by the options of the servers they start
+     * @throws Exception if a benchmark fails
+     */
+    public static void main(String[] args) throws Exception {
+        Benchmarks benchmarks = new Benchmarks(ServerOptions.parse(args));
+
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("--warmup")) {
+                benchmarks.warmupIterations = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--iterations")) {
+                benchmarks.iterations = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (args[i].equals("--time")) {
+                benchmarks.iterationNanos = (long) (Double.parseDouble(args[++i]) * 1e9);
+            } else if (args[i].equals("--only")) {
+                benchmarks.only = args[++i];
+            } else if (args[i].equals("--csv")) {
+                benchmarks.csvFile = args[++i];
+            }
+        }
+
+        String userDir = System.getProperty("user.dir");
+        benchmarks.scratch = Files.createTempDirectory("fileserver-benchmarks");
+        try {
+            benchmarks.benchmarkDecoding();
+            benchmarks.benchmarkGet();
+            benchmarks.benchmarkPut();
+            benchmarks.benchmarkIdMap();
+            benchmarks.benchmarkEndToEnd();
+        } finally {
+            System.setProperty("user.dir", userDir);
+            deleteRecursively(benchmarks.scratch);
+        }
+        benchmarks.report();
+    }
+}
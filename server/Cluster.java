@@ -0,0 +1,621 @@
+package server;
+
+import protocol.HashRing;
+import protocol.Protocol;
+import protocol.RequestHeader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The node of a cluster a server is, which spreads the files over the nodes with a {@link HashRing} and keeps
+ * each file on several replicas.
+ * <p>
+ * The node a file is saved on gives it an id carrying the slot of its name, and forwards the file with that id
+ * to each of its replicas, itself included when it is one of them, as {@link Protocol#REPLICA} requests sent at
+ * the same time. The save succeeds once the write quorum of replicas saved the file, the other replicas still
+ * receiving it in the background. A replica that fails to save it, or cannot be reached, is sent the file again
+ * every {@link #REPAIR_DELAY_SECONDS} seconds, the spooled body being kept until every replica has the file or
+ * {@link #MAX_REPAIR_ATTEMPTS} attempts failed. Before each attempt a replica that saved the file is asked whether
+ * it still has the id, and the repair is given up once the file was deleted or replaced, so that it is not brought
+ * back on a lagging replica. A save that misses the quorum is undone by id on the replicas that may have saved
+ * it, so that a file saved under the same name in the meantime is left alone.
+ * Only the other nodes of the cluster may send {@link Protocol#REPLICA} requests, see {@link #isPeer}.
+ * Deletes are forwarded to every replica of the file, found from its name or from the slot of its id.
+ * Retrieving a file does not involve the other nodes: clients send it to a replica of the file. Resumable and
+ * multipart uploads are not replicated, so a node of a cluster refuses them.
+ */
+class Cluster {
+    /** The start of the clock of the id sequences, 2024-01-01. */
+    private static final long EPOCH_MILLIS = 1_704_067_200_000L;
+    /** The ids a node can give out per millisecond before its sequence runs ahead of the clock. */
+    private static final int SEQUENCE_SHIFT = 7;
+    private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+    private static final int READ_TIMEOUT_MILLIS = 60_000;
+    private static final long MAX_IDLE_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final int REPAIR_DELAY_SECONDS = 5;
+    private static final int MAX_REPAIR_ATTEMPTS = 720;
+    /** The file of the id map directory keeping the highest sequence this node may have given out. */
+    private static final String SEQUENCE_FILE_NAME = "cluster-sequence.bin";
+    /** The sequences reserved at once, saved before any of them is given out. */
+    private static final long RESERVED_SEQUENCES = 1L << 24;
+    /** The status of a request a replica could not be reached for. */
+    private static final int UNREACHABLE = -1;
+    /** The status of a request a replica has not answered yet. */
+    private static final int PENDING = 0;
+
+    private final Server server;
+    private final HashRing ring;
+    private final int self;
+    private final int writeQuorum;
+    private final Peer[] peers;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService repairExecutor;
+    private final AtomicLong lastSequence = new AtomicLong();
+    private volatile long reservedSequence = -1;
+    private FileChannel sequenceFile;
+
+    /**
+     * A node of the cluster and the idle connections to it.
+     */
+    private static final class Peer {
+        final InetSocketAddress address;
+        final ConcurrentLinkedDeque<PeerConnection> idle = new ConcurrentLinkedDeque<>();
+
+        Peer(String node) {
+            int colon = node.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Invalid node address " + node);
+            }
+            address = new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+        }
+
+        /**
+         * @return an idle connection that has not been idle for too long, or a new connection
+         * @throws IOException if a new connection cannot be established
+         */
+        PeerConnection acquire() throws IOException {
+            PeerConnection connection;
+            while ((connection = idle.pollLast()) != null) {
+                if (System.nanoTime() - connection.lastUsed < MAX_IDLE_NANOS) {
+                    return connection;
+                }
+                connection.close();
+            }
+
+            Socket socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+                socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+                return new PeerConnection(socket);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        void release(PeerConnection connection) {
+            connection.lastUsed = System.nanoTime();
+            idle.addLast(connection);
+        }
+    }
+
+    /**
+     * A connection to another node and its buffered streams.
+     */
+    private static final class PeerConnection {
+        final Socket socket;
+        final DataInputStream input;
+        final DataOutputStream output;
+        long lastUsed;
+
+        PeerConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),
+                    Server.TRANSFER_BUFFER_SIZE));
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @param server the server this node executes its own replica requests on
+     * @param options the server settings, with the cluster options set
+     * @param executor the executor sending the requests to the replicas
+     * @throws IllegalArgumentException if the cluster options are invalid or do not include this node
+     */
+    Cluster(Server server, ServerOptions options, ExecutorService executor) {
+        List<String> nodes = HashRing.parseNodes(options.cluster);
+        int replicas = Math.min(options.replicas, nodes.size());
+        this.server = server;
+        this.ring = new HashRing(nodes, replicas);
+        this.self = selfIndex(nodes, options);
+        this.writeQuorum = options.writeQuorum > 0 ? Math.min(options.writeQuorum, replicas) : replicas / 2 + 1;
+        this.peers = new Peer[nodes.size()];
+        for (int i = 0; i < peers.length; i++) {
+            peers[i] = new Peer(nodes.get(i));
+        }
+        this.executor = executor;
+        this.repairExecutor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "replica-repair");
+            thread.setDaemon(true);
+            return thread;
+        });
+        System.out.println("Node " + nodes.get(self) + " of a cluster of " + nodes.size() + ", " + replicas
+                + " replicas per file, write quorum " + writeQuorum);
+    }
+
+    /**
+     * Finds this node in the cluster, by its address if given, or else by its port.
+     */
+    private static int selfIndex(List<String> nodes, ServerOptions options) {
+        if (options.node != null) {
+            int index = nodes.indexOf(options.node);
+            if (index < 0) {
+                throw new IllegalArgumentException("Node " + options.node + " is not part of the cluster");
+            }
+            return index;
+        }
+        int found = -1;
+        for (int i = 0; i < nodes.size(); i++) {
+            if (nodes.get(i).endsWith(":" + options.port)) {
+                if (found >= 0) {
+                    throw new IllegalArgumentException("Several nodes use port " + options.port + ", set --node");
+                }
+                found = i;
+            }
+        }
+        if (found < 0) {
+            throw new IllegalArgumentException("No node of the cluster uses port " + options.port);
+        }
+        return found;
+    }
+
+    /**
+     * Opens the file keeping the highest sequence this node may have given out, and moves the sequence past it,
+     * so that no id is given out twice after a restart, even if the clock stepped back meanwhile or the sequence
+     * ran ahead of it. It must be called before {@link #newId}.
+     *
+     * @param directory the id map directory of the server
+     * @throws IOException if the file cannot be opened, or does not hold a sequence
+     */
+    synchronized void openSequence(Path directory) throws IOException {
+        Path path = directory.resolve(SEQUENCE_FILE_NAME);
+        FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            long size = file.size();
+            if (size == 0) {
+                // no id was given out before the first reservation is on disk
+                WritePipeline.syncDirectory(directory);
+            } else if (size == Long.BYTES) {
+                ByteBuffer saved = ByteBuffer.allocate(Long.BYTES);
+                while (saved.hasRemaining() && file.read(saved, saved.position()) >= 0) {
+                    // the file is read whole, it is only eight bytes long
+                }
+                long reserved = saved.getLong(0);
+                lastSequence.accumulateAndGet(reserved, Math::max);
+                reservedSequence = reserved;
+            } else {
+                throw new IOException("Invalid sequence file " + path);
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        sequenceFile = file;
+    }
+
+    /**
+     * Gives out the id of a file saved in the cluster. The sequence of a node follows its clock, and never goes
+     * below the sequences reserved before a restart. Sequences are reserved {@link #RESERVED_SEQUENCES} at a time,
+     * the end of the reservation being forced to disk before any sequence of it is given out.
+     *
+     * @param fileName the name of the file
+     * @return an id carrying the slot of the file, unique in the cluster
+     * @throws IOException if the sequence needs a new reservation and it cannot be saved
+     */
+    long newId(String fileName) throws IOException {
+        long now = (System.currentTimeMillis() - EPOCH_MILLIS) << SEQUENCE_SHIFT;
+        long sequence = lastSequence.accumulateAndGet(now, (last, time) -> Math.max(last + 1, time));
+        if (sequence > reservedSequence) {
+            reserve(sequence);
+        }
+        return HashRing.encodeId(HashRing.slotOf(fileName), self, sequence);
+    }
+
+    private synchronized void reserve(long sequence) throws IOException {
+        if (sequence <= reservedSequence) {
+            return;
+        }
+        if (sequenceFile == null) {
+            throw new IOException("The sequence file of the node is not open");
+        }
+        long reserved = sequence + RESERVED_SEQUENCES;
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES).putLong(0, reserved);
+        while (buffer.hasRemaining()) {
+            sequenceFile.write(buffer, buffer.position());
+        }
+        sequenceFile.force(false);
+        reservedSequence = reserved;
+    }
+
+    /**
+     * @param address the address a connection comes from
+     * @return true if the address is the one of a node of the cluster, which may send {@link Protocol#REPLICA}
+     * requests
+     */
+    boolean isPeer(InetAddress address) {
+        for (Peer peer : peers) {
+            if (address != null && address.equals(peer.address.getAddress())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Saves a file on its replicas. The body is spooled to the uploads directory first, so that it can be sent
+     * to every replica at the same time, and later to the replicas that missed it.
+     *
+     * @param request the PUT request received from a client
+     * @param fileName the name of the file
+     * @return the response to the client: the id of the file once the write quorum saved it, 403 if the name is
+     * taken, or 503 if too few replicas could save it
+     * @throws IOException if the body cannot be received
+     */
+    Response put(Request request, String fileName) throws IOException {
+        int[] replicas = ring.replicasOf(fileName);
+        long id = newId(fileName);
+        byte flags = (byte) (request.flags & (Protocol.ACK_ON_RECEIPT | Protocol.COMPRESSED_BODY));
+        long length = request.body.length();
+        Path spooled = server.newStagingFile();
+        request.body.saveTo(spooled);
+
+        List<CompletableFuture<Integer>> sends = new ArrayList<>();
+        for (int replica : replicas) {
+            sends.add(send(() -> putOn(replica, flags, fileName, id, spooled, length)));
+        }
+
+        int[] statuses = awaitQuorum(sends);
+        if (count(statuses, 200) >= writeQuorum) {
+            allOf(sends).thenRun(() -> {
+                Repair repair = new Repair(flags, fileName, id, spooled, length);
+                for (int i = 0; i < replicas.length; i++) {
+                    int status = sends.get(i).join();
+                    if (missed(status)) {
+                        repair.lagging.add(replicas[i]);
+                    } else if (status == 200) {
+                        repair.saved.add(replicas[i]);
+                    }
+                }
+                repair.schedule();
+            });
+            return Response.saved(id);
+        }
+
+        deleteSpooled(spooled);
+        for (int i = 0; i < replicas.length; i++) {
+            if (statuses[i] == 200 || statuses[i] == UNREACHABLE) {
+                int replica = replicas[i];
+                send(() -> deleteOn(replica, Protocol.BY_ID, fileName, id));
+            }
+        }
+        for (int status : statuses) {
+            if (status >= 400 && status < 500) {
+                return Response.status(status);
+            }
+        }
+        return server.retryLater(request);
+    }
+
+    /**
+     * Deletes a file from its replicas.
+     *
+     * @param request the DELETE request received from a client, by name or by id
+     * @return the response to the client: 200 if a replica deleted the file, 403 if none had it, or 503 if fewer
+     * replicas than the write quorum answered
+     */
+    Response delete(Request request) {
+        int[] replicas = request.mode == Protocol.BY_ID
+                ? ring.replicasOfId(request.id)
+                : ring.replicasOf(request.name);
+
+        List<CompletableFuture<Integer>> sends = new ArrayList<>();
+        for (int replica : replicas) {
+            sends.add(send(() -> deleteOn(replica, request.mode, request.name, request.id)));
+        }
+        int[] statuses = sends.stream().mapToInt(CompletableFuture::join).toArray();
+        if (count(statuses, 200) + count(statuses, 403) < writeQuorum) {
+            return server.retryLater(request);
+        }
+        return Response.status(count(statuses, 200) > 0 ? 200 : 403);
+    }
+
+    /**
+     * Stops sending requests to the replicas and closes the connections to the other nodes and the sequence file.
+     * The repairs still pending are given up, and their spooled bodies are left in the uploads directory.
+     */
+    void close() {
+        repairExecutor.shutdownNow();
+        synchronized (this) {
+            if (sequenceFile != null) {
+                try {
+                    sequenceFile.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                sequenceFile = null;
+            }
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Peer peer : peers) {
+            PeerConnection connection;
+            while ((connection = peer.idle.pollLast()) != null) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * A request to a replica, returning the status of its response.
+     */
+    private interface ReplicaRequest {
+        int send();
+    }
+
+    /**
+     * Sends a request to a replica on the executor of the cluster.
+     *
+     * @return a future completed with the status of the response, {@link #UNREACHABLE} if the request failed
+     */
+    private CompletableFuture<Integer> send(ReplicaRequest request) {
+        try {
+            return CompletableFuture.supplyAsync(request::send, executor).exceptionally(e -> {
+                e.printStackTrace();
+                return UNREACHABLE;
+            });
+        } catch (RuntimeException e) {
+            return CompletableFuture.completedFuture(UNREACHABLE);
+        }
+    }
+
+    /**
+     * Waits until the write quorum of replicas saved the file, or until every replica answered.
+     *
+     * @return the statuses of the replicas, {@link #PENDING} for those that did not answer yet
+     */
+    private int[] awaitQuorum(List<CompletableFuture<Integer>> sends) {
+        CompletableFuture<Void> reached = new CompletableFuture<>();
+        AtomicInteger saved = new AtomicInteger();
+        for (CompletableFuture<Integer> send : sends) {
+            send.thenAccept(status -> {
+                if (status == 200 && saved.incrementAndGet() >= writeQuorum) {
+                    reached.complete(null);
+                }
+            });
+        }
+        CompletableFuture.anyOf(reached, allOf(sends)).join();
+        return sends.stream().mapToInt(send -> send.getNow(PENDING)).toArray();
+    }
+
+    /**
+     * The replicas that missed a file saved by the write quorum, and the spooled body sent to them again.
+     */
+    private final class Repair implements Runnable {
+        final List<Integer> lagging = new ArrayList<>();
+        /** The replicas that saved the file, asked whether they still have it before each attempt. */
+        final List<Integer> saved = new ArrayList<>();
+        final byte flags;
+        final String fileName;
+        final long id;
+        final Path spooled;
+        final long length;
+        int attempts;
+
+        Repair(byte flags, String fileName, long id, Path spooled, long length) {
+            this.flags = flags;
+            this.fileName = fileName;
+            this.id = id;
+            this.spooled = spooled;
+            this.length = length;
+        }
+
+        /**
+         * Sends the file again after a delay if replicas are still lagging, or deletes the spooled body.
+         */
+        void schedule() {
+            if (lagging.isEmpty()) {
+                deleteSpooled(spooled);
+            } else if (attempts >= MAX_REPAIR_ATTEMPTS) {
+                System.out.println("File " + fileName + " could not be repaired on nodes " + lagging);
+                deleteSpooled(spooled);
+            } else {
+                try {
+                    repairExecutor.schedule(this, REPAIR_DELAY_SECONDS, TimeUnit.SECONDS);
+                } catch (RejectedExecutionException e) {
+                    // the node is closing, the repair is given up
+                }
+            }
+        }
+
+        /**
+         * Sends the file again to the lagging replicas, unless it was deleted or replaced since it was saved.
+         * If no replica that saved the file can tell whether it still has it, the attempt is skipped.
+         */
+        @Override
+        public void run() {
+            attempts++;
+            int found = UNREACHABLE;
+            for (int i = 0; i < saved.size() && found != 206 && found != 404; i++) {
+                found = findOn(saved.get(i), id);
+            }
+            if (found == 404) {
+                System.out.println("File " + fileName + " was deleted or replaced, its repair is given up");
+                lagging.clear();
+            } else if (found == 206) {
+                lagging.removeIf(replica -> !missed(putOn(replica, flags, fileName, id, spooled, length)));
+            }
+            schedule();
+        }
+    }
+
+    /**
+     * @return true if a replica answered a PUT with a status meaning it may save the file when sent again: it
+     * could not be reached, was overloaded or failed to store the file. A replica answering 403 already has a
+     * file of that name, the one sent before if its answer was lost.
+     */
+    private static boolean missed(int status) {
+        return status == UNREACHABLE || status >= 500;
+    }
+
+    private int putOn(int replica, byte flags, String fileName, long id, Path spooled, long length) {
+        if (replica == self) {
+            return putLocally(flags, fileName, id, spooled, length);
+        }
+        return sendRemotely(replica, Protocol.PUT, Protocol.BY_NAME, flags, fileName, id, spooled, length);
+    }
+
+    private int putLocally(byte flags, String fileName, long id, Path spooled, long length) {
+        try (InputStream input = Files.newInputStream(spooled)) {
+            StreamBody body = new StreamBody(input, length, new byte[Server.TRANSFER_BUFFER_SIZE]);
+            return server.execute(Request.replica(Protocol.PUT, Protocol.BY_NAME, flags, fileName, id, body)).status;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 500;
+        }
+    }
+
+    /**
+     * Asks a replica whether it still has a file, with an empty range of the file.
+     *
+     * @return 206 if the replica has the file, 404 if it does not, {@link #UNREACHABLE} or another status if it
+     * could not tell
+     */
+    private int findOn(int replica, long id) {
+        if (replica == self) {
+            return server.hasFile(id) ? 206 : 404;
+        }
+        PeerConnection connection = null;
+        try {
+            connection = peers[replica].acquire();
+            RequestHeader.write(connection.output, Protocol.GET, Protocol.BY_ID, Protocol.RANGE, null, id,
+                    Protocol.RANGE_LENGTH);
+            connection.output.writeLong(0);
+            connection.output.writeLong(0);
+            connection.output.flush();
+
+            int status = connection.input.readInt();
+            if (status == 206) {
+                connection.input.readLong();
+                connection.input.readLong();
+            }
+            peers[replica].release(connection);
+            return status;
+        } catch (IOException e) {
+            if (connection != null) {
+                connection.close();
+            }
+            System.out.println("Node " + ring.nodes().get(replica) + " could not be reached: " + e);
+            return UNREACHABLE;
+        }
+    }
+
+    private int deleteOn(int replica, byte mode, String name, long id) {
+        if (replica == self) {
+            return server.execute(Request.replica(Protocol.DELETE, mode, (byte) 0, name, id, null)).status;
+        }
+        return sendRemotely(replica, Protocol.DELETE, mode, (byte) 0, name, id, null, 0);
+    }
+
+    /**
+     * Sends a replica request to another node and reads the status of its response.
+     *
+     * @param body the file holding the body of the request, null for a request without a body
+     * @return the status of the response, {@link #UNREACHABLE} if the node could not be reached
+     */
+    private int sendRemotely(int node, byte opcode, byte mode, byte flags, String name, long id, Path body,
+                             long length) {
+        PeerConnection connection = null;
+        try {
+            connection = peers[node].acquire();
+            RequestHeader.write(connection.output, opcode, mode, (byte) (flags | Protocol.REPLICA), name, id,
+                    length);
+            if (body != null) {
+                Files.copy(body, connection.output);
+            }
+            connection.output.flush();
+
+            int status = connection.input.readInt();
+            if (status == 503 || status == 200 && opcode == Protocol.PUT) {
+                connection.input.readLong();
+            }
+            peers[node].release(connection);
+            return status;
+        } catch (IOException e) {
+            if (connection != null) {
+                connection.close();
+            }
+            System.out.println("Node " + ring.nodes().get(node) + " could not be reached: " + e);
+            return UNREACHABLE;
+        }
+    }
+
+    private static CompletableFuture<Void> allOf(List<CompletableFuture<Integer>> sends) {
+        return CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private static int count(int[] statuses, int status) {
+        int count = 0;
+        for (int each : statuses) {
+            if (each == status) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void deleteSpooled(Path spooled) {
+        try {
+            Files.deleteIfExists(spooled);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A request body sent compressed and stored as it is, in the {@link protocol.Compression} format.
+ * The body is decompressed as it is received only to check it, so that a body which is not a valid deflate
+ * stream, or which does not inflate to the length it announces, fails before the file is marked and published.
+ * Its length is the length of the compressed body, which is the length stored.
+ */
+class CompressedBody implements RequestBody {
+    private final RequestBody compressed;
+    private final Inflater inflater = new Inflater();
+    private final byte[] header = new byte[8];
+    private final byte[] inflated = new byte[Server.TRANSFER_BUFFER_SIZE];
+    private int headerRead;
+    private long announced;
+    private long inflatedLength;
+
+    /**
+     * @param compressed the body in the {@link protocol.Compression} format
+     */
+    CompressedBody(RequestBody compressed) {
+        this.compressed = compressed;
+    }
+
+    @Override
+    public long length() {
+        return compressed.length();
+    }
+
+    @Override
+    public void saveTo(Path target) throws IOException {
+        copyTo(target, null);
+    }
+
+    @Override
+    public byte[] saveDigested(Path target) throws IOException {
+        MessageDigest digest = ContentStore.newDigest();
+        copyTo(target, digest);
+        return digest.digest();
+    }
+
+    @Override
+    public byte[] readAll() throws IOException {
+        try {
+            byte[] content = compressed.stream().readNBytes(Math.toIntExact(compressed.length()));
+            check(content, 0, content.length);
+            finish();
+            return content;
+        } finally {
+            discard();
+        }
+    }
+
+    @Override
+    public void writeTo(FileChannel target, long position) throws IOException {
+        try {
+            InputStream input = compressed.stream();
+            byte[] buffer = new byte[Server.TRANSFER_BUFFER_SIZE];
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                check(buffer, 0, read);
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                while (chunk.hasRemaining()) {
+                    position += target.write(chunk, position);
+                }
+            }
+            finish();
+        } finally {
+            discard();
+        }
+    }
+
+    /**
+     * @return a stream over the compressed body, which is not checked when read this way
+     */
+    @Override
+    public InputStream stream() throws IOException {
+        return compressed.stream();
+    }
+
+    @Override
+    public void discard() throws IOException {
+        try {
+            compressed.discard();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void copyTo(Path target, MessageDigest digest) throws IOException {
+        byte[] buffer = new byte[Server.TRANSFER_BUFFER_SIZE];
+        OutputStream output;
+        try {
+            output = Files.newOutputStream(target, StandardOpenOption.CREATE_NEW);
+        } catch (IOException e) {
+            discard();
+            throw e;
+        }
+
+        try (output) {
+            InputStream input = compressed.stream();
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                check(buffer, 0, read);
+                if (digest != null) {
+                    digest.update(buffer, 0, read);
+                }
+                output.write(buffer, 0, read);
+            }
+            finish();
+        } catch (IOException e) {
+            discard();
+            Files.deleteIfExists(target);
+            throw e;
+        }
+        discard();
+    }
+
+    /**
+     * Reads the announced length from the first bytes received, and inflates the following ones.
+     *
+     * @throws StreamCorruptedException if the bytes are not a valid deflate stream, go on after its end or
+     *                                  inflate to more than the announced length
+     */
+    private void check(byte[] bytes, int offset, int count) throws IOException {
+        if (headerRead < header.length) {
+            int copied = Math.min(count, header.length - headerRead);
+            System.arraycopy(bytes, offset, header, headerRead, copied);
+            headerRead += copied;
+            offset += copied;
+            count -= copied;
+            if (headerRead == header.length) {
+                announced = ByteBuffer.wrap(header).getLong();
+                if (announced < 0) {
+                    throw new StreamCorruptedException("Compressed content of invalid length");
+                }
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        if (inflater.finished()) {
+            throw new StreamCorruptedException("Compressed content longer than its deflate stream");
+        }
+        inflater.setInput(bytes, offset, count);
+        try {
+            while (!inflater.finished() && !inflater.needsInput()) {
+                if (inflater.needsDictionary()) {
+                    throw new StreamCorruptedException("Invalid compressed content");
+                }
+                inflatedLength += inflater.inflate(inflated);
+                if (inflatedLength > announced) {
+                    throw new StreamCorruptedException("Compressed content longer than announced");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("Invalid compressed content");
+        }
+        if (inflater.finished() && inflater.getRemaining() > 0) {
+            throw new StreamCorruptedException("Compressed content longer than its deflate stream");
+        }
+    }
+
+    /**
+     * @throws StreamCorruptedException if the deflate stream did not end, or inflated to another length than
+     *                                  the announced one
+     */
+    private void finish() throws IOException {
+        if (headerRead < header.length || !inflater.finished() || inflatedLength != announced) {
+            throw new StreamCorruptedException("Compressed content of unexpected length");
+        }
+    }
+}
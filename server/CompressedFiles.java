@@ -0,0 +1,73 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+
+/**
+ * Tells apart the files of the data directory stored compressed, in the {@link protocol.Compression} format,
+ * from the files stored as they are. Compressed files carry an extended attribute, so their name and their
+ * place in the data directory do not change, and file systems without extended attributes store every file
+ * as it is.
+ */
+class CompressedFiles {
+    private static final String ATTRIBUTE = "fileserver.encoding";
+    private static final String DEFLATE = "deflate";
+
+    private CompressedFiles() {
+    }
+
+    /**
+     * @param directory the data directory
+     * @return true if the files of the directory can be marked compressed
+     */
+    static boolean supported(Path directory) {
+        try {
+            Path probe = Files.createTempFile(directory, "probe", ".tmp");
+            try {
+                mark(probe);
+                return isCompressed(probe);
+            } finally {
+                Files.delete(probe);
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Marks a file as stored compressed.
+     *
+     * @param file the file holding a compressed content
+     * @throws IOException if the file cannot be marked
+     */
+    static void mark(Path file) throws IOException {
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+        if (view == null) {
+            throw new UnsupportedOperationException("Extended attributes not supported");
+        }
+        view.write(ATTRIBUTE, StandardCharsets.US_ASCII.encode(DEFLATE));
+    }
+
+    /**
+     * @param file a stored file
+     * @return true if the file holds a compressed content
+     */
+    static boolean isCompressed(Path file) {
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+        if (view == null) {
+            return false;
+        }
+        try {
+            ByteBuffer value = ByteBuffer.allocate(16);
+            view.read(ATTRIBUTE, value);
+            return StandardCharsets.US_ASCII.decode(value.flip()).toString().equals(DEFLATE);
+        } catch (IOException e) {
+            // files stored as they are have no encoding attribute
+            return false;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * A content-addressed store keeping a single copy of every distinct file content saved in the data directory.
+ * <p>
+ * Each distinct content is a blob named after its digest, and every stored file with that content is a hard
+ * link to the blob, so the file system counts the references of each blob and the stored files are still read
+ * and deleted as ordinary files. A file saved with a content already stored is replaced by a new link to the
+ * existing blob as soon as it is received, before it is synced, so its copy is usually dropped from the page
+ * cache without being written to disk.
+ * <p>
+ * Deleting a stored file only removes one link. A background sweep deletes the blobs no stored file links to
+ * anymore once files were deleted.
+ */
+class ContentStore {
+    static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private static final int LOCK_STRIPES = 64;
+    private static final int SWEEP_INTERVAL_SECONDS = 60;
+
+    private final Path directory;
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+    private final ScheduledExecutorService sweeper;
+    private volatile boolean linksSupported = true;
+    // a sweep at startup collects the blobs released by the previous runs
+    private volatile boolean released = true;
+
+    /**
+     * @param directory the directory holding the blobs, created if needed
+     * @throws IOException if the directory cannot be created
+     */
+    ContentStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+
+        sweeper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "content-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, 0, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return a new digest of the algorithm naming the blobs
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " is required by the Java platform", e);
+        }
+    }
+
+    /**
+     * Links a file just saved to the blob with the same content. If the content is not stored yet the file
+     * becomes its blob, otherwise the file is replaced by a link to the existing blob.
+     *
+     * @param file the saved file
+     * @param digest the digest of its content
+     * @return true if the content was already stored and the copy of the file was dropped
+     * @throws IOException if the file cannot be linked
+     */
+    boolean intern(Path file, byte[] digest) throws IOException {
+        if (!linksSupported) {
+            return false;
+        }
+
+        String hex = HexFormat.of().formatHex(digest);
+        Path blob = directory.resolve(hex.substring(0, 2)).resolve(hex);
+        ReentrantLock lock = lockFor(hex);
+        lock.lock();
+        try {
+            if (Files.exists(blob) && Files.size(blob) == Files.size(file)) {
+                Path link = blob.resolveSibling(hex + "." + UUID.randomUUID() + ".link");
+                try {
+                    Files.createLink(link, blob);
+                    Files.move(link, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    Files.deleteIfExists(link);
+                    throw e;
+                }
+                return true;
+            }
+            Files.createDirectories(blob.getParent());
+            Files.deleteIfExists(blob);
+            Files.createLink(blob, file);
+            return false;
+        } catch (UnsupportedOperationException e) {
+            System.out.println("Hard links are not supported, files are no longer deduplicated.");
+            linksSupported = false;
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that a stored file was deleted, so that the next sweep looks for blobs without references.
+     */
+    void released() {
+        released = true;
+    }
+
+    /**
+     * Deletes the blobs no stored file links to, if files were deleted since the previous sweep.
+     */
+    void sweep() {
+        if (!released) {
+            return;
+        }
+        released = false;
+
+        long deleted = 0;
+        try (Stream<Path> blobs = Files.walk(directory, 2)) {
+            for (Path blob : (Iterable<Path>) blobs.filter(Files::isRegularFile)::iterator) {
+                ReentrantLock lock = lockFor(blob.getFileName().toString());
+                lock.lock();
+                try {
+                    if ((Integer) Files.getAttribute(blob, "unix:nlink") == 1) {
+                        Files.delete(blob);
+                        deleted++;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+        if (deleted > 0) {
+            System.out.println("Deleted " + deleted + " unreferenced blobs.");
+        }
+    }
+
+    /**
+     * Stops the background sweep.
+     */
+    void close() {
+        sweeper.shutdown();
+        try {
+            sweeper.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private ReentrantLock lockFor(String hex) {
+        return locks[Math.floorMod(hex.hashCode(), LOCK_STRIPES)];
+    }
+}
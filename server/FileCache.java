@@ -0,0 +1,427 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A cache of the content of small stored files, so that the files read most often are sent from memory.
+ * <p>
+ * The cache is bounded by the total number of content bytes it holds rather than by its number of entries,
+ * and only files up to a maximum size are cached. Which entries are evicted to make room is decided by an
+ * {@link EvictionPolicy}: plain LRU, or W-TinyLFU, which only lets a new entry replace a cached one if it was
+ * requested more often recently, so that a scan over many files read once does not flush the hot ones.
+ * <p>
+ * Lookups go through a concurrent map and do not wait for the cache lock: the bookkeeping of the eviction
+ * policy is skipped when another thread holds the lock, which only makes the policy slightly less precise.
+ * <p>
+ * Changes to the stored files must {@link #invalidate(String)} their name once done. A file read while an
+ * invalidation happens is sent to the client but not cached, so a stale content is never cached.
+ */
+class FileCache {
+    static final String POLICY_LRU = "lru";
+    static final String POLICY_TINY_LFU = "tinylfu";
+
+    private final long capacity;
+    private final long maxFileSize;
+    private final boolean direct;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final EvictionPolicy policy;
+    private long size;
+    private volatile long invalidations;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * A cached file content, linked in the lists of the eviction policy.
+     */
+    static final class Entry {
+        final String name;
+        final ByteBuffer content;
+        final int size;
+        Entry previous;
+        Entry next;
+        EntryList list;
+
+        Entry(String name, ByteBuffer content) {
+            this.name = name;
+            this.content = content;
+            this.size = content.remaining();
+        }
+    }
+
+    /**
+     * Decides which entries are evicted when the cache is full. Methods are called under the cache lock.
+     */
+    interface EvictionPolicy {
+        /**
+         * Records a lookup of a name, found in the cache or not.
+         */
+        void recordAccess(String name, Entry entry);
+
+        void add(Entry entry);
+
+        void remove(Entry entry);
+
+        /**
+         * @return the entry to evict next, which may be the entry just added
+         */
+        Entry victim();
+    }
+
+    /**
+     * @param capacity the maximum number of content bytes held, 0 to disable the cache
+     * @param maxFileSize the size of the largest file cached
+     * @param policy {@link #POLICY_LRU} or {@link #POLICY_TINY_LFU}
+     * @param direct true to hold contents in direct buffers, outside of the Java heap
+     */
+    FileCache(long capacity, long maxFileSize, String policy, boolean direct) {
+        this.capacity = capacity;
+        this.maxFileSize = Math.min(Math.min(maxFileSize, capacity), Integer.MAX_VALUE);
+        this.direct = direct;
+        this.policy = policy.equals(POLICY_LRU) ? new Lru() : new TinyLfu(capacity);
+    }
+
+    /**
+     * @param name the name of a file
+     * @return a buffer over the cached content of the file, or null if it is not cached
+     */
+    ByteBuffer get(String name) {
+        if (capacity == 0) {
+            return null;
+        }
+
+        Entry entry = entries.get(name);
+        if (lock.tryLock()) {
+            try {
+                policy.recordAccess(name, entries.get(name) == entry ? entry : null);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.content.duplicate();
+    }
+
+    /**
+     * @param fileSize the size of a file
+     * @return true if a file of this size is cached once read
+     */
+    boolean accepts(long fileSize) {
+        return fileSize <= maxFileSize;
+    }
+
+    /**
+     * @return the ticket to pass to {@link #load(String, FileChannel, long, long)}, taken before the file is opened
+     */
+    long ticket() {
+        return invalidations;
+    }
+
+    /**
+     * Reads the content of a file and caches it, unless a file was invalidated since the ticket was taken.
+     *
+     * @param name the name of the file
+     * @param file the open file, not closed by this method
+     * @param fileSize the size of the file, accepted by {@link #accepts(long)}
+     * @param ticket the ticket taken before the file was opened
+     * @return a buffer over the content of the file
+     * @throws IOException if the file cannot be read
+     */
+    ByteBuffer load(String name, FileChannel file, long fileSize, long ticket) throws IOException {
+        ByteBuffer content = direct ? ByteBuffer.allocateDirect((int) fileSize) : ByteBuffer.allocate((int) fileSize);
+        while (content.hasRemaining()) {
+            if (file.read(content, content.position()) < 0) {
+                throw new EOFException("File shorter than announced");
+            }
+        }
+        return add(name, content.flip(), ticket);
+    }
+
+    /**
+     * Caches a file content already read, unless a file was invalidated since the ticket was taken.
+     *
+     * @param name the name of the file
+     * @param content the content of the file, accepted by {@link #accepts(long)} and no longer modified
+     * @param ticket the ticket taken before the content was read
+     * @return a buffer over the content of the file
+     */
+    ByteBuffer add(String name, ByteBuffer content, long ticket) {
+        if (direct && !content.isDirect()) {
+            content = ByteBuffer.allocateDirect(content.remaining()).put(content).flip();
+        }
+        Entry entry = new Entry(name, content.asReadOnlyBuffer());
+
+        lock.lock();
+        try {
+            if (invalidations == ticket) {
+                Entry previous = entries.put(name, entry);
+                if (previous != null) {
+                    policy.remove(previous);
+                    size -= previous.size;
+                }
+                policy.add(entry);
+                size += entry.size;
+
+                while (size > capacity) {
+                    Entry victim = policy.victim();
+                    entries.remove(victim.name, victim);
+                    policy.remove(victim);
+                    size -= victim.size;
+                    evictions.increment();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return entry.content.duplicate();
+    }
+
+    /**
+     * Removes a file from the cache after it was saved or deleted.
+     *
+     * @param name the name of the file
+     */
+    void invalidate(String name) {
+        if (capacity == 0) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            invalidations++;
+            Entry entry = entries.remove(name);
+            if (entry != null) {
+                policy.remove(entry);
+                size -= entry.size;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the number of content bytes held
+     */
+    long size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "File cache: " + hits() + " hits, " + misses() + " misses, " + evictions() + " evictions, "
+                + size() + " of " + capacity + " bytes used";
+    }
+
+    /**
+     * A doubly linked list of entries, most recently used first.
+     */
+    private static final class EntryList {
+        private Entry head;
+        private Entry tail;
+        long bytes;
+
+        void addFirst(Entry entry) {
+            entry.list = this;
+            entry.previous = null;
+            entry.next = head;
+            if (head != null) {
+                head.previous = entry;
+            } else {
+                tail = entry;
+            }
+            head = entry;
+            bytes += entry.size;
+        }
+
+        void remove(Entry entry) {
+            if (entry.previous != null) {
+                entry.previous.next = entry.next;
+            } else {
+                head = entry.next;
+            }
+            if (entry.next != null) {
+                entry.next.previous = entry.previous;
+            } else {
+                tail = entry.previous;
+            }
+            entry.previous = null;
+            entry.next = null;
+            entry.list = null;
+            bytes -= entry.size;
+        }
+
+        void moveToFront(Entry entry) {
+            if (head != entry) {
+                remove(entry);
+                addFirst(entry);
+            }
+        }
+
+        Entry last() {
+            return tail;
+        }
+    }
+
+    /**
+     * Evicts the least recently used entry.
+     */
+    private static final class Lru implements EvictionPolicy {
+        private final EntryList entries = new EntryList();
+
+        @Override
+        public void recordAccess(String name, Entry entry) {
+            if (entry != null) {
+                entries.moveToFront(entry);
+            }
+        }
+
+        @Override
+        public void add(Entry entry) {
+            entries.addFirst(entry);
+        }
+
+        @Override
+        public void remove(Entry entry) {
+            entries.remove(entry);
+        }
+
+        @Override
+        public Entry victim() {
+            return entries.last();
+        }
+    }
+
+    /**
+     * W-TinyLFU: new entries go through a small LRU window. The entries leaving the window become candidates
+     * for the main LRU list, which they join as long as it has room. Once it is full, a candidate only replaces
+     * the least recently used entry of the main list if it was requested more often according to a frequency
+     * sketch, otherwise the candidate is evicted.
+     */
+    private static final class TinyLfu implements EvictionPolicy {
+        private final EntryList window = new EntryList();
+        private final EntryList candidates = new EntryList();
+        private final EntryList main = new EntryList();
+        private final long windowCapacity;
+        private final long mainCapacity;
+        private final FrequencySketch sketch = new FrequencySketch();
+
+        TinyLfu(long capacity) {
+            windowCapacity = Math.max(capacity / 100, 1);
+            mainCapacity = capacity - windowCapacity;
+        }
+
+        @Override
+        public void recordAccess(String name, Entry entry) {
+            sketch.increment(name.hashCode());
+            if (entry != null) {
+                entry.list.moveToFront(entry);
+            }
+        }
+
+        @Override
+        public void add(Entry entry) {
+            sketch.increment(entry.name.hashCode());
+            window.addFirst(entry);
+        }
+
+        @Override
+        public void remove(Entry entry) {
+            entry.list.remove(entry);
+        }
+
+        @Override
+        public Entry victim() {
+            while (window.bytes > windowCapacity) {
+                Entry candidate = window.last();
+                window.remove(candidate);
+                candidates.addFirst(candidate);
+            }
+
+            Entry candidate;
+            while ((candidate = candidates.last()) != null) {
+                if (main.bytes + candidate.size <= mainCapacity) {
+                    candidates.remove(candidate);
+                    main.addFirst(candidate);
+                    continue;
+                }
+                Entry mainVictim = main.last();
+                if (mainVictim != null
+                        && sketch.frequency(candidate.name.hashCode()) > sketch.frequency(mainVictim.name.hashCode())) {
+                    return mainVictim;
+                }
+                return candidate;
+            }
+            return main.last() != null ? main.last() : window.last();
+        }
+    }
+
+    /**
+     * A count-min sketch of 4 bit counters estimating how often each name was requested recently.
+     * All the counters are halved once enough requests were recorded, so that old popularity fades.
+     */
+    private static final class FrequencySketch {
+        private static final int SIZE = 1 << 16;
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+        private final byte[] counters = new byte[SIZE];
+        private int additions;
+
+        void increment(int hash) {
+            for (int seed : SEEDS) {
+                int index = index(hash, seed);
+                if (counters[index] < 15) {
+                    counters[index]++;
+                }
+            }
+            if (++additions == SIZE * 10) {
+                for (int i = 0; i < SIZE; i++) {
+                    counters[i] >>= 1;
+                }
+                additions = 0;
+            }
+        }
+
+        int frequency(int hash) {
+            int frequency = 15;
+            for (int seed : SEEDS) {
+                frequency = Math.min(frequency, counters[index(hash, seed)]);
+            }
+            return frequency;
+        }
+
+        private static int index(int hash, int seed) {
+            int h = hash * seed;
+            return (h ^ (h >>> 16)) & (SIZE - 1);
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package server;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * The index of the stored files, mapping each file name to its id and each id back to its name.
+ * <p>
+ * New ids come from a monotonic sequence, so an id is never given to two files, even after the first one
+ * is deleted. Taking an id is a single atomic increment and does not hold the index lock.
+ * <p>
+ * Ids are kept in an open addressing table keyed by primitive longs, with linear probing and backward shift
+ * deletion, so that a lookup by id costs a few array reads and no boxing. Both directions are updated under
+ * one write lock so they always agree, while lookups by id run under an optimistic read that only falls back
+ * to the read lock if a write happened meanwhile.
+ * <p>
+ * Once a journal is attached, every change is appended to it under the write lock, so the journal records
+ * the changes in the order they were made, and the change returns once its record is on disk.
+ * <p>
+ * The index can sit on top of a memory-mapped {@link IndexSnapshot}, so that the server starts without loading
+ * the saved entries. The tables above only hold the changes made since the snapshot, with {@link
+ * IndexSnapshot#NO_ID} marking the deleted names, and the entries found in the snapshot are faulted in when they
+ * are first looked up by id.
+ */
+class FileIndex {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final StampedLock lock = new StampedLock();
+    private final ConcurrentHashMap<String, Long> idsByName = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private Table namesById = new Table(INITIAL_CAPACITY);
+    private volatile IdJournal journal;
+    private volatile IndexSnapshot base;
+
+    /**
+     * A consistent copy of the index, taken when the journal moved to a new generation.
+     */
+    static final class Snapshot {
+        final IndexSnapshot base;
+        final HashMap<String, Long> changes;
+        final long nextId;
+        final long generation;
+
+        private Snapshot(IndexSnapshot base, HashMap<String, Long> changes, long nextId, long generation) {
+            this.base = base;
+            this.changes = changes;
+            this.nextId = nextId;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * The id side of the index. Keys and names live in one object so that a resize replaces both at once.
+     */
+    private static final class Table {
+        final long[] ids;
+        final String[] names;
+        final int mask;
+        int size;
+
+        Table(int capacity) {
+            ids = new long[capacity];
+            names = new String[capacity];
+            mask = capacity - 1;
+        }
+
+        /**
+         * @param id the id to look for
+         * @return the slot holding the id, or the empty slot where it would be inserted
+         */
+        int slotOf(long id) {
+            int slot = mix(id) & mask;
+            for (int probes = 0; probes <= mask; probes++) {
+                if (names[slot] == null || ids[slot] == id) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private static int mix(long id) {
+            long h = id * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    /**
+     * @param name the name of a file
+     * @return true if a file with this name is indexed
+     */
+    boolean contains(String name) {
+        Long id = idsByName.get(name);
+        if (id != null) {
+            return id != IndexSnapshot.NO_ID;
+        }
+        IndexSnapshot base = this.base;
+        return base != null && base.idOf(name) != IndexSnapshot.NO_ID;
+    }
+
+    /**
+     * @param id the id of a file
+     * @return the name of the file with this id, or null if no file has it
+     */
+    String nameOf(long id) {
+        String name = findChanged(id);
+        if (name != null) {
+            return name;
+        }
+
+        IndexSnapshot base = this.base;
+        if (base == null) {
+            return null;
+        }
+        name = base.nameOf(id);
+        return name != null && faultIn(name, id) ? name : null;
+    }
+
+    private String findChanged(long id) {
+        long stamp = lock.tryOptimisticRead();
+        String name = find(namesById, id);
+        if (lock.validate(stamp)) {
+            return name;
+        }
+
+        stamp = lock.readLock();
+        try {
+            return find(namesById, id);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Copies an entry found in the snapshot into the tables, unless its name was changed since the snapshot.
+     *
+     * @return true if the entry is still current
+     */
+    private boolean faultIn(String name, long id) {
+        long stamp = lock.writeLock();
+        try {
+            Long current = idsByName.putIfAbsent(name, id);
+            if (current == null) {
+                insert(id, name);
+                return true;
+            }
+            return current == id;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private static String find(Table table, long id) {
+        int slot = table.slotOf(id);
+        return slot < 0 ? null : table.names[slot];
+    }
+
+    /**
+     * Takes the next id of the sequence. The id is only used once, even if no file ends up indexed with it.
+     *
+     * @return a new file id
+     */
+    long newId() {
+        return nextId.getAndIncrement();
+    }
+
+    /**
+     * @return the id that {@link #newId()} will return next, for saving the sequence
+     */
+    long nextId() {
+        return nextId.get();
+    }
+
+    /**
+     * Moves the sequence forward so that it never returns an id below the given one.
+     *
+     * @param id the lowest id the sequence may return next
+     */
+    void advanceTo(long id) {
+        nextId.accumulateAndGet(id, Math::max);
+    }
+
+    /**
+     * Indexes a file, replacing a previous entry with the same name. An id already held by another name is
+     * refused, so that an id never leads to two files.
+     * The sequence is moved past the id, so that files loaded from disk keep their ids unique.
+     *
+     * @param name the name of the file
+     * @param id the id of the file
+     * @throws IOException if the change could not be written to the journal, the index is then unchanged
+     */
+    void put(String name, long id) throws IOException {
+        awaitJournal(putLater(name, id));
+    }
+
+    /**
+     * Indexes a file like {@link #put(String, long)}, without waiting for the change to be written to the journal.
+     *
+     * @param name the name of the file
+     * @param id the id of the file
+     * @return the ticket to pass to {@link #awaitJournal(long)}
+     * @throws IOException if the id is held by another file, or if the journal can no longer be written, the index
+     *                     is then unchanged
+     */
+    long putLater(String name, long id) throws IOException {
+        advanceTo(id + 1);
+        IdJournal journal = this.journal;
+        IndexSnapshot base = this.base;
+        String saved = base == null ? null : base.nameOf(id);
+        long ticket = 0;
+        long stamp = lock.writeLock();
+        try {
+            String holder = find(namesById, id);
+            if (holder == null && saved != null && !idsByName.containsKey(saved)) {
+                holder = saved;
+            }
+            if (holder != null && !holder.equals(name)) {
+                throw new IOException("Id " + id + " is already held by " + holder);
+            }
+            if (journal != null) {
+                ticket = journal.append(IdJournal.PUT, name, id);
+            }
+            Long previous = idsByName.put(name, id);
+            if (previous != null && previous != id && previous != IndexSnapshot.NO_ID) {
+                removeId(previous, name);
+            }
+            insert(id, name);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return ticket;
+    }
+
+    /**
+     * Waits until a change and all the changes made before it are written to the journal.
+     *
+     * @param ticket the ticket returned by {@link #putLater(String, long)}, 0 if no journal was attached
+     * @throws IOException if the changes could not be written to the journal
+     */
+    void awaitJournal(long ticket) throws IOException {
+        IdJournal journal = this.journal;
+        if (journal != null && ticket > 0) {
+            journal.await(ticket);
+        }
+    }
+
+    /**
+     * Indexes all the files of a map of names to ids.
+     *
+     * @param entries the files to index
+     * @throws IOException if a change could not be written to the journal
+     */
+    void putAll(Map<String, ? extends Number> entries) throws IOException {
+        for (Map.Entry<String, ? extends Number> entry : entries.entrySet()) {
+            put(entry.getKey(), entry.getValue().longValue());
+        }
+    }
+
+    /**
+     * Removes a file from the index.
+     *
+     * @param name the name of the file
+     * @return true if the file was indexed
+     * @throws IOException if the change could not be written to the journal, the index is then unchanged
+     */
+    boolean remove(String name) throws IOException {
+        IdJournal journal = this.journal;
+        long ticket = 0;
+        IndexSnapshot base = this.base;
+        long stamp = lock.writeLock();
+        try {
+            long savedId = base == null ? IndexSnapshot.NO_ID : base.idOf(name);
+            Long id = idsByName.get(name);
+            if (id == null) {
+                id = savedId;
+            }
+            if (id == IndexSnapshot.NO_ID) {
+                return false;
+            }
+            if (journal != null) {
+                ticket = journal.append(IdJournal.DELETE, name, id);
+            }
+            if (savedId != IndexSnapshot.NO_ID) {
+                idsByName.put(name, IndexSnapshot.NO_ID);
+            } else {
+                idsByName.remove(name);
+            }
+            removeId(id, name);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        if (journal != null) {
+            journal.await(ticket);
+        }
+        return true;
+    }
+
+    /**
+     * Puts the index on top of a saved snapshot. It must be called before any other change is made.
+     *
+     * @param snapshot the snapshot holding the saved entries
+     */
+    void load(IndexSnapshot snapshot) {
+        base = snapshot;
+        advanceTo(snapshot.nextId());
+    }
+
+    /**
+     * Puts the index on top of a snapshot just written from a copy of the index, and drops the changes the
+     * snapshot includes, so that they are no longer held in memory. Changes made since the copy was taken are
+     * kept, a name saved in the snapshot and deleted since then being marked deleted.
+     *
+     * @param snapshot the snapshot written from the copy
+     * @param saved the changes of the copy, as returned by {@link #snapshot()}
+     */
+    void rebase(IndexSnapshot snapshot, Map<String, Long> saved) {
+        long stamp = lock.writeLock();
+        try {
+            base = snapshot;
+            for (Map.Entry<String, Long> change : saved.entrySet()) {
+                String name = change.getKey();
+                long id = change.getValue();
+                if (id != IndexSnapshot.NO_ID && !idsByName.containsKey(name)) {
+                    // deleted since the copy, while the previous base did not have it
+                    idsByName.put(name, IndexSnapshot.NO_ID);
+                } else if (idsByName.remove(name, id) && id != IndexSnapshot.NO_ID) {
+                    removeId(id, name);
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Starts recording the changes of the index in a journal.
+     *
+     * @param journal the journal to append the changes to
+     */
+    void attach(IdJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Copies the changes of the index for saving them with its snapshot. If a journal is attached it moves to a
+     * new generation while the copy is taken, so that the copy contains exactly the changes of the previous
+     * generations.
+     *
+     * @return the copy of the index
+     * @throws IOException if the journal could not move to a new generation
+     */
+    Snapshot snapshot() throws IOException {
+        IdJournal journal = this.journal;
+        long stamp = lock.readLock();
+        try {
+            long generation = journal == null ? 0 : journal.roll();
+            return new Snapshot(base, new HashMap<>(idsByName), nextId(), generation);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Adds an id to the table. The id must be free or already held by the same name, as a slot holding another
+     * name would leave that name pointing to an id it no longer has.
+     */
+    private void insert(long id, String name) {
+        if ((namesById.size + 1) * 2 > namesById.ids.length) {
+            resize();
+        }
+        int slot = namesById.slotOf(id);
+        if (namesById.names[slot] == null) {
+            namesById.size++;
+        } else if (!namesById.names[slot].equals(name)) {
+            throw new IllegalStateException("Id " + id + " is already held by " + namesById.names[slot]);
+        }
+        namesById.ids[slot] = id;
+        namesById.names[slot] = name;
+    }
+
+    /**
+     * Removes an id from the table if it still belongs to the given name, shifting back the entries of its
+     * probe sequence so that no tombstone is left behind.
+     */
+    private void removeId(long id, String name) {
+        Table table = namesById;
+        int slot = table.slotOf(id);
+        if (slot < 0 || table.names[slot] == null || !table.names[slot].equals(name)) {
+            return;
+        }
+
+        int hole = slot;
+        int next = (hole + 1) & table.mask;
+        while (table.names[next] != null) {
+            int home = Table.mix(table.ids[next]) & table.mask;
+            if (((next - home) & table.mask) >= ((next - hole) & table.mask)) {
+                table.ids[hole] = table.ids[next];
+                table.names[hole] = table.names[next];
+                hole = next;
+            }
+            next = (next + 1) & table.mask;
+        }
+        table.names[hole] = null;
+        table.size--;
+    }
+
+    private void resize() {
+        Table old = namesById;
+        Table larger = new Table(old.ids.length * 2);
+        for (int i = 0; i < old.ids.length; i++) {
+            if (old.names[i] != null) {
+                int slot = larger.slotOf(old.ids[i]);
+                larger.ids[slot] = old.ids[i];
+                larger.names[slot] = old.names[i];
+                larger.size++;
+            }
+        }
+        namesById = larger;
+    }
+}
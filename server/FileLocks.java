@@ -0,0 +1,33 @@
+package server;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A table of read-write locks striped by file name, which orders the requests on the same file.
+ * <p>
+ * Saving, deleting and publishing an uploaded file take the write lock of the file name, retrieving a file
+ * takes its read lock, so that a file is never found half saved or half deleted and two saves of the same name
+ * cannot both succeed. Requests on files of different stripes never wait for each other, and files are only
+ * locked while they are checked and published or opened: bodies are received and contents sent without a lock.
+ */
+class FileLocks {
+    private static final int STRIPES = 256;
+
+    private final ReadWriteLock[] locks = new ReadWriteLock[STRIPES];
+
+    FileLocks() {
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * @param fileName the name of a file
+     * @return the lock of the stripe of the file, shared with the other names of the stripe
+     */
+    ReadWriteLock lockFor(String fileName) {
+        int hash = fileName.hashCode();
+        return locks[Math.floorMod(hash ^ hash >>> 16, STRIPES)];
+    }
+}
@@ -0,0 +1,31 @@
+package server;
+
+import protocol.Protocol;
+import protocol.RequestHeader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes binary request frame headers, reusing the same header for all the requests of a connection.
+ * The body following a header is left to the connection, which receives it as it arrives.
+ */
+class FrameRequestDecoder implements RequestDecoder {
+    /** The length of a header with a name of the longest length and a replica id. */
+    private static final int MAX_HEADER_LENGTH = Protocol.FIXED_HEADER_LENGTH + 2 + Protocol.MAX_NAME_LENGTH + 8;
+
+    private final RequestHeader header = new RequestHeader();
+
+    @Override
+    public Request decode(ByteBuffer buffer) throws IOException {
+        if (!header.read(buffer)) {
+            return null;
+        }
+        return Request.fromHeader(header, null);
+    }
+
+    @Override
+    public int maxRequestLength() {
+        return MAX_HEADER_LENGTH;
+    }
+}
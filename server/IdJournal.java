@@ -0,0 +1,389 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the changes made to the file index, so that ids survive a crash.
+ * <p>
+ * Each saved or deleted file appends a record to the journal:
+ * <pre>
+ * length(4) type(1) id(8) name(UTF-8) crc(4)
+ * </pre>
+ * where the length counts the type, id and name bytes and the CRC32 covers them too, so that a record torn by a
+ * crash is recognized and ignored when the journal is replayed.
+ * <p>
+ * Records are written by a single flusher thread. Writers append their record to a buffer and wait, and the
+ * flusher writes everything appended since its last write with one {@code force}, so concurrent writers share
+ * the cost of an fsync.
+ * <p>
+ * The journal is split into numbered generations. Taking a snapshot of the index starts a new generation, and
+ * the generations older than a saved snapshot are deleted, which keeps the journal short. The directory is synced
+ * once a generation is created and once old ones are deleted, so that the records of a new generation do not
+ * vanish with its directory entry after a crash.
+ */
+class IdJournal implements Closeable {
+    static final byte PUT = 1;
+    static final byte DELETE = 2;
+
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".log";
+    private static final int HEADER_LENGTH = 4;
+    private static final int CRC_LENGTH = 4;
+
+    private final Path directory;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appendedRecords = lock.newCondition();
+    private final Condition syncedRecords = lock.newCondition();
+    private final Thread flusher;
+
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);
+    private long appended;
+    private long synced;
+    private long recordsInGeneration;
+    private long generation;
+    private FileChannel channel;
+    private IOException failure;
+    private boolean closed;
+
+    /**
+     * Opens a new journal generation after the ones already in the directory.
+     * Empty generations left by previous runs are deleted.
+     *
+     * @param directory the directory holding the journal files
+     * @param generation the lowest generation the new one may have
+     * @throws IOException if the journal file cannot be created
+     */
+    IdJournal(Path directory, long generation) throws IOException {
+        this.directory = directory;
+        for (long existing : generations(directory)) {
+            generation = Math.max(generation, existing + 1);
+            Path file = directory.resolve(PREFIX + existing + SUFFIX);
+            if (Files.size(file) == 0) {
+                Files.delete(file);
+            }
+        }
+        this.generation = generation;
+        this.channel = open(generation);
+
+        flusher = new Thread(this::flush, "id-journal");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Replays the journal generations from the given one onwards into the index, in order.
+     * A generation ends at its first incomplete or corrupted record.
+     *
+     * @param directory the directory holding the journal files
+     * @param fromGeneration the first generation not included in the loaded snapshot
+     * @param index the index to apply the records to
+     * @return the number of records replayed
+     * @throws IOException if a journal file cannot be read
+     */
+    static long replay(Path directory, long fromGeneration, FileIndex index) throws IOException {
+        long records = 0;
+
+        for (long generation : generations(directory)) {
+            if (generation < fromGeneration) {
+                continue;
+            }
+            Path file = directory.resolve(PREFIX + generation + SUFFIX);
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                byte[] payload = new byte[256];
+                CRC32 crc = new CRC32();
+
+                while (true) {
+                    int length;
+                    try {
+                        length = input.readInt();
+                        if (length < 9) {
+                            throw new StreamCorruptedException();
+                        }
+                        if (payload.length < length) {
+                            payload = new byte[length];
+                        }
+                        input.readFully(payload, 0, length);
+                        crc.reset();
+                        crc.update(payload, 0, length);
+                        if ((int) crc.getValue() != input.readInt()) {
+                            throw new StreamCorruptedException();
+                        }
+                    } catch (EOFException e) {
+                        break;
+                    } catch (StreamCorruptedException e) {
+                        System.out.println("Ignoring the corrupted end of " + file.getFileName());
+                        break;
+                    }
+
+                    ByteBuffer record = ByteBuffer.wrap(payload, 0, length);
+                    byte type = record.get();
+                    long id = record.getLong();
+                    String name = new String(payload, 9, length - 9, StandardCharsets.UTF_8);
+                    if (type == PUT) {
+                        index.put(name, id);
+                    } else if (type == DELETE) {
+                        index.remove(name);
+                    }
+                    records++;
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Appends a record to the journal without waiting for it to be written.
+     * Callers append under the index lock so that records are in the same order as the changes they describe.
+     *
+     * @param type {@link #PUT} or {@link #DELETE}
+     * @param name the name of the file
+     * @param id the id of the file
+     * @return the ticket to pass to {@link #await(long)}
+     * @throws IOException if the journal can no longer be written
+     */
+    long append(byte type, String name, long id) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 8 + nameBytes.length;
+        ByteBuffer record = ByteBuffer.allocate(HEADER_LENGTH + length + CRC_LENGTH);
+        record.putInt(length).put(type).putLong(id).put(nameBytes);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER_LENGTH, length);
+        record.putInt((int) crc.getValue()).flip();
+
+        lock.lock();
+        try {
+            checkWritable();
+            if (pending.remaining() < record.remaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2,
+                        pending.position() + record.remaining()));
+                pending = larger.put(pending.flip());
+            }
+            pending.put(record);
+            recordsInGeneration++;
+            appendedRecords.signal();
+            return ++appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until a record and all the records appended before it are on disk.
+     *
+     * @param ticket the ticket returned by {@link #append(byte, String, long)}
+     * @throws IOException if the records could not be written
+     */
+    void await(long ticket) throws IOException {
+        lock.lock();
+        try {
+            awaitSynced(ticket);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if records were appended since the current generation was started
+     */
+    boolean hasChanges() {
+        lock.lock();
+        try {
+            return recordsInGeneration > 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the records appended so far and starts a new generation.
+     * The caller must prevent appends while the generation changes, so that a snapshot taken meanwhile contains
+     * exactly the records of the previous generations.
+     *
+     * @return the new generation
+     * @throws IOException if the records could not be written or the new journal file cannot be created
+     */
+    long roll() throws IOException {
+        lock.lock();
+        try {
+            awaitSynced(appended);
+            channel.close();
+            generation++;
+            channel = open(generation);
+            recordsInGeneration = 0;
+            return generation;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the generations included in a saved snapshot.
+     *
+     * @param generation the first generation not included in the snapshot
+     */
+    void deleteBefore(long generation) {
+        try {
+            boolean deleted = false;
+            for (long existing : generations(directory)) {
+                if (existing < generation) {
+                    deleted |= Files.deleteIfExists(directory.resolve(PREFIX + existing + SUFFIX));
+                }
+            }
+            if (deleted) {
+                WritePipeline.syncDirectory(directory);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes the records appended so far and closes the journal.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            appendedRecords.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    /**
+     * The loop of the flusher thread, writing and syncing the appended records in batches.
+     */
+    private void flush() {
+        while (true) {
+            ByteBuffer batch;
+            long batchTicket;
+            FileChannel target;
+
+            lock.lock();
+            try {
+                while (pending.position() == 0 && !closed) {
+                    appendedRecords.awaitUninterruptibly();
+                }
+                if (pending.position() == 0) {
+                    return;
+                }
+                batch = pending.flip();
+                pending = spare;
+                batchTicket = appended;
+                target = channel;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            try {
+                while (batch.hasRemaining()) {
+                    target.write(batch);
+                }
+                target.force(false);
+            } catch (IOException e) {
+                e.printStackTrace();
+                error = e;
+            }
+
+            lock.lock();
+            try {
+                spare = batch.clear();
+                if (error != null) {
+                    failure = error;
+                } else {
+                    synced = batchTicket;
+                }
+                syncedRecords.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (error != null) {
+                return;
+            }
+        }
+    }
+
+    private void awaitSynced(long ticket) throws IOException {
+        while (synced < ticket && failure == null) {
+            try {
+                syncedRecords.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        if (synced < ticket) {
+            throw new IOException("The id journal could not be written", failure);
+        }
+    }
+
+    private void checkWritable() throws IOException {
+        if (failure != null) {
+            throw new IOException("The id journal could not be written", failure);
+        }
+        if (closed) {
+            throw new IOException("The id journal is closed");
+        }
+    }
+
+    /**
+     * Creates the file of a new generation and syncs its directory entry.
+     */
+    private FileChannel open(long generation) throws IOException {
+        Path file = directory.resolve(PREFIX + generation + SUFFIX);
+        FileChannel created = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            WritePipeline.syncDirectory(directory);
+        } catch (IOException e) {
+            created.close();
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        return created;
+    }
+
+    /**
+     * @return the generations of the journal files in the directory, in ascending order
+     */
+    private static List<Long> generations(Path directory) throws IOException {
+        List<Long> generations = new ArrayList<>();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    generations.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    System.out.println("Ignoring unknown journal file " + name);
+                }
+            }
+        }
+        generations.sort(null);
+        return generations;
+    }
+}
@@ -0,0 +1,408 @@
+package server;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A saved copy of the file index that is memory-mapped and searched in place, so that the server does not
+ * have to load every entry before accepting connections.
+ * <p>
+ * The file is made of a header, two open addressing tables with linear probing, the UTF-8 names and the table of
+ * region CRCs:
+ * <pre>
+ * header(48) id table(capacity * 24) name table(capacity * 4) names region CRCs(regions * 4)
+ * </pre>
+ * The header holds a magic number, the format version, the next id of the sequence, the first journal
+ * generation not included in the snapshot, the number of entries, the table capacity, the length of the names,
+ * a CRC32 of the table of region CRCs and a CRC32 of the preceding header bytes. The tables and names are split
+ * in regions of {@link #REGION_LENGTH} bytes, each with its CRC32 in the table of region CRCs. Only the header
+ * and that table are checked when the file is mapped, so that opening a snapshot does not read it whole, and a
+ * region is checked the first time it is read, so that a torn or damaged table is never searched. Snapshots of
+ * format version 2, whose header holds the CRC32 of the whole tables and names, are checked whole when mapped,
+ * and those of version 1, whose CRC32 only covers the header, are still read.
+ * <p>
+ * An id table slot holds the id, the offset and length plus one of its name, 0 for an empty slot, and the hash
+ * of the name. A name table slot holds the id table slot plus one of the entry with that name, 0 for an empty
+ * slot.
+ * <p>
+ * A snapshot is immutable once written, so it is searched with absolute reads from any thread.
+ */
+class IndexSnapshot {
+    static final long NO_ID = Long.MIN_VALUE;
+
+    private static final int MAGIC = 0x46494458;
+    private static final int FORMAT_VERSION = 3;
+    /** The format version whose header holds the CRC32 of the whole tables and names. */
+    private static final int WHOLE_CRC_VERSION = 2;
+    /** The format version whose header does not hold the CRC32 of the tables and names. */
+    private static final int HEADER_CRC_VERSION = 1;
+    private static final int HEADER_LENGTH = 48;
+    private static final int ID_SLOT_LENGTH = 24;
+    private static final int NAME_SLOT_LENGTH = 4;
+    /** The length of the regions of the tables and names checked on their own, the last one being shorter. */
+    private static final int REGION_LENGTH = 64 * 1024;
+
+    private final MappedByteBuffer buffer;
+    private final long nextId;
+    private final long generation;
+    private final int count;
+    private final int mask;
+    private final int nameTableStart;
+    private final int namesStart;
+    private final int namesLength;
+    private final int regionTableStart;
+    /**
+     * The regions already checked, null for a snapshot checked whole when mapped. Threads may check a region
+     * at the same time, which only costs a second CRC of the same bytes.
+     */
+    private final boolean[] verified;
+
+    private IndexSnapshot(MappedByteBuffer buffer) throws StreamCorruptedException {
+        this.buffer = buffer;
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(0, HEADER_LENGTH - 4));
+        int version = buffer.getInt(4);
+        if (buffer.getInt(0) != MAGIC || version < HEADER_CRC_VERSION || version > FORMAT_VERSION
+                || buffer.getInt(HEADER_LENGTH - 4) != (int) crc.getValue()) {
+            throw new StreamCorruptedException("Not a valid index snapshot");
+        }
+
+        nextId = buffer.getLong(8);
+        generation = buffer.getLong(16);
+        count = buffer.getInt(24);
+        int capacity = buffer.getInt(28);
+        long names = buffer.getLong(32);
+        long contentEnd = HEADER_LENGTH + (long) capacity * (ID_SLOT_LENGTH + NAME_SLOT_LENGTH) + names;
+        int regions = version == FORMAT_VERSION ? regionCount(contentEnd) : 0;
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1 || names < 0
+                || contentEnd + regions * 4L != buffer.capacity()) {
+            throw new StreamCorruptedException("Index snapshot of unexpected length");
+        }
+        mask = capacity - 1;
+        nameTableStart = HEADER_LENGTH + capacity * ID_SLOT_LENGTH;
+        namesStart = nameTableStart + capacity * NAME_SLOT_LENGTH;
+        namesLength = (int) names;
+        regionTableStart = (int) contentEnd;
+
+        if (version == FORMAT_VERSION) {
+            if (buffer.getInt(40) != crc32(buffer, regionTableStart, regions * 4)) {
+                throw new StreamCorruptedException("Index snapshot with damaged region checksums");
+            }
+            verified = new boolean[regions];
+        } else {
+            if (version == WHOLE_CRC_VERSION
+                    && buffer.getInt(40) != crc32(buffer, HEADER_LENGTH, regionTableStart - HEADER_LENGTH)) {
+                throw new StreamCorruptedException("Index snapshot with damaged entries");
+            }
+            verified = null;
+        }
+    }
+
+    /**
+     * Maps a snapshot file and checks its header and the table of region CRCs. The entries are only read from
+     * disk, and checked, when they are searched.
+     *
+     * @param file the snapshot file
+     * @return the mapped snapshot
+     * @throws IOException if the file cannot be mapped or is not a valid snapshot
+     */
+    static IndexSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_LENGTH || channel.size() > Integer.MAX_VALUE) {
+                throw new StreamCorruptedException("Index snapshot of unexpected length");
+            }
+            return new IndexSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    long nextId() {
+        return nextId;
+    }
+
+    /**
+     * @return the first journal generation not included in this snapshot
+     */
+    long generation() {
+        return generation;
+    }
+
+    int count() {
+        return count;
+    }
+
+    /**
+     * @param id the id of a file
+     * @return the name of the file with this id, or null if the snapshot has no such id
+     * @throws UncheckedIOException if a region read is damaged
+     */
+    String nameOf(long id) {
+        int slot = mix(Long.hashCode(id)) & mask;
+
+        for (int probes = 0; probes <= mask; probes++) {
+            int position = HEADER_LENGTH + slot * ID_SLOT_LENGTH;
+            check(position, ID_SLOT_LENGTH);
+            int nameLength = buffer.getInt(position + 16) - 1;
+            if (nameLength < 0) {
+                return null;
+            }
+            if (buffer.getLong(position) == id) {
+                return readName(position, nameLength);
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * @param name the name of a file
+     * @return the id of the file with this name, or {@link #NO_ID} if the snapshot has no such name
+     * @throws UncheckedIOException if a region read is damaged
+     */
+    long idOf(String name) {
+        int hash = mix(name.hashCode());
+        byte[] nameBytes = null;
+        int slot = hash & mask;
+
+        for (int probes = 0; probes <= mask; probes++) {
+            check(nameTableStart + slot * NAME_SLOT_LENGTH, NAME_SLOT_LENGTH);
+            int idSlot = buffer.getInt(nameTableStart + slot * NAME_SLOT_LENGTH) - 1;
+            if (idSlot < 0 || idSlot > mask) {
+                return NO_ID;
+            }
+            int position = HEADER_LENGTH + idSlot * ID_SLOT_LENGTH;
+            check(position, ID_SLOT_LENGTH);
+            if (buffer.getInt(position + 20) == hash) {
+                if (nameBytes == null) {
+                    nameBytes = name.getBytes(StandardCharsets.UTF_8);
+                }
+                if (nameEquals(position, nameBytes)) {
+                    return buffer.getLong(position);
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NO_ID;
+    }
+
+    /**
+     * Calls the consumer with every entry of the snapshot, in table order.
+     *
+     * @param consumer the consumer of the names and ids
+     * @throws UncheckedIOException if a region read is damaged
+     */
+    void forEach(EntryConsumer consumer) {
+        for (int slot = 0; slot <= mask; slot++) {
+            int position = HEADER_LENGTH + slot * ID_SLOT_LENGTH;
+            check(position, ID_SLOT_LENGTH);
+            int nameLength = buffer.getInt(position + 16) - 1;
+            if (nameLength >= 0) {
+                String name = readName(position, nameLength);
+                if (name != null) {
+                    consumer.accept(name, buffer.getLong(position));
+                }
+            }
+        }
+    }
+
+    interface EntryConsumer {
+        void accept(String name, long id);
+    }
+
+    /**
+     * Writes a snapshot file from an older snapshot and the changes made since.
+     * The file is written through a mapping of its final length, in two passes over the entries: the first one
+     * counts them and the bytes of their names, the second one places them in the tables, so that no copy of the
+     * entries is held in memory.
+     *
+     * @param file the file to write, replaced if it exists
+     * @param base the older snapshot, or null
+     * @param changes the names changed since the older snapshot, mapped to their id or to {@link #NO_ID}
+     *                for deleted names
+     * @param nextId the next id of the sequence
+     * @param generation the first journal generation not included in the snapshot
+     * @throws IOException if the file cannot be written, or the older snapshot is damaged
+     */
+    static void write(Path file, IndexSnapshot base, Map<String, Long> changes, long nextId, long generation)
+            throws IOException {
+
+        int[] count = new int[1];
+        long[] namesLength = new long[1];
+        forEachEntry(base, changes, (name, id) -> {
+            count[0]++;
+            namesLength[0] += encodedLength(name);
+        });
+
+        int capacity = Integer.highestOneBit(Math.max(count[0], 8) * 2 - 1) << 1;
+        long contentEnd = HEADER_LENGTH + (long) capacity * (ID_SLOT_LENGTH + NAME_SLOT_LENGTH) + namesLength[0];
+        int regions = regionCount(contentEnd);
+        long length = contentEnd + regions * 4L;
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Index snapshot too large");
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer output = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+
+            int mask = capacity - 1;
+            int nameTableStart = HEADER_LENGTH + capacity * ID_SLOT_LENGTH;
+            int namesStart = nameTableStart + capacity * NAME_SLOT_LENGTH;
+            int[] nameOffset = new int[1];
+
+            forEachEntry(base, changes, (name, id) -> {
+                byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+                int idSlot = mix(Long.hashCode(id)) & mask;
+                // the file is created filled with zeros, so an empty slot has a name length of 0
+                while (output.getInt(HEADER_LENGTH + idSlot * ID_SLOT_LENGTH + 16) != 0) {
+                    idSlot = (idSlot + 1) & mask;
+                }
+
+                int position = HEADER_LENGTH + idSlot * ID_SLOT_LENGTH;
+                int hash = mix(name.hashCode());
+                output.putLong(position, id).putInt(position + 8, nameOffset[0])
+                        .putInt(position + 16, encoded.length + 1).putInt(position + 20, hash);
+                output.put(namesStart + nameOffset[0], encoded);
+                nameOffset[0] += encoded.length;
+
+                int nameSlot = hash & mask;
+                while (output.getInt(nameTableStart + nameSlot * NAME_SLOT_LENGTH) != 0) {
+                    nameSlot = (nameSlot + 1) & mask;
+                }
+                output.putInt(nameTableStart + nameSlot * NAME_SLOT_LENGTH, idSlot + 1);
+            });
+
+            int regionTableStart = (int) contentEnd;
+            for (int region = 0; region < regions; region++) {
+                int start = HEADER_LENGTH + region * REGION_LENGTH;
+                int regionLength = Math.min(REGION_LENGTH, regionTableStart - start);
+                output.putInt(regionTableStart + region * 4, crc32(output, start, regionLength));
+            }
+            output.putInt(0, MAGIC).putInt(4, FORMAT_VERSION).putLong(8, nextId).putLong(16, generation)
+                    .putInt(24, count[0]).putInt(28, capacity).putLong(32, namesLength[0])
+                    .putInt(40, crc32(output, regionTableStart, regions * 4));
+            output.putInt(HEADER_LENGTH - 4, crc32(output, 0, HEADER_LENGTH - 4));
+            output.force();
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Calls the consumer with every entry of an older snapshot that was not changed, then with every name changed
+     * since that was not deleted.
+     */
+    private static void forEachEntry(IndexSnapshot base, Map<String, Long> changes, EntryConsumer consumer)
+            throws IOException {
+        if (base != null) {
+            try {
+                base.forEach((name, id) -> {
+                    if (!changes.containsKey(name)) {
+                        consumer.accept(name, id);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        for (Map.Entry<String, Long> change : changes.entrySet()) {
+            if (change.getValue() != NO_ID) {
+                consumer.accept(change.getKey(), change.getValue());
+            }
+        }
+    }
+
+    private String readName(int position, int nameLength) {
+        int offset = buffer.getInt(position + 8);
+        if (offset < 0 || (long) offset + nameLength > namesLength) {
+            return null;
+        }
+        check(namesStart + offset, nameLength);
+        byte[] name = new byte[nameLength];
+        buffer.get(namesStart + offset, name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    private boolean nameEquals(int position, byte[] name) {
+        int offset = buffer.getInt(position + 8);
+        if (buffer.getInt(position + 16) - 1 != name.length || offset < 0
+                || (long) offset + name.length > namesLength) {
+            return false;
+        }
+        check(namesStart + offset, name.length);
+        byte[] stored = new byte[name.length];
+        buffer.get(namesStart + offset, stored);
+        return Arrays.equals(stored, name);
+    }
+
+    /**
+     * Checks the regions holding a range of the tables or names the first time one of them is read.
+     *
+     * @throws UncheckedIOException if a region does not match its CRC32
+     */
+    private void check(int position, int length) {
+        if (verified == null || length == 0) {
+            return;
+        }
+        int last = (position + length - 1 - HEADER_LENGTH) / REGION_LENGTH;
+        for (int region = (position - HEADER_LENGTH) / REGION_LENGTH; region <= last; region++) {
+            if (!verified[region]) {
+                int start = HEADER_LENGTH + region * REGION_LENGTH;
+                int regionLength = Math.min(REGION_LENGTH, regionTableStart - start);
+                if (crc32(buffer, start, regionLength) != buffer.getInt(regionTableStart + region * 4)) {
+                    throw new UncheckedIOException(new StreamCorruptedException(
+                            "Index snapshot with damaged entries in region " + region));
+                }
+                verified[region] = true;
+            }
+        }
+    }
+
+    /**
+     * @return the length of the UTF-8 encoding of a name, without encoding it
+     */
+    private static int encodedLength(String name) {
+        int length = name.length();
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= 0x800 && !Character.isSurrogate(c)) {
+                length += 2;
+            } else if (c >= 0x80 && !Character.isSurrogate(c)) {
+                length++;
+            } else if (Character.isHighSurrogate(c) && i + 1 < name.length()
+                    && Character.isLowSurrogate(name.charAt(i + 1))) {
+                // a pair is encoded on four bytes
+                length += 2;
+                i++;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @return the number of regions the tables and names ending at the given offset are split in
+     */
+    private static int regionCount(long contentEnd) {
+        return (int) ((contentEnd - HEADER_LENGTH + REGION_LENGTH - 1) / REGION_LENGTH);
+    }
+
+    private static int crc32(ByteBuffer snapshot, int position, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(snapshot.slice(position, length));
+        return (int) crc.getValue();
+    }
+
+    private static int mix(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,125 @@
+package server;
+
+import protocol.Compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/**
+ * The decompressed view of a request body sent compressed, so that it is stored like a body sent as it is.
+ * The compressed body is decompressed as it is received.
+ */
+class InflatingBody implements RequestBody {
+    private final RequestBody compressed;
+    private final Compression.InflatingStream input;
+
+    /**
+     * Reads the length of the file from the start of the compressed body.
+     *
+     * @param compressed the body in the {@link Compression} format
+     * @throws IOException if the length cannot be read, the compressed body is then discarded
+     */
+    InflatingBody(RequestBody compressed) throws IOException {
+        this.compressed = compressed;
+        try {
+            this.input = new Compression.InflatingStream(compressed.stream(), compressed.length());
+        } catch (IOException e) {
+            compressed.discard();
+            throw e;
+        }
+    }
+
+    @Override
+    public long length() {
+        return input.length();
+    }
+
+    @Override
+    public void saveTo(Path target) throws IOException {
+        copyTo(target, null);
+    }
+
+    @Override
+    public byte[] saveDigested(Path target) throws IOException {
+        MessageDigest digest = ContentStore.newDigest();
+        copyTo(target, digest);
+        return digest.digest();
+    }
+
+    @Override
+    public byte[] readAll() throws IOException {
+        try {
+            byte[] content = input.readNBytes(Math.toIntExact(input.length()));
+            if (content.length < input.length()) {
+                throw new IOException("Compressed body shorter than announced");
+            }
+            return content;
+        } finally {
+            discard();
+        }
+    }
+
+    @Override
+    public void writeTo(FileChannel target, long position) throws IOException {
+        try {
+            byte[] buffer = new byte[Server.TRANSFER_BUFFER_SIZE];
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                while (chunk.hasRemaining()) {
+                    position += target.write(chunk, position);
+                }
+            }
+        } finally {
+            discard();
+        }
+    }
+
+    @Override
+    public InputStream stream() {
+        return input;
+    }
+
+    @Override
+    public void discard() throws IOException {
+        try {
+            input.skipRemaining();
+        } finally {
+            input.close();
+            compressed.discard();
+        }
+    }
+
+    private void copyTo(Path target, MessageDigest digest) throws IOException {
+        byte[] buffer = new byte[Server.TRANSFER_BUFFER_SIZE];
+        OutputStream output;
+        try {
+            output = Files.newOutputStream(target, StandardOpenOption.CREATE_NEW);
+        } catch (IOException e) {
+            discard();
+            throw e;
+        }
+
+        try (output) {
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                if (digest != null) {
+                    digest.update(buffer, 0, read);
+                }
+                output.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            discard();
+            Files.deleteIfExists(target);
+            throw e;
+        }
+        discard();
+    }
+}
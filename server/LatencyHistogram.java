@@ -0,0 +1,108 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies recorded without locks, in the spirit of HdrHistogram.
+ * <p>
+ * Values are counted in log-linear buckets: every power of two is split into {@link #SUB_BUCKETS} buckets of
+ * equal width, so a percentile is known within 1/{@value #SUB_BUCKETS} of its value whatever its magnitude,
+ * from nanoseconds to minutes, for a few kilobytes of counters. Recording a value is a single atomic increment.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param nanos the latency to record, negative values are recorded as 0
+     */
+    void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(nanos));
+        count.increment();
+        total.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    long count() {
+        return count.sum();
+    }
+
+    /**
+     * @return the mean of the values recorded, 0 if none was
+     */
+    long mean() {
+        long values = count.sum();
+        return values == 0 ? 0 : total.sum() / values;
+    }
+
+    /**
+     * @return the largest value recorded
+     */
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * Finds the value below which the given fraction of the values recorded fall. Values recorded meanwhile may
+     * or may not be taken into account.
+     *
+     * @param fraction the fraction of the values, 0.99 for the 99th percentile
+     * @return the largest value of the bucket holding the percentile, 0 if no value was recorded
+     */
+    long percentile(double fraction) {
+        long[] snapshot = new long[BUCKETS];
+        long values = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            values += snapshot[i];
+        }
+        if (values == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(fraction * values));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), max());
+            }
+        }
+        return max();
+    }
+
+    /**
+     * Values below {@link #SUB_BUCKETS} get a bucket each, larger values share the bucket of the sub-range of
+     * their power of two they fall in.
+     */
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (subBucket + 1) * width - 1;
+    }
+}
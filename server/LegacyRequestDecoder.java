@@ -0,0 +1,240 @@
+package server;
+
+import protocol.Protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamConstants;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes requests sent as a serialized tokens list, followed by the content length and bytes for a PUT.
+ * Java serialization cannot be parsed incrementally, so decoding is attempted again from the start of the stream
+ * as bytes arrive, running out of bytes meaning that the request is not complete yet.
+ * Once the content length of a PUT is known, further attempts wait until at least that many bytes have been
+ * received, keeping the number of attempts small for large uploads.
+ * As the serialization stream shares state between objects, a connection carries a single request,
+ * and the uploaded content is held in memory until the request is complete. The content is admitted in the
+ * in-flight bytes of the server as soon as its length is decoded, before it is buffered, so that legacy uploads
+ * together never hold more memory than the in-flight limit. A content that does not fit is dropped as it arrives,
+ * and the request answered with 503 once it has been received. A content longer than the whole in-flight limit
+ * is refused outright.
+ * <p>
+ * Deserializing what a client sends lets it make the server build any serializable class, so the tokens are read
+ * through a filter that only accepts a short list of strings.
+ */
+class LegacyRequestDecoder implements RequestDecoder {
+    private static final int STREAM_HEADER_LENGTH = 4;
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+    /** The most tokens a request has: the command, the lookup mode and the name or id of the file. */
+    private static final int MAX_TOKENS = 3;
+    /** The most bytes the tokens list takes: three names of the longest length, and their encoding. */
+    private static final int MAX_TOKENS_LENGTH = MAX_TOKENS * 3 * Protocol.MAX_NAME_LENGTH;
+    /** The largest buffer that can be allocated, for servers without an in-flight limit. */
+    private static final int MAX_BUFFER_LENGTH = Integer.MAX_VALUE - 8;
+    /**
+     * Accepts an {@code ArrayList} of strings, and the array of objects it reads its elements into, no deeper than
+     * the strings and no longer than three names of the longest length.
+     */
+    private static final ObjectInputFilter TOKENS_FILTER = ObjectInputFilter.Config.createFilter(
+            "maxdepth=2;maxrefs=16;maxarray=" + MAX_TOKENS + ";maxbytes=" + MAX_TOKENS_LENGTH
+                    + ";java.util.ArrayList;java.lang.String;java.lang.Object;!*");
+    private final long maxContentLength;
+    private final Admission admission;
+    private int neededBytes = STREAM_HEADER_LENGTH;
+    /** The content length reserved in the in-flight bytes, -1 until the content length is decoded. */
+    private long reserved = -1;
+    /** The request answered with 503 once its content has been dropped, null while the content is admitted. */
+    private Request rejected;
+    private long blockDataRemaining;
+    private int blockRemaining;
+
+    /**
+     * @param maxContentLength the length of the longest content accepted, 0 for no limit
+     * @param admission the in-flight bytes the content is reserved in
+     */
+    LegacyRequestDecoder(long maxContentLength, Admission admission) {
+        this.maxContentLength = maxContentLength;
+        this.admission = admission;
+    }
+
+    /**
+     * Decodes the request once it has been received whole. The request returned was already admitted, see
+     * {@link #admits()}. Once a content has been rejected, the bytes received are dropped as they are decoded,
+     * moving the buffer position even if the request is not complete yet.
+     */
+    @Override
+    public Request decode(ByteBuffer buffer) throws IOException {
+
+        if (rejected == null) {
+            if (buffer.remaining() < neededBytes) {
+                return null;
+            }
+            Request request = decodeWhole(buffer);
+            if (request != null) {
+                // from now on the reservation is released with the request, see Server#released
+                reserved = 0;
+                return request;
+            } else if (rejected == null) {
+                return null;
+            }
+        }
+        return discard(buffer);
+    }
+
+    /**
+     * Tries to decode the whole request, reserving its content in the in-flight bytes once its length is known.
+     *
+     * @return the request, or null if more bytes are needed or the content was rejected
+     */
+    private Request decodeWhole(ByteBuffer buffer) throws IOException {
+        ByteArrayInputStream bytes = new ByteArrayInputStream(buffer.array(),
+                buffer.arrayOffset() + buffer.position(), buffer.remaining());
+
+        try (ObjectInputStream input = new ObjectInputStream(bytes)) {
+
+            List<String> commandToken = readTokens(input);
+            // the stream does not read ahead of an object, so the block data of the content starts here
+            int tokensLength = buffer.remaining() - bytes.available();
+            RequestBody userContent = null;
+
+            if (!commandToken.isEmpty() && commandToken.get(0).equals("PUT")) {
+                int size = input.readInt();
+                if (size < 0) {
+                    throw new StreamCorruptedException("Negative content length " + size);
+                }
+                if (maxContentLength > 0 && size > maxContentLength) {
+                    throw new StreamCorruptedException("Content length " + size + " over the in-flight limit");
+                }
+                if (reserved < 0 && !admission.reserve(size)) {
+                    rejected = Request.fromTokens(commandToken, null).rejected();
+                    blockDataRemaining = Integer.BYTES + (long) size;
+                    buffer.position(buffer.position() + tokensLength);
+                    return null;
+                }
+                reserved = size;
+                neededBytes = Math.max(neededBytes, size);
+                if (buffer.remaining() < size) {
+                    return null;
+                }
+                byte[] content = new byte[size];
+                input.readFully(content, 0, content.length);
+                userContent = new StreamBody(new ByteArrayInputStream(content), size, new byte[COPY_BUFFER_SIZE]);
+            }
+
+            buffer.position(buffer.limit());
+            return Request.fromTokens(commandToken, userContent);
+
+        } catch (EOFException | StreamCorruptedException e) {
+            if (bytes.available() == 0) {
+                return null;
+            }
+            throw e;
+        } catch (ClassNotFoundException e) {
+            throw new StreamCorruptedException("Invalid request tokens");
+        }
+    }
+
+    /**
+     * Drops the content of a rejected request as it arrives. The content length and the content follow the
+     * tokens as block data, split in blocks that each start with a short header.
+     *
+     * @return the rejected request once its whole content has been dropped, null before
+     * @throws StreamCorruptedException if the bytes received are not block data
+     */
+    private Request discard(ByteBuffer buffer) throws StreamCorruptedException {
+        while (blockDataRemaining > 0 && buffer.hasRemaining()) {
+            if (blockRemaining == 0) {
+                int position = buffer.position();
+                byte tag = buffer.get(position);
+                if (tag == ObjectStreamConstants.TC_BLOCKDATA && buffer.remaining() >= 2) {
+                    blockRemaining = buffer.get(position + 1) & 0xFF;
+                    buffer.position(position + 2);
+                } else if (tag == ObjectStreamConstants.TC_BLOCKDATALONG && buffer.remaining() >= 5) {
+                    blockRemaining = buffer.getInt(position + 1);
+                    buffer.position(position + 5);
+                } else if (tag == ObjectStreamConstants.TC_BLOCKDATA
+                        || tag == ObjectStreamConstants.TC_BLOCKDATALONG) {
+                    return null;
+                } else {
+                    throw new StreamCorruptedException("Invalid content block");
+                }
+                if (blockRemaining < 0) {
+                    throw new StreamCorruptedException("Invalid content block length " + blockRemaining);
+                }
+            }
+            int dropped = (int) Math.min(buffer.remaining(), Math.min(blockRemaining, blockDataRemaining));
+            buffer.position(buffer.position() + dropped);
+            blockRemaining -= dropped;
+            blockDataRemaining -= dropped;
+        }
+        if (blockDataRemaining > 0) {
+            return null;
+        }
+        buffer.position(buffer.limit());
+        return rejected;
+    }
+
+    /**
+     * Reads the tokens list of a legacy request through {@link #TOKENS_FILTER}.
+     *
+     * @param input the stream positioned at the tokens list, before anything was read from it
+     * @return the request tokens
+     * @throws java.io.InvalidClassException if the stream holds anything else than a short list of strings
+     * @throws InvalidObjectException if the stream holds another object than a list of strings
+     * @throws IOException if an error occurs while reading
+     * @throws ClassNotFoundException if the stream names an unknown class
+     */
+    static List<String> readTokens(ObjectInputStream input) throws IOException, ClassNotFoundException {
+        input.setObjectInputFilter(TOKENS_FILTER);
+        Object tokens = input.readObject();
+        if (!(tokens instanceof ArrayList)) {
+            throw new InvalidObjectException("Invalid request tokens");
+        }
+        List<String> commandToken = new ArrayList<>();
+        for (Object token : (ArrayList<?>) tokens) {
+            if (!(token instanceof String)) {
+                throw new InvalidObjectException("Invalid request tokens");
+            }
+            commandToken.add((String) token);
+        }
+        return commandToken;
+    }
+
+    /**
+     * @return the length of the tokens list followed by the content length and the longest content accepted
+     */
+    @Override
+    public int maxRequestLength() {
+        long maxContent = maxContentLength > 0 ? maxContentLength : MAX_BUFFER_LENGTH;
+        return (int) Math.min(MAX_BUFFER_LENGTH, MAX_TOKENS_LENGTH + 4 + maxContent);
+    }
+
+    @Override
+    public boolean keepsAlive() {
+        return false;
+    }
+
+    @Override
+    public boolean admits() {
+        return true;
+    }
+
+    /**
+     * Releases the in-flight bytes reserved for a content that was not received whole.
+     */
+    @Override
+    public void close() {
+        if (reserved > 0) {
+            admission.release(reserved);
+        }
+        reserved = 0;
+    }
+}
@@ -1,7 +1,19 @@
 package server;
 
 public class Main {
+
+    /**
+     * Starts the server with the transport selected by the command line options.
+     *
+     * @param args the command line options, as described in {@link ServerOptions#parse(String[])}
+     */
     public static void main(String[] args) {
-        new Server().start();
+        ServerOptions options = ServerOptions.parse(args);
+
+        if (options.transport.equals("nio")) {
+            new NioServer(options).start();
+        } else {
+            new Server(options).start();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,135 @@
+package server;
+
+import protocol.Protocol;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * The counters and latency histograms of a running server, updated without locks on the request paths and
+ * reported as text by the {@link Protocol#STATS} request and the periodic statistics file.
+ * <p>
+ * Every request is counted under its opcode with the time taken to execute it, which for a GET does not include
+ * sending the file, and requests answered with a status of 400 or more are also counted as failed. The bytes in
+ * and out are the bodies of the requests and the contents of the responses, those of a batch being counted
+ * with the requests it carries. Lookups of a file in the index, whatever the request they are made for, get
+ * their own histogram.
+ */
+class Metrics {
+    private static final String[] OPCODES = {"EXIT", "GET", "PUT", "DELETE", "RESUME", "COMMIT", "BATCH", "STATS"};
+
+    /** The histograms of the opcodes, followed by the histogram of the requests with an unknown opcode. */
+    private final LatencyHistogram[] latencies = new LatencyHistogram[OPCODES.length + 1];
+    private final LongAdder[] failures = new LongAdder[OPCODES.length + 1];
+    private final LatencyHistogram lookups = new LatencyHistogram();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final long startNanos = System.nanoTime();
+    private volatile IntSupplier writeQueue = () -> 0;
+    private volatile IntSupplier executorQueue = () -> 0;
+    private volatile LongSupplier inFlightBytes = () -> 0;
+
+    Metrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+            failures[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records an executed request.
+     *
+     * @param opcode the opcode of the request
+     * @param status the status of the response
+     * @param nanos the time taken to execute the request
+     * @param bodyLength the length of the request body
+     * @param contentLength the length of the content of the response
+     */
+    void requestExecuted(byte opcode, int status, long nanos, long bodyLength, long contentLength) {
+        int slot = opcode >= 0 && opcode < OPCODES.length ? opcode : OPCODES.length;
+        latencies[slot].record(nanos);
+        if (status >= 400) {
+            failures[slot].increment();
+        }
+        if (opcode != Protocol.BATCH) {
+            bytesIn.add(bodyLength);
+            bytesOut.add(contentLength);
+        }
+    }
+
+    /**
+     * @param nanos the time taken to find a file in the index
+     */
+    void lookedUp(long nanos) {
+        lookups.record(nanos);
+    }
+
+    void connectionOpened() {
+        connections.increment();
+        activeConnections.increment();
+    }
+
+    void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    /**
+     * Sets where the queue depths reported come from, once the server has created its queues.
+     *
+     * @param writeQueue the number of saved files waiting to be synced
+     * @param executorQueue the number of requests or connections waiting for a thread of the connection executor
+     * @param inFlightBytes the number of request body bytes being received or executed
+     */
+    void setQueues(IntSupplier writeQueue, IntSupplier executorQueue, LongSupplier inFlightBytes) {
+        this.writeQueue = writeQueue;
+        this.executorQueue = executorQueue;
+        this.inFlightBytes = inFlightBytes;
+    }
+
+    /**
+     * Reports the counters and the latency percentiles of every opcode that was requested, in microseconds.
+     * Throughput is the number of requests per second since the server started.
+     *
+     * @return the report, one line per counter or opcode
+     */
+    String report() {
+        double seconds = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)) / 1000.0;
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "uptime %.1f s%n", seconds));
+        report.append(String.format(Locale.ROOT, "connections active %d total %d%n",
+                activeConnections.sum(), connections.sum()));
+        report.append(String.format(Locale.ROOT, "bytes in %d out %d%n", bytesIn.sum(), bytesOut.sum()));
+        report.append(String.format(Locale.ROOT, "queues write %d executor %d in-flight bytes %d%n",
+                writeQueue.getAsInt(), executorQueue.getAsInt(), inFlightBytes.getAsLong()));
+        report.append(String.format(Locale.ROOT, "%-8s %10s %8s %10s %10s %10s %10s %10s %10s%n", "request",
+                "count", "failed", "req/s", "mean us", "p50 us", "p99 us", "p999 us", "max us"));
+
+        for (int i = 0; i < latencies.length; i++) {
+            if (latencies[i].count() > 0) {
+                appendLine(report, i < OPCODES.length ? OPCODES[i] : "OTHER", latencies[i], failures[i].sum(),
+                        seconds);
+            }
+        }
+        if (lookups.count() > 0) {
+            appendLine(report, "lookup", lookups, 0, seconds);
+        }
+        return report.toString();
+    }
+
+    private static void appendLine(StringBuilder report, String name, LatencyHistogram histogram, long failed,
+                                   double seconds) {
+        report.append(String.format(Locale.ROOT, "%-8s %10d %8d %10.1f %10d %10d %10d %10d %10d%n", name,
+                histogram.count(), failed, histogram.count() / seconds, micros(histogram.mean()),
+                micros(histogram.percentile(0.5)), micros(histogram.percentile(0.99)),
+                micros(histogram.percentile(0.999)), micros(histogram.max())));
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
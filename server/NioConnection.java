@@ -0,0 +1,326 @@
+package server;
+
+import protocol.Protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/**
+ * The state of a client connection served by a {@link NioServer} event loop.
+ * A connection reads until a whole request has been decoded, waits while the request is executed
+ * and then writes the response back, before decoding the next request.
+ * Requests pipelined by the client are left in the inbound buffer, or in the socket, until the previous
+ * response has been written, so responses are always sent in the order of the requests.
+ * <p>
+ * Request bodies are written to a spool file as they arrive and file contents are read from disk as the
+ * socket accepts them, through fixed size buffers, so memory use does not depend on the size of the transfers.
+ * Bodies of up to {@link #MAX_MEMORY_BODY_LENGTH} bytes, such as the offsets of ranges and resumable uploads,
+ * are held in memory instead. The body of a request rejected by the {@link Admission} of the server is dropped
+ * as it arrives.
+ * <p>
+ * The inbound buffer grows until it holds a whole request header, or a whole legacy request, up to the longest
+ * the decoder accepts. A request that does not fit is answered with 400 and the connection is closed.
+ */
+class NioConnection {
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_MEMORY_BODY_LENGTH = 16 * 1024;
+
+    enum State { READING, EXECUTING, WRITING }
+
+    private final Server server;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private RequestDecoder decoder;
+    private ByteBuffer inbound = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private ByteBuffer outbound;
+    private State state = State.READING;
+    private long lastActivity = System.nanoTime();
+
+    private Request pending;
+    private ByteBuffer memoryBody;
+    private Path spoolFile;
+    private FileChannel spool;
+    private MessageDigest spoolDigest;
+    private long bodyRemaining;
+    private boolean invalid;
+
+    private Response response;
+    private ByteBuffer content;
+    private ByteBuffer[] contentParts;
+    private long fileRemaining;
+    private ByteBuffer fileBuffer;
+
+    NioConnection(Server server, SocketChannel channel, SelectionKey key) {
+        this.server = server;
+        this.channel = channel;
+        this.key = key;
+        server.metrics().connectionOpened();
+    }
+
+    State state() {
+        return state;
+    }
+
+    boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * @param timeoutNanos the longest time a connection may wait for a request
+     * @return true if the connection has been waiting for a request for longer than the timeout
+     */
+    boolean isIdle(long timeoutNanos) {
+        return state == State.READING && System.nanoTime() - lastActivity > timeoutNanos;
+    }
+
+    /**
+     * Reads the bytes available on the channel and tries to decode a request from them.
+     * The request format is chosen from the first byte received.
+     * Once a request is decoded the connection stops reading until its response has been written.
+     *
+     * @return the decoded request, or null if more bytes are needed
+     * @throws IOException if the client closed the connection or sent an invalid request
+     */
+    Request read() throws IOException {
+
+        if (channel.read(inbound) < 0) {
+            throw new EOFException();
+        }
+        lastActivity = System.nanoTime();
+        return decodeNext();
+    }
+
+    /**
+     * Tries to decode a request from the bytes already received, spooling the body of a decoded header.
+     *
+     * @return the request once its header and body have been fully received, or null if more bytes are needed
+     * @throws IOException if the client sent an invalid request or the body cannot be spooled
+     */
+    Request decodeNext() throws IOException {
+
+        if (pending == null) {
+            inbound.flip();
+            if (decoder == null && inbound.hasRemaining()) {
+                decoder = server.newDecoder(inbound.get(inbound.position()));
+            }
+            Request request = decoder != null ? decoder.decode(inbound) : null;
+            inbound.compact();
+            if (request != null) {
+                request = server.withSource(request, channel.socket().getInetAddress());
+            }
+
+            if (request == null) {
+                if (!inbound.hasRemaining()) {
+                    int maxLength = decoder.maxRequestLength();
+                    if (inbound.capacity() >= maxLength) {
+                        invalid = true;
+                        inbound.clear();
+                        return startExecuting(Request.invalid(decoder instanceof LegacyRequestDecoder));
+                    }
+                    ByteBuffer larger = ByteBuffer.allocate((int) Math.min((long) inbound.capacity() * 2, maxLength));
+                    inbound.flip();
+                    inbound = larger.put(inbound);
+                }
+                return null;
+            }
+
+            if (request.body != null) {
+                return startExecuting(decoder.admits() ? request : server.admit(request));
+            } else if (request.bodyLength == 0) {
+                RequestBody empty = new StreamBody(InputStream.nullInputStream(), 0, new byte[0]);
+                return startExecuting(request.opcode == Protocol.PUT ? request.withBody(empty) : request);
+            }
+
+            pending = server.admit(request);
+            if (!pending.rejected && request.bodyLength <= MAX_MEMORY_BODY_LENGTH) {
+                memoryBody = ByteBuffer.allocate((int) request.bodyLength);
+            } else if (!pending.rejected) {
+                spoolFile = server.newUploadFile();
+                spool = FileChannel.open(spoolFile, StandardOpenOption.WRITE);
+                spoolDigest = server.options().dedup && request.opcode == Protocol.PUT
+                        ? ContentStore.newDigest() : null;
+            }
+            bodyRemaining = request.bodyLength;
+        }
+
+        inbound.flip();
+        int length = (int) Math.min(inbound.remaining(), bodyRemaining);
+        if (memoryBody != null) {
+            memoryBody.put(inbound.slice(inbound.position(), length));
+        } else if (spool != null) {
+            ByteBuffer chunk = inbound.slice(inbound.position(), length);
+            if (spoolDigest != null) {
+                spoolDigest.update(chunk.duplicate());
+            }
+            while (chunk.hasRemaining()) {
+                spool.write(chunk);
+            }
+        }
+        inbound.position(inbound.position() + length);
+        inbound.compact();
+        bodyRemaining -= length;
+
+        if (bodyRemaining > 0) {
+            return null;
+        }
+
+        Request request;
+        if (memoryBody != null) {
+            byte[] content = memoryBody.array();
+            byte[] buffer = new byte[Math.max(1, content.length)];
+            request = pending.withBody(new StreamBody(new ByteArrayInputStream(content), content.length, buffer));
+        } else if (spool != null) {
+            spool.close();
+            request = pending.withBody(new SpooledBody(spoolFile, pending.bodyLength, spoolDigest));
+        } else {
+            // the body of a rejected request is dropped as it arrives
+            request = pending.withBody(new StreamBody(InputStream.nullInputStream(), 0, new byte[0]));
+        }
+        pending = null;
+        memoryBody = null;
+        spool = null;
+        spoolDigest = null;
+        spoolFile = null;
+        return startExecuting(request);
+    }
+
+    private Request startExecuting(Request request) {
+        state = State.EXECUTING;
+        key.interestOps(0);
+        return request;
+    }
+
+    /**
+     * Queues the response to the request being executed and starts writing it.
+     *
+     * @param response the response to send to the client
+     * @param legacy true if the response is for a legacy client
+     */
+    void respond(Response response, boolean legacy) {
+        this.response = response;
+        outbound = response.encodeHeader(legacy);
+        fileRemaining = response.file != null ? response.fileSize : 0;
+        content = response.content;
+        contentParts = content != null ? new ByteBuffer[] {outbound, content} : null;
+        state = State.WRITING;
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Writes as much of the pending response as the channel accepts.
+     * With zero copy the content of a retrieved file is handed to the kernel with {@link FileChannel#transferTo},
+     * otherwise it is read from disk through a direct buffer as the previous chunk has been written.
+     * A cached content is written along with the header in a single gathering write.
+     *
+     * @return true once the whole response has been written
+     * @throws IOException if an error occurs while writing to the client or reading the file
+     */
+    boolean write() throws IOException {
+
+        while (true) {
+            if (content != null) {
+                channel.write(contentParts);
+                lastActivity = System.nanoTime();
+                if (content.hasRemaining()) {
+                    return false;
+                }
+                content = null;
+                contentParts = null;
+            }
+
+            if (outbound.hasRemaining()) {
+                channel.write(outbound);
+                lastActivity = System.nanoTime();
+                if (outbound.hasRemaining()) {
+                    return false;
+                }
+            }
+
+            if (fileRemaining == 0) {
+                response.close();
+                response = null;
+                return true;
+            }
+
+            long position = response.fileOffset + response.fileSize - fileRemaining;
+
+            if (server.options().zeroCopy) {
+                long sent = response.file.transferTo(position, fileRemaining, channel);
+                if (sent == 0) {
+                    if (position >= response.file.size()) {
+                        throw new EOFException("File shorter than announced");
+                    }
+                    return false;
+                }
+                fileRemaining -= sent;
+                lastActivity = System.nanoTime();
+                continue;
+            }
+
+            if (fileBuffer == null) {
+                fileBuffer = ByteBuffer.allocateDirect(Server.TRANSFER_BUFFER_SIZE);
+            }
+            fileBuffer.clear().limit((int) Math.min(fileBuffer.capacity(), fileRemaining));
+            if (response.file.read(fileBuffer, position) < 0) {
+                throw new EOFException("File shorter than announced");
+            }
+            fileRemaining -= fileBuffer.position();
+            outbound = fileBuffer.flip();
+        }
+    }
+
+    /**
+     * Gets the connection ready for the next request once a response has been written.
+     *
+     * @return true if the connection waits for a further request, false if it has to be closed
+     */
+    boolean resume() {
+        if (invalid || !decoder.keepsAlive()) {
+            return false;
+        }
+        outbound = null;
+        state = State.READING;
+        key.interestOps(SelectionKey.OP_READ);
+        return true;
+    }
+
+    /**
+     * Closes the connection, releasing the file being sent and the body being spooled, if any.
+     */
+    void close() {
+        if (channel.isOpen()) {
+            server.metrics().connectionClosed();
+            server.admission().connectionClosed();
+        }
+        if (pending != null) {
+            server.released(pending);
+            pending = null;
+        }
+        if (decoder != null) {
+            decoder.close();
+        }
+        key.cancel();
+        if (response != null) {
+            response.close();
+        }
+        try {
+            if (spool != null) {
+                spool.close();
+                Files.deleteIfExists(spoolFile);
+            }
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
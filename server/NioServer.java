@@ -0,0 +1,304 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A server transport multiplexing client connections over a few selector driven event loops.
+ * Requests are read and responses written without blocking, so a connection only takes a thread of the
+ * connection executor while its request is being executed, whatever the number of idle or slow clients.
+ */
+public class NioServer extends Server {
+    private static final long SHUTDOWN_POLL_MILLIS = 100;
+    private static final long IDLE_CHECK_MILLIS = 1000;
+    private final EventLoop[] loops;
+
+    /**
+     * Creates a non-blocking server.
+     *
+     * @param options the server settings, giving the number of event loop threads multiplexing the connections
+     */
+    NioServer(ServerOptions options) {
+        super(options);
+        this.loops = new EventLoop[Math.max(1, options.loops)];
+    }
+
+    @Override
+    void serve() throws IOException {
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+
+            server.bind(new InetSocketAddress(PORT));
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(i);
+            }
+            setListener(server);
+            System.out.println("Server started!");
+
+            int next = 0;
+            while (isOnline()) {
+                try {
+                    if (!admission().awaitConnection(ACCEPT_POLL_MILLIS)) {
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+                try {
+                    SocketChannel client = server.accept();
+                    loops[next].register(client);
+                    next = (next + 1) % loops.length;
+                } catch (AsynchronousCloseException e) {
+                    admission().connectionClosed();
+                    break;
+                } catch (IOException e) {
+                    admission().connectionClosed();
+                    if (isOnline()) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        } finally {
+            for (EventLoop loop : loops) {
+                if (loop != null) {
+                    loop.stop();
+                }
+            }
+        }
+    }
+
+    /**
+     * A thread serving its share of the connections through a selector.
+     * Other threads hand work to the loop through its task queue, so that selection keys are only
+     * ever updated by the loop thread.
+     */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private int busyConnections;
+        private long lastIdleCheck = System.nanoTime();
+
+        EventLoop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "nio-event-loop-" + index);
+            thread.start();
+        }
+
+        /**
+         * Hands an accepted connection over to this loop.
+         *
+         * @param channel the accepted client channel
+         */
+        void register(SocketChannel channel) {
+            submit(() -> {
+                try {
+                    channel.configureBlocking(false);
+                    // a file sent after its response header must not wait for the header to be acknowledged
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new NioConnection(NioServer.this, channel, key));
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                    admission().connectionClosed();
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+        }
+
+        /**
+         * Runs a task on the loop thread.
+         *
+         * @param task the task to run
+         */
+        void submit(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Waits for the connections still executing or writing a request to complete, then stops the loop.
+         */
+        void stop() {
+            selector.wakeup();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+
+            try (selector) {
+                while (isOnline() || busyConnections > 0) {
+                    selector.select(isOnline() ? IDLE_CHECK_MILLIS : SHUTDOWN_POLL_MILLIS);
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid()) {
+                            handle(key);
+                        }
+                    }
+
+                    if (!isOnline()) {
+                        closeIdleConnections(0);
+                    } else if (System.nanoTime() - lastIdleCheck > IDLE_CHECK_MILLIS * 1_000_000) {
+                        lastIdleCheck = System.nanoTime();
+                        closeIdleConnections(options().idleTimeoutMillis() * 1_000_000L);
+                    }
+                }
+
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof NioConnection) {
+                        ((NioConnection) key.attachment()).close();
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Makes progress on a connection that is ready to be read from or written to.
+         *
+         * @param key the selection key of the connection
+         */
+        private void handle(SelectionKey key) {
+            NioConnection connection = (NioConnection) key.attachment();
+
+            try {
+                if (key.isReadable()) {
+                    dispatch(connection, connection.read());
+                } else if (key.isWritable() && connection.write()) {
+                    busyConnections--;
+                    if (connection.resume()) {
+                        dispatch(connection, connection.decodeNext());
+                    } else {
+                        connection.close();
+                    }
+                }
+            } catch (IOException e) {
+                if (connection.state() != NioConnection.State.READING) {
+                    busyConnections--;
+                }
+                connection.close();
+            } catch (RuntimeException e) {
+                // a bug met on one connection must not stop the loop serving the others
+                e.printStackTrace();
+                if (connection.state() != NioConnection.State.READING) {
+                    busyConnections--;
+                }
+                connection.close();
+            }
+        }
+
+        /**
+         * Executes a decoded request on the connection executor, then hands its response back to the loop.
+         *
+         * @param connection the connection the request was received on
+         * @param request the decoded request, null if no complete request was received yet
+         */
+        private void dispatch(NioConnection connection, Request request) {
+            if (request == null) {
+                return;
+            }
+
+            busyConnections++;
+            connectionExecutor().submit(() -> {
+                Response response;
+                try {
+                    response = execute(request);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    response = Response.status(500);
+                } finally {
+                    discardBody(request);
+                    released(request);
+                }
+                Response result = response;
+                submit(() -> respond(connection, result, request.legacy));
+            });
+        }
+
+        /**
+         * Starts sending the response of an executed request, stopping the server for an exit request.
+         *
+         * @param connection the connection the request was received on
+         * @param response the response to the request
+         * @param legacy true if the request was sent by a legacy client
+         */
+        private void respond(NioConnection connection, Response response, boolean legacy) {
+            if (response.isExit()) {
+                busyConnections--;
+                connection.close();
+                try {
+                    shutdown();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            } else if (!connection.isOpen()) {
+                busyConnections--;
+                response.close();
+            } else {
+                try {
+                    connection.respond(response, legacy);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    busyConnections--;
+                    response.close();
+                    connection.close();
+                }
+            }
+        }
+
+        /**
+         * Removes what is left of the body of an executed request.
+         *
+         * @param request the executed request
+         */
+        private void discardBody(Request request) {
+            if (request.body != null) {
+                try {
+                    request.body.discard();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Closes the connections waiting for a request for longer than the given time.
+         *
+         * @param timeoutNanos the longest time a connection may wait for a request
+         */
+        private void closeIdleConnections(long timeoutNanos) {
+            for (SelectionKey key : selector.keys()) {
+                NioConnection connection = (NioConnection) key.attachment();
+                if (connection != null && connection.isIdle(timeoutNanos)) {
+                    connection.close();
+                }
+            }
+        }
+    }
+}
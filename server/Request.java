@@ -0,0 +1,164 @@
+package server;
+
+import protocol.Protocol;
+import protocol.RequestHeader;
+
+import java.util.List;
+
+/**
+ * A client request decoded from the wire, independent of the transport and protocol it was received with.
+ * The body of the request, if any, is streamed from the connection while the request is executed.
+ */
+class Request {
+    final byte opcode;
+    final byte mode;
+    final byte flags;
+    final String name;
+    final long id;
+    final long bodyLength;
+    final RequestBody body;
+    final boolean legacy;
+    /** The protocol version of the frame, {@link Protocol#VERSION} for the requests of legacy clients. */
+    final byte version;
+    /** True if the body did not fit in the in-flight bytes of the server, see {@link Admission}. */
+    final boolean rejected;
+    /** True if the request was sent by a node of the cluster, see {@link Server#withSource}. */
+    final boolean fromPeer;
+
+    private Request(byte opcode, byte mode, byte flags, String name, long id, long bodyLength, RequestBody body,
+                    boolean legacy, byte version, boolean rejected, boolean fromPeer) {
+        this.opcode = opcode;
+        this.mode = mode;
+        this.flags = flags;
+        this.name = name;
+        this.id = id;
+        this.bodyLength = bodyLength;
+        this.body = body;
+        this.legacy = legacy;
+        this.version = version;
+        this.rejected = rejected;
+        this.fromPeer = fromPeer;
+    }
+
+    /**
+     * Creates a request received from a legacy client, whose body is received along with the request tokens.
+     */
+    private Request(byte opcode, byte mode, String name, long id, RequestBody body) {
+        this(opcode, mode, (byte) 0, name, id, body == null ? 0 : body.length(), body, true, Protocol.VERSION, false,
+                false);
+    }
+
+    /**
+     * Builds a request from a binary frame header.
+     *
+     * @param header the decoded frame header
+     * @param body the body following the header, null if it still has to be received
+     * @return the request described by the header
+     */
+    static Request fromHeader(RequestHeader header, RequestBody body) {
+        return new Request(header.opcode, header.mode, header.flags, header.name, header.id, header.bodyLength, body,
+                false, header.version, false, false);
+    }
+
+    /**
+     * Builds a request forwarded by the node of a cluster that received it to a replica of the file, here this
+     * server itself.
+     *
+     * @param opcode the request opcode, {@link Protocol#PUT} or {@link Protocol#DELETE}
+     * @param mode the lookup mode of the file
+     * @param flags the flags of the request, to which {@link Protocol#REPLICA} is added
+     * @param name the name of the file
+     * @param id the id given to the file by the node that received the request
+     * @param body the body of a PUT request, null otherwise
+     * @return the replica request
+     */
+    static Request replica(byte opcode, byte mode, byte flags, String name, long id, RequestBody body) {
+        return new Request(opcode, mode, (byte) (flags | Protocol.REPLICA), name, id,
+                body == null ? 0 : body.length(), body, false, Protocol.VERSION, false, true);
+    }
+
+    /**
+     * @param legacy true if the request was received from a legacy client
+     * @return a request that could not be decoded, answered with 400
+     */
+    static Request invalid(boolean legacy) {
+        return new Request((byte) -1, Protocol.NONE, (byte) 0, null, 0, 0, null, legacy, Protocol.VERSION, false,
+                false);
+    }
+
+    /**
+     * @param body the body of this request, once it has been received
+     * @return a copy of this request carrying the body
+     */
+    Request withBody(RequestBody body) {
+        return new Request(opcode, mode, flags, name, id, bodyLength, body, legacy, version, rejected, fromPeer);
+    }
+
+    /**
+     * @return a copy of this request that is not executed but answered with 503, its body being discarded
+     */
+    Request rejected() {
+        return new Request(opcode, mode, flags, name, id, bodyLength, body, legacy, version, true, fromPeer);
+    }
+
+    /**
+     * @return a copy of this request marked as sent by a node of the cluster
+     */
+    Request fromPeer() {
+        return new Request(opcode, mode, flags, name, id, bodyLength, body, legacy, version, rejected, true);
+    }
+
+    /**
+     * @param flag a request flag, such as {@link Protocol#ACK_ON_RECEIPT}
+     * @return true if the client set the flag
+     */
+    boolean hasFlag(byte flag) {
+        return (flags & flag) != 0;
+    }
+
+    /**
+     * Builds a request from the tokens list sent by legacy clients.
+     * A PUT request carries the file name as its second token, and is invalid without it. GET and DELETE requests
+     * carry the search action followed by the name or id of the file. An id that is not a number cannot match any file,
+     * so it is turned into a request without lookup mode.
+     *
+     * @param commandToken the request tokens provided by client
+     * @param content the uploaded file content for a PUT request, null otherwise
+     * @return the request described by the tokens
+     */
+    static Request fromTokens(List<String> commandToken, RequestBody content) {
+        String command = commandToken.isEmpty() ? "" : commandToken.get(0);
+
+        switch (command) {
+
+            case "exit":
+                return new Request(Protocol.EXIT, Protocol.NONE, null, 0, null);
+
+            case "PUT":
+                if (commandToken.size() < 2) {
+                    return invalid(true);
+                }
+                return new Request(Protocol.PUT, Protocol.BY_NAME, commandToken.get(1), 0, content);
+
+            case "GET":
+            case "DELETE":
+                byte opcode = command.equals("GET") ? Protocol.GET : Protocol.DELETE;
+                String action = commandToken.size() > 1 ? commandToken.get(1) : "";
+                String nameOrId = commandToken.size() > 2 ? commandToken.get(2) : "";
+
+                if (action.equals("BY_NAME")) {
+                    return new Request(opcode, Protocol.BY_NAME, nameOrId, 0, null);
+                } else if (action.equals("BY_ID")) {
+                    try {
+                        return new Request(opcode, Protocol.BY_ID, null, Long.parseLong(nameOrId), null);
+                    } catch (NumberFormatException e) {
+                        return new Request(opcode, Protocol.NONE, null, 0, null);
+                    }
+                }
+                return new Request(opcode, Protocol.NONE, null, 0, null);
+
+            default:
+                return new Request((byte) -1, Protocol.NONE, null, 0, null);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * The content following a request header, such as the file uploaded by a PUT.
+ * A body is consumed exactly once, either by saving it or by discarding it, so that the connection
+ * it was received on is left at the start of the next request.
+ */
+interface RequestBody {
+
+    /**
+     * @return the number of bytes of the body
+     */
+    long length();
+
+    /**
+     * Stores the body in a new file.
+     * Whether it succeeds or not, the body is consumed and a partially written file is removed.
+     *
+     * @param target the path of the file to create
+     * @throws java.nio.file.FileAlreadyExistsException if the file already exists
+     * @throws IOException when an error occurs while receiving or storing the body
+     */
+    void saveTo(Path target) throws IOException;
+
+    /**
+     * Stores the body in a new file like {@link #saveTo(Path)}, hashing its content as it is received.
+     *
+     * @param target the path of the file to create
+     * @return the {@link ContentStore#DIGEST_ALGORITHM} digest of the body
+     * @throws java.nio.file.FileAlreadyExistsException if the file already exists
+     * @throws IOException when an error occurs while receiving or storing the body
+     */
+    byte[] saveDigested(Path target) throws IOException;
+
+    /**
+     * Reads the whole body into memory, for bodies small enough to be stored in a segment.
+     * Whether it succeeds or not, the body is consumed.
+     *
+     * @return the content of the body
+     * @throws IOException when an error occurs while receiving the body
+     */
+    byte[] readAll() throws IOException;
+
+    /**
+     * Writes the part of the body not read yet into an existing file, from a position, for the parts of
+     * resumable uploads. Whether it succeeds or not, the body is consumed, and the bytes written before a
+     * failure are left in the file.
+     *
+     * @param target the file to write to
+     * @param position the position in the file of the first byte written
+     * @throws IOException when an error occurs while receiving or writing the body
+     */
+    void writeTo(FileChannel target, long position) throws IOException;
+
+    /**
+     * Opens a stream over the body. Reading the stream consumes the body, which must still be discarded
+     * once the stream is no longer read.
+     *
+     * @return a stream over the part of the body not read yet
+     * @throws IOException when the body cannot be read
+     */
+    InputStream stream() throws IOException;
+
+    /**
+     * Consumes the part of the body not read yet without storing it.
+     *
+     * @throws IOException when an error occurs while receiving the body
+     */
+    void discard() throws IOException;
+}
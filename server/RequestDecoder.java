@@ -0,0 +1,47 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incrementally decodes requests from the bytes received so far on a non-blocking connection.
+ */
+interface RequestDecoder {
+
+    /**
+     * Decodes the next request if it has been fully received.
+     * On success the buffer position is moved past the request, otherwise the buffer is left untouched.
+     *
+     * @param buffer the received bytes, ready to be read
+     * @return the decoded request, or null if more bytes are needed
+     * @throws IOException if the bytes received do not form a valid request
+     */
+    Request decode(ByteBuffer buffer) throws IOException;
+
+    /**
+     * @return the largest number of bytes that may have to be buffered to decode a request, beyond which the
+     * request is not valid
+     */
+    int maxRequestLength();
+
+    /**
+     * @return true if further requests can follow on the same connection once a request has been answered
+     */
+    default boolean keepsAlive() {
+        return true;
+    }
+
+    /**
+     * @return true if the decoder reserves the in-flight bytes of the requests it returns itself, which must then
+     * not be admitted again
+     */
+    default boolean admits() {
+        return false;
+    }
+
+    /**
+     * Releases what the decoder holds for a request not received whole, once its connection is closed.
+     */
+    default void close() {
+    }
+}
@@ -0,0 +1,194 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A response to a client request, independent of the transport it is sent on.
+ * Responses are an HTTP like status code, followed by the file id for a successful PUT
+ * or by the length and content of the file for a successful GET.
+ * The content of a file is streamed from disk by the transport after the encoded header,
+ * or sent from memory when the file is cached. A client that accepts compressed contents is also told the
+ * encoding of the content. A range of a file is sent with status 206, preceded by the length of the whole file,
+ * and a part of a resumable upload is answered with the number of bytes of the upload committed.
+ * A request rejected because the server is overloaded is answered with the number of seconds to wait before
+ * retrying it.
+ * A batch is answered with the number of responses it carries, followed by the responses.
+ */
+class Response {
+    /** The encoding of a response to a client that did not negotiate compression, which is not sent. */
+    private static final byte NO_ENCODING = -1;
+    /** The whole file length of a response that does not carry a range of a file. */
+    private static final long NO_RANGE = -1;
+    /** The number of responses of a response that does not answer a batch. */
+    private static final int NO_BATCH = -1;
+
+    static final Response EXIT = new Response(0, null, null, null, 0, 0, NO_ENCODING, NO_RANGE, NO_BATCH);
+
+    final int status;
+    final Long id;
+    final FileChannel file;
+    final ByteBuffer content;
+    final long fileOffset;
+    final long fileSize;
+    final byte encoding;
+    final long wholeLength;
+    final int count;
+
+    private Response(int status, Long id, FileChannel file, ByteBuffer content, long fileOffset, long fileSize,
+                     byte encoding, long wholeLength, int count) {
+        this.status = status;
+        this.id = id;
+        this.file = file;
+        this.content = content;
+        this.fileOffset = fileOffset;
+        this.fileSize = fileSize;
+        this.encoding = encoding;
+        this.wholeLength = wholeLength;
+        this.count = count;
+    }
+
+    static Response status(int status) {
+        return new Response(status, null, null, null, 0, 0, NO_ENCODING, NO_RANGE, NO_BATCH);
+    }
+
+    static Response saved(long id) {
+        return new Response(200, id, null, null, 0, 0, NO_ENCODING, NO_RANGE, NO_BATCH);
+    }
+
+    /**
+     * @param status 202 if the part was appended, 409 if it did not start where the committed bytes end
+     * @param committed the number of bytes of the upload committed, sent in place of a file id
+     * @return the response to a part of a resumable upload, or to a request asking for its committed bytes
+     */
+    static Response committed(int status, long committed) {
+        return new Response(status, committed, null, null, 0, 0, NO_ENCODING, NO_RANGE, NO_BATCH);
+    }
+
+    /**
+     * @param retryAfterSeconds the number of seconds the client should wait before sending the request again
+     * @return the response to a request rejected because the server is overloaded, sent in place of a file id
+     */
+    static Response retryLater(long retryAfterSeconds) {
+        return new Response(503, retryAfterSeconds, null, null, 0, 0, NO_ENCODING, NO_RANGE, NO_BATCH);
+    }
+
+    /**
+     * @param file the open channel of the file to send, closed once it has been sent
+     * @param fileSize the number of bytes to send from the start of the file
+     * @return a successful response carrying the file content
+     */
+    static Response file(FileChannel file, long fileSize) {
+        return new Response(200, null, file, null, 0, fileSize, NO_ENCODING, NO_RANGE, NO_BATCH);
+    }
+
+    /**
+     * @param content the content of the file to send, from its position to its limit
+     * @return a successful response carrying the file content
+     */
+    static Response content(ByteBuffer content) {
+        return new Response(200, null, null, content, 0, content.remaining(), NO_ENCODING, NO_RANGE, NO_BATCH);
+    }
+
+    /**
+     * @param file the open channel of the file to send from, closed once the range has been sent
+     * @param offset the position of the first byte of the range in the file
+     * @param length the number of bytes of the range
+     * @param wholeLength the length of the whole file
+     * @return a partial content response carrying a range of the file, read with positional reads
+     */
+    static Response range(FileChannel file, long offset, long length, long wholeLength) {
+        return new Response(206, null, file, null, offset, length, NO_ENCODING, wholeLength, NO_BATCH);
+    }
+
+    /**
+     * @param content the range of the file to send, from its position to its limit
+     * @param wholeLength the length of the whole file
+     * @return a partial content response carrying a range of the file held in memory
+     */
+    static Response range(ByteBuffer content, long wholeLength) {
+        return new Response(206, null, null, content, 0, content.remaining(), NO_ENCODING, wholeLength, NO_BATCH);
+    }
+
+    /**
+     * @param responses the responses to the requests of a batch, each encoded as it would be sent alone
+     * @param count the number of responses
+     * @return a successful response to a batch
+     */
+    static Response batch(ByteBuffer responses, int count) {
+        return new Response(200, null, null, responses, 0, responses.remaining(), NO_ENCODING, NO_RANGE, count);
+    }
+
+    /**
+     * @param encoding the encoding of the content, {@link protocol.Protocol#ENCODING_IDENTITY} or
+     *                 {@link protocol.Protocol#ENCODING_DEFLATE}
+     * @return a copy of this response telling the client the encoding of its content
+     */
+    Response withEncoding(byte encoding) {
+        return new Response(status, id, file, content, fileOffset, fileSize, encoding, wholeLength, count);
+    }
+
+    /**
+     * @return true if the response carries the content of a file, from disk or from memory
+     */
+    boolean hasContent() {
+        return file != null || content != null;
+    }
+
+    /**
+     * @return true if this response is the answer to an exit request, which has no bytes on the wire
+     */
+    boolean isExit() {
+        return this == EXIT;
+    }
+
+    /**
+     * Encodes the response up to the file content, in the format read by the client.
+     * Binary clients receive the file id and length as longs, legacy clients as ints. A legacy client
+     * receives -1 for an id it cannot represent, the file can still be found by its name. The encoding of the
+     * content precedes its length if the client accepts compressed contents, and the length of the whole file
+     * precedes the length of a range. The number of responses of a batch replaces the length of its content.
+     *
+     * @param legacy true if the response is for a legacy client
+     * @return a buffer ready to be written to the client
+     */
+    ByteBuffer encodeHeader(boolean legacy) {
+        if (isExit()) {
+            return ByteBuffer.allocate(0);
+        }
+
+        ByteBuffer buffer;
+        if (count != NO_BATCH) {
+            buffer = ByteBuffer.allocate(8).putInt(status).putInt(count);
+        } else if (id != null && legacy) {
+            buffer = ByteBuffer.allocate(8).putInt(status).putInt(id <= Integer.MAX_VALUE ? id.intValue() : -1);
+        } else if (id != null) {
+            buffer = ByteBuffer.allocate(12).putInt(status).putLong(id);
+        } else if (hasContent() && legacy) {
+            buffer = ByteBuffer.allocate(8).putInt(status).putInt((int) fileSize);
+        } else if (hasContent() && wholeLength != NO_RANGE) {
+            buffer = ByteBuffer.allocate(20).putInt(status).putLong(wholeLength).putLong(fileSize);
+        } else if (hasContent() && encoding != NO_ENCODING) {
+            buffer = ByteBuffer.allocate(13).putInt(status).put(encoding).putLong(fileSize);
+        } else if (hasContent()) {
+            buffer = ByteBuffer.allocate(12).putInt(status).putLong(fileSize);
+        } else {
+            buffer = ByteBuffer.allocate(4).putInt(status);
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Releases the file carried by this response, if any.
+     */
+    void close() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,524 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * A storage engine packing small files into append-only segment files, so that storing many small files does
+ * not cost a file and a directory entry each.
+ * <p>
+ * Each saved or deleted file appends a record to the active segment:
+ * <pre>
+ * length(4) type(1) name length(2) name(UTF-8) content crc(4)
+ * </pre>
+ * where the length counts the type, name length, name and content bytes and the CRC32 covers them too.
+ * A deletion appends a tombstone record without content. The segment, offset and length of the content of every
+ * stored file are kept in memory, and rebuilt when the store is opened by reading the segments in order.
+ * <p>
+ * Once the active segment reaches its maximum size it is synced and sealed, and a new one is started. A
+ * background compactor rewrites the sealed segments whose files were mostly deleted or replaced: the records
+ * still in use are appended to the active segment and the old segment is deleted. The segments directory is
+ * synced whenever a segment is created or deleted, so that a crash neither loses a segment holding acknowledged
+ * files nor brings back a compacted one.
+ * <p>
+ * A tombstone is only needed while an older segment still holds a record of the file it deletes: compaction
+ * carries it over to the active segment until then, and drops it once those segments were compacted too.
+ */
+class SegmentStore implements Closeable {
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".seg";
+    private static final int HEADER_LENGTH = 4 + 1 + 2;
+    private static final int CRC_LENGTH = 4;
+    private static final int COMPACTION_INTERVAL_SECONDS = 30;
+    private static final double COMPACTION_LIVE_RATIO = 0.5;
+
+    private final Path directory;
+    private final long segmentSize;
+    private final WritePipeline writes;
+    private final ConcurrentHashMap<String, Location> locations = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    /** The numbers of the segments holding the deleted or replaced records of a file, guarded by the store lock. */
+    private final Map<String, List<Long>> deadRecords = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ScheduledExecutorService compactor;
+    private Segment active;
+
+    /**
+     * A segment file. Its size only changes under the store lock, and its live bytes count the records of the
+     * files it holds that were not deleted or replaced since.
+     */
+    private static final class Segment {
+        final long number;
+        final Path file;
+        final FileChannel channel;
+        final AtomicLong liveBytes = new AtomicLong();
+        final AtomicInteger pendingSyncs = new AtomicInteger();
+        volatile long size;
+
+        Segment(long number, Path file, FileChannel channel, long size) {
+            this.number = number;
+            this.file = file;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Where the content of a stored file is, and the length of the record holding it.
+     */
+    private static final class Location {
+        final Segment segment;
+        final long offset;
+        final int length;
+        final int recordLength;
+
+        Location(Segment segment, long offset, int length, int recordLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.recordLength = recordLength;
+        }
+    }
+
+    /**
+     * Opens the segments of a directory, rebuilding the locations of the stored files, and starts a new
+     * active segment after them. A segment ends at its first incomplete or corrupted record, and empty segments
+     * left by previous runs are deleted.
+     *
+     * @param directory the directory holding the segment files, created if needed
+     * @param segmentSize the size a segment is sealed at
+     * @param writes the pipeline syncing the segments before durable saves are acknowledged
+     * @throws IOException if a segment cannot be read or the new segment cannot be created
+     */
+    SegmentStore(Path directory, long segmentSize, WritePipeline writes) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.writes = writes;
+        Files.createDirectories(directory);
+
+        long next = 0;
+        for (long number : numbers(directory)) {
+            Path file = directory.resolve(PREFIX + number + SUFFIX);
+            next = number + 1;
+            if (Files.size(file) == 0) {
+                Files.delete(file);
+                continue;
+            }
+            Segment segment = new Segment(number, file, FileChannel.open(file, StandardOpenOption.READ), 0);
+            segments.put(number, segment);
+            load(segment);
+        }
+        active = create(next);
+
+        compactor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "segment-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compact, COMPACTION_INTERVAL_SECONDS, COMPACTION_INTERVAL_SECONDS,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param name the name of a file
+     * @return true if the file is stored in a segment
+     */
+    boolean contains(String name) {
+        return locations.containsKey(name);
+    }
+
+    /**
+     * @return the names of the files stored in the segments
+     */
+    List<String> names() {
+        return new ArrayList<>(locations.keySet());
+    }
+
+    /**
+     * Appends a file to the active segment and queues the segment to be synced.
+     *
+     * @param name the name of the file
+     * @param content the content of the file
+     * @return the future completed once the file is on disk
+     * @throws FileAlreadyExistsException if a file with this name is already stored
+     * @throws IOException if the record cannot be written
+     */
+    CompletableFuture<Void> put(String name, byte[] content) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = record(PUT, nameBytes, content);
+        Segment segment;
+
+        lock.lock();
+        try {
+            if (locations.containsKey(name)) {
+                throw new FileAlreadyExistsException(name);
+            }
+            segment = append(record);
+            long offset = segment.size - CRC_LENGTH - content.length;
+            locations.put(name, new Location(segment, offset, content.length, record.capacity()));
+            segment.liveBytes.addAndGet(record.capacity());
+            segment.pendingSyncs.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+        return sync(segment);
+    }
+
+    /**
+     * Reads the content of a stored file.
+     *
+     * @param name the name of the file
+     * @return a buffer over the content of the file, or null if it is not stored in a segment
+     * @throws IOException if the content cannot be read
+     */
+    ByteBuffer read(String name) throws IOException {
+        while (true) {
+            Location location = locations.get(name);
+            if (location == null) {
+                return null;
+            }
+            ByteBuffer content = ByteBuffer.allocate(location.length);
+            try {
+                while (content.hasRemaining()) {
+                    if (location.segment.channel.read(content, location.offset + content.position()) < 0) {
+                        throw new EOFException("Segment shorter than its index");
+                    }
+                }
+                return content.flip();
+            } catch (ClosedChannelException e) {
+                // the segment was compacted meanwhile, the file has moved to another segment
+                if (locations.get(name) == location) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends a tombstone for a stored file.
+     *
+     * @param name the name of the file
+     * @return true if the file was stored in a segment and is now deleted
+     * @throws IOException if the tombstone cannot be written
+     */
+    boolean delete(String name) throws IOException {
+        ByteBuffer record = record(DELETE, name.getBytes(StandardCharsets.UTF_8), new byte[0]);
+        Segment segment;
+
+        lock.lock();
+        try {
+            Location location = locations.get(name);
+            if (location == null) {
+                return false;
+            }
+            segment = append(record);
+            locations.remove(name);
+            location.segment.liveBytes.addAndGet(-location.recordLength);
+            addDeadRecord(name, location.segment.number);
+            segment.pendingSyncs.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+        sync(segment);
+        return true;
+    }
+
+    /**
+     * Stops the compactor, syncs the active segment and closes the segments.
+     */
+    @Override
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        lock.lock();
+        try {
+            active.channel.force(true);
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rewrites the sealed segments holding less live data than {@link #COMPACTION_LIVE_RATIO}, oldest first.
+     */
+    void compact() {
+        for (Segment segment : segments.values()) {
+            if (segment == active || segment.pendingSyncs.get() > 0
+                    || segment.liveBytes.get() >= segment.size * COMPACTION_LIVE_RATIO) {
+                continue;
+            }
+            try {
+                compact(segment);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Appends the records of a segment still in use to the active segment, then deletes the segment.
+     * Tombstones are kept as long as older segments hold a record they delete, unless the file was saved
+     * again since.
+     */
+    private void compact(Segment segment) throws IOException {
+        long moved = 0;
+        List<String> deadNames = new ArrayList<>();
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment.file)))) {
+            long offset = 0;
+            byte[] payload = new byte[256];
+
+            while (offset < segment.size) {
+                int length = input.readInt();
+                if (payload.length < length) {
+                    payload = new byte[length];
+                }
+                input.readFully(payload, 0, length);
+                input.readInt();
+                ByteBuffer fields = ByteBuffer.wrap(payload, 0, length);
+                byte type = fields.get();
+                int nameLength = Short.toUnsignedInt(fields.getShort());
+                String name = new String(payload, 3, nameLength, StandardCharsets.UTF_8);
+                byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+                long recordOffset = offset;
+                offset += 4 + length + CRC_LENGTH;
+
+                lock.lock();
+                try {
+                    Location location = locations.get(name);
+                    if (type == PUT && location != null && location.segment == segment
+                            && location.offset == recordOffset + HEADER_LENGTH + nameLength) {
+                        byte[] content = new byte[length - 3 - nameLength];
+                        System.arraycopy(payload, 3 + nameLength, content, 0, content.length);
+                        ByteBuffer record = record(PUT, nameBytes, content);
+                        Segment target = append(record);
+                        long contentOffset = target.size - CRC_LENGTH - content.length;
+                        locations.put(name, new Location(target, contentOffset, content.length, record.capacity()));
+                        target.liveBytes.addAndGet(record.capacity());
+                        moved++;
+                    } else if (type == PUT) {
+                        deadNames.add(name);
+                    } else if (location == null && hasOlderDeadRecord(name, segment.number)) {
+                        append(record(DELETE, nameBytes, new byte[0]));
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        lock.lock();
+        try {
+            active.channel.force(true);
+            segments.remove(segment.number);
+            segment.channel.close();
+        } finally {
+            lock.unlock();
+        }
+        Files.deleteIfExists(segment.file);
+        WritePipeline.syncDirectory(directory);
+
+        lock.lock();
+        try {
+            for (String name : deadNames) {
+                removeDeadRecord(name, segment.number);
+            }
+        } finally {
+            lock.unlock();
+        }
+        System.out.println("Compacted " + segment.file.getFileName() + ", " + moved + " files moved.");
+    }
+
+    private void addDeadRecord(String name, long segmentNumber) {
+        deadRecords.computeIfAbsent(name, key -> new ArrayList<>(1)).add(segmentNumber);
+    }
+
+    private void removeDeadRecord(String name, long segmentNumber) {
+        List<Long> numbers = deadRecords.get(name);
+        if (numbers != null && numbers.remove(segmentNumber) && numbers.isEmpty()) {
+            deadRecords.remove(name);
+        }
+    }
+
+    /**
+     * @return true if a segment older than the given one holds a deleted or replaced record of the file
+     */
+    private boolean hasOlderDeadRecord(String name, long segmentNumber) {
+        for (long number : deadRecords.getOrDefault(name, List.of())) {
+            if (number < segmentNumber) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Appends a record to the active segment, sealing it first if the record does not fit.
+     * Called under the store lock.
+     *
+     * @return the segment the record was appended to
+     */
+    private Segment append(ByteBuffer record) throws IOException {
+        if (active.size > 0 && active.size + record.remaining() > segmentSize) {
+            active.channel.force(true);
+            active = create(active.number + 1);
+        }
+        long position = active.size;
+        while (record.hasRemaining()) {
+            position += active.channel.write(record, position);
+        }
+        active.size = position;
+        return active;
+    }
+
+    /**
+     * Queues a segment to be synced, keeping it from being compacted until then.
+     */
+    private CompletableFuture<Void> sync(Segment segment) throws IOException {
+        try {
+            return writes.submit(segment.file).whenComplete((written, e) -> segment.pendingSyncs.decrementAndGet());
+        } catch (IOException e) {
+            segment.pendingSyncs.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the records of a segment, applying them to the locations of the stored files in order.
+     */
+    private void load(Segment segment) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment.file)))) {
+            byte[] payload = new byte[256];
+            CRC32 crc = new CRC32();
+            long offset = 0;
+
+            while (true) {
+                int length;
+                try {
+                    length = input.readInt();
+                    if (length < 3) {
+                        throw new StreamCorruptedException();
+                    }
+                    if (payload.length < length) {
+                        payload = new byte[length];
+                    }
+                    input.readFully(payload, 0, length);
+                    crc.reset();
+                    crc.update(payload, 0, length);
+                    if ((int) crc.getValue() != input.readInt()) {
+                        throw new StreamCorruptedException();
+                    }
+                } catch (EOFException e) {
+                    break;
+                } catch (StreamCorruptedException e) {
+                    System.out.println("Ignoring the corrupted end of " + segment.file.getFileName());
+                    break;
+                }
+
+                ByteBuffer fields = ByteBuffer.wrap(payload, 0, length);
+                byte type = fields.get();
+                int nameLength = Short.toUnsignedInt(fields.getShort());
+                String name = new String(payload, 3, nameLength, StandardCharsets.UTF_8);
+                int recordLength = 4 + length + CRC_LENGTH;
+
+                Location previous;
+                if (type == PUT) {
+                    Location location = new Location(segment, offset + HEADER_LENGTH + nameLength,
+                            length - 3 - nameLength, recordLength);
+                    previous = locations.put(name, location);
+                    segment.liveBytes.addAndGet(recordLength);
+                } else {
+                    previous = locations.remove(name);
+                }
+                if (previous != null) {
+                    previous.segment.liveBytes.addAndGet(-previous.recordLength);
+                    addDeadRecord(name, previous.segment.number);
+                }
+                offset += recordLength;
+            }
+            segment.size = offset;
+        }
+    }
+
+    private Segment create(long number) throws IOException {
+        Path file = directory.resolve(PREFIX + number + SUFFIX);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            WritePipeline.syncDirectory(directory);
+        } catch (IOException e) {
+            channel.close();
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        Segment segment = new Segment(number, file, channel, 0);
+        segments.put(number, segment);
+        return segment;
+    }
+
+    private static ByteBuffer record(byte type, byte[] name, byte[] content) throws IOException {
+        if (name.length > 0xFFFF) {
+            throw new IOException("File name too long");
+        }
+        int length = 1 + 2 + name.length + content.length;
+        ByteBuffer record = ByteBuffer.allocate(4 + length + CRC_LENGTH);
+        record.putInt(length).put(type).putShort((short) name.length).put(name).put(content);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, length);
+        return record.putInt((int) crc.getValue()).flip();
+    }
+
+    /**
+     * @return the numbers of the segment files in the directory, in ascending order
+     */
+    private static List<Long> numbers(Path directory) throws IOException {
+        List<Long> numbers = new ArrayList<>();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    numbers.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    System.out.println("Ignoring unknown segment file " + name);
+                }
+            }
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+}
@@ -1,33 +1,223 @@
 package server;
 
+import protocol.Compression;
+import protocol.Protocol;
+import protocol.RequestHeader;
+
 import java.io.*;
-import java.net.ServerSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class Server extends Thread {
-    private final int PORT = 23456;
-    private boolean serverOnline;
-    private HashMap<String, Integer> idMap;
+    final int PORT;
+    static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+    /** How long the accept loop waits for a connection to close before checking whether the server stopped. */
+    static final long ACCEPT_POLL_MILLIS = 100;
+    /** The id passed to {@link #saveFile} for a file that gets a new id. */
+    private static final long NEW_ID = -1;
+    private final ServerOptions options;
+    private volatile boolean serverOnline;
+    private Closeable listener;
+    private ExecutorService connectionExecutor;
+    private ExecutorService batchExecutor;
+    private BatchExecutor batches;
+    private final Metrics metrics = new Metrics();
+    private ScheduledExecutorService statsExecutor;
+    private final Set<Socket> idleConnections = ConcurrentHashMap.newKeySet();
+    private final FileIndex index = new FileIndex();
+    private final FileLocks locks = new FileLocks();
+    private final FileCache cache;
+    private final Admission admission;
+    private final Cluster cluster;
+    private IdJournal journal;
+    private ScheduledExecutorService snapshotExecutor;
+    private WritePipeline writes;
+    private SegmentStore segments;
+    private ContentStore contents;
+    private UploadSessions sessions;
+    private boolean compressionMarks;
+
+    /**
+     * Creates a server that handles every accepted connection on its own virtual thread when the runtime
+     * supports them, or on a new cached thread otherwise.
+     */
+    public Server() {
+        this(new ServerOptions());
+    }
+
+    /**
+     * Creates a server that handles accepted connections concurrently.
+     *
+     * @param options the server settings
+     */
+    Server(ServerOptions options) {
+        this.options = options;
+        this.PORT = options.port;
+        this.cache = new FileCache(options.cacheSize, options.cacheMaxFileSize, options.cachePolicy,
+                options.cacheDirect);
+        this.admission = new Admission(options.maxConnections, options.maxInFlightBytes);
+        this.cluster = options.cluster != null ? new Cluster(this, options, newTaskExecutor()) : null;
+    }
+
+    /**
+     * Stops the server from accepting new connections and closes the connections waiting for a request.
+     * Requests already being processed are completed before the id map is saved by the accept thread.
+     * Calling this method more than once has no further effect.
+     *
+     * @throws IOException if an error occurs while closing the server socket
+     */
+    synchronized void shutdown() throws IOException {
+        if (serverOnline) {
+            serverOnline = false;
+            if (listener != null) {
+                listener.close();
+            }
+            for (Socket socket : idleConnections) {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * @return true until the server has been asked to stop
+     */
+    boolean isOnline() {
+        return serverOnline;
+    }
+
+    /**
+     * Registers the channel the server accepts connections on, so that it gets closed when the server stops.
+     *
+     * @param listener the server socket or channel accepting connections
+     * @throws IOException if the server was stopped meanwhile and the listener could not be closed
+     */
+    synchronized void setListener(Closeable listener) throws IOException {
+        this.listener = listener;
+        if (!serverOnline) {
+            listener.close();
+        }
+    }
+
+    /**
+     * @return the executor running client requests
+     */
+    ExecutorService connectionExecutor() {
+        return connectionExecutor;
+    }
+
+    /**
+     * @return the counters and latency histograms of the server
+     */
+    Metrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the server settings
+     */
+    ServerOptions options() {
+        return options;
+    }
+
+    /**
+     * @return the limits on the connections and request bodies the server takes at once
+     */
+    Admission admission() {
+        return admission;
+    }
+
+    /**
+     * Reserves the in-flight bytes of the body of a decoded request, before the body is received.
+     *
+     * @param request the decoded request
+     * @return the request, or a copy rejected with 503 if its body does not fit in the in-flight bytes
+     */
+    Request admit(Request request) {
+        return admission.reserve(request.bodyLength) ? request : request.rejected();
+    }
+
+    /**
+     * Releases the in-flight bytes of a request admitted by {@link #admit(Request)}, once it is executed or its
+     * connection is closed.
+     *
+     * @param request the admitted request
+     */
+    void released(Request request) {
+        if (!request.rejected) {
+            admission.release(request.bodyLength);
+        }
+    }
+
+    /**
+     * Chooses how to decode the requests of a connection from the first byte it received:
+     * binary frames start with {@link Protocol#MAGIC}, anything else is taken for a legacy serialized request.
+     *
+     * @param firstByte the first byte received on the connection
+     * @return the decoder for the requests of the connection
+     * @throws StreamCorruptedException if the server does not accept the protocol used by the client
+     */
+    RequestDecoder newDecoder(byte firstByte) throws StreamCorruptedException {
+        if (firstByte == Protocol.MAGIC && options.acceptsBinary()) {
+            return new FrameRequestDecoder();
+        } else if (firstByte != Protocol.MAGIC && options.acceptsLegacy()) {
+            return new LegacyRequestDecoder(options.maxInFlightBytes, admission);
+        }
+        throw new StreamCorruptedException("Request protocol not accepted");
+    }
+
+    /**
+     * Creates the executor running the connections accepted by the server.
+     * With a pool size of 0 the executor starts a virtual thread per connection if the running JVM provides them,
+     * falling back to a cached thread pool on older runtimes.
+     *
+     * @return the executor used to serve client connections
+     */
+    private ExecutorService newConnectionExecutor() {
+        if (options.threads > 0) {
+            return Executors.newFixedThreadPool(options.threads);
+        }
+        return newTaskExecutor();
+    }
 
     /**
-     * Stops the server from running by closing its communication channels.
+     * Creates an executor starting a virtual thread per task if the running JVM provides them, or a cached thread
+     * pool on older runtimes. The requests of a batch run on such an executor rather than on the connection
+     * executor, whose threads may all be taken by connections waiting for their batch.
      *
-     * @param input the input stream used to receive requests from clients
-     * @param output the output stream used to send responses to clients
-     * @param socket the client socket
-     * @throws IOException if an error occurs while closing the channels
+     * @return an executor with no bound on the number of tasks running at the same time
      */
-    private void stop(ObjectInputStream input, DataOutputStream output, Socket socket) throws IOException {
-        saveIdMap(idMap);
-        input.close();
-        output.close();
-        socket.close();
-        serverOnline = false;
+    private static ExecutorService newTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
     }
 
     /**
@@ -52,77 +242,274 @@ public class Server extends Thread {
     }
 
     /**
-     * Saves the id map containing files' id in memory for later use.
-     * If the ID map directory does not exist to save the map, this method creates a new one.
+     * @return the directory holding the segment files of the segment storage
+     */
+    private Path segmentDirectory() {
+        return Path.of(System.getProperty("user.dir"), "src", "server", "segments");
+    }
+
+    /**
+     * Creates an empty spool file to receive a request body into, in the server uploads directory.
+     * If the directory is not already present it creates a new one.
+     *
+     * @return the path of the new spool file
+     * @throws IOException when the file cannot be created
+     */
+    Path newUploadFile() throws IOException {
+        Path uploads = Path.of(System.getProperty("user.dir") + "//src//server//uploads//");
+        Files.createDirectories(uploads);
+        return Files.createFile(uploads.resolve("upload-" + UUID.randomUUID() + ".part"));
+    }
+
+    /**
+     * Chooses where a saved file is received before it is published in the data directory, in the server uploads
+     * directory, which is on the same file system so that the file can be renamed atomically.
+     *
+     * @return the path of the staging file, not created yet
+     * @throws IOException when the uploads directory cannot be created
+     */
+    Path newStagingFile() throws IOException {
+        Path uploads = Path.of(System.getProperty("user.dir") + "//src//server//uploads//");
+        Files.createDirectories(uploads);
+        return uploads.resolve("save-" + UUID.randomUUID() + ".part");
+    }
+
+    /**
+     * @return the directory holding the sessions of the resumable uploads in progress
+     */
+    private Path sessionDirectory() {
+        return Path.of(System.getProperty("user.dir"), "src", "server", "sessions");
+    }
+
+    /**
+     * @return the directory holding the id map snapshot and its journal
+     */
+    private Path idMapDirectory() {
+        return Path.of(System.getProperty("user.dir"), "src", "server", "ID map");
+    }
+
+    /**
+     * Saves a snapshot of the id map containing files' id for later use, made of the previous snapshot and the
+     * changes made since, in the memory-mapped format of {@link IndexSnapshot}.
+     * The snapshot is written next to the previous one and then renamed, so a crash while saving leaves
+     * the previous snapshot in place. Once the rename is synced to disk, the index is put on top of the new
+     * snapshot, dropping the changes it includes from memory, and the older snapshots and the journal generations
+     * it includes are deleted.
      *
-     * @param idMap the id map that needs to be saved
+     * @param snapshot the copy of the file index that needs to be saved
      * @throws IOException when an error while saving the map occurs
      */
-    private void saveIdMap(HashMap<String, Integer> idMap) throws IOException {
-        String mapPath = System.getProperty("user.dir") + "//src//server//ID map//";
-        File mapStorage = new File(mapPath);
+    private void saveIdMap(FileIndex.Snapshot snapshot) throws IOException {
+        Path mapStorage = idMapDirectory();
+        Path tmpIdMapFile = mapStorage.resolve("index.bin.tmp");
+        Path idMapFile = mapStorage.resolve("index-" + snapshot.generation + ".bin");
+
+        IndexSnapshot.write(tmpIdMapFile, snapshot.base, snapshot.changes, snapshot.nextId, snapshot.generation);
+        Files.move(tmpIdMapFile, idMapFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        WritePipeline.syncDirectory(mapStorage);
+        index.rebase(IndexSnapshot.open(idMapFile), snapshot.changes);
 
-        if (!mapStorage.exists()) {
-            if (mapStorage.mkdir()) {
-                System.out.println("Created map storage");
+        for (Path oldIdMapFile : savedIdMaps()) {
+            if (!oldIdMapFile.equals(idMapFile)) {
+                try {
+                    Files.delete(oldIdMapFile);
+                } catch (IOException e) {
+                    System.out.println("Could not delete " + oldIdMapFile.getFileName() + ", it is still in use.");
+                }
             }
-        } else {
-            mapPath += "map.bin";
-            File idMapFile = new File(mapPath);
+        }
+        Files.deleteIfExists(mapStorage.resolve("map.bin"));
+        if (journal != null) {
+            journal.deleteBefore(snapshot.generation);
+        }
+    }
+
+    /**
+     * @return the saved index snapshots, the most recent first
+     * @throws IOException when the ID map directory cannot be listed
+     */
+    private List<Path> savedIdMaps() throws IOException {
+        List<Path> idMapFiles = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(idMapDirectory(), "index-*.bin")) {
+            files.forEach(idMapFiles::add);
+        }
+        idMapFiles.sort(Comparator.comparingLong((Path file) -> {
+            String name = file.getFileName().toString();
+            try {
+                return Long.parseLong(name.substring("index-".length(), name.length() - ".bin".length()));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }).reversed());
+        return idMapFiles;
+    }
+
+    /**
+     * Writes the statistics report to the statistics file, replacing the previous report at once so that a reader
+     * never sees half of it.
+     */
+    private void dumpStats() {
+        try {
+            Path statsFile = Path.of(options.statsFile).toAbsolutePath();
+            Path temporary = Files.createTempFile(statsFile.getParent(), "stats", ".tmp");
+            try {
+                Files.writeString(temporary, metrics.report());
+                Files.move(temporary, statsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            FileOutputStream fos = new FileOutputStream(idMapFile);
-            BufferedOutputStream bos = new BufferedOutputStream(fos);
-            ObjectOutputStream oos = new ObjectOutputStream(bos);
-            oos.writeObject(idMap);
-            oos.close();
-            fos.close();
+    /**
+     * Saves a snapshot of the id map if files were saved or deleted since the last one.
+     * It runs periodically in the background and when the server stops.
+     */
+    private void snapshotIdMap() {
+        try {
+            if (journal == null || journal.hasChanges()) {
+                saveIdMap(index.snapshot());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
     /**
-     * Loads a previous saved map from the ID map directory if present, otherwise it creates a new one for the server.
+     * Loads the most recent valid index snapshot from the ID map directory. The snapshot is memory-mapped and its
+     * entries are only read when they are looked up, so loading does not depend on the number of files.
+     * If there is no snapshot, a map saved by an older version of the server is loaded instead.
+     * Maps saved before ids were allocated from a sequence hold int ids and no sequence, the sequence then
+     * continues after the highest loaded id.
      *
-     * @return the loaded id map or the newly created one
+     * @return the first journal generation not included in the loaded map, 0 if the map was saved without journal,
+     *         -1 if no map could be loaded
      * @throws IOException when an error occurs while reading the content of the map
      * @throws ClassNotFoundException if tries to read another class type apart from HashMap
      */
-    private HashMap<String, Integer> readIdMap() throws IOException, ClassNotFoundException {
-        String mapPath = System.getProperty("user.dir") + "//src//server//ID map//map.bin";
-        File idMapFile = new File(mapPath);
+    private long readIdMap() throws IOException, ClassNotFoundException {
+        for (Path idMapFile : savedIdMaps()) {
+            try {
+                IndexSnapshot snapshot = IndexSnapshot.open(idMapFile);
+                index.load(snapshot);
+                System.out.println("Loaded " + snapshot.count() + " ids from " + idMapFile.getFileName() + ".");
+                return snapshot.generation();
+            } catch (IOException e) {
+                System.out.println("Ignoring invalid id map " + idMapFile.getFileName() + ".");
+            }
+        }
+
+        File idMapFile = idMapDirectory().resolve("map.bin").toFile();
+        long generation = 0;
 
         if (idMapFile.exists() && !idMapFile.isDirectory()) {
-            HashMap<String, Integer> tmpIdMap;
+            HashMap<String, ? extends Number> tmpIdMap;
 
             FileInputStream fis = new FileInputStream(idMapFile);
             BufferedInputStream bis = new BufferedInputStream(fis);
             ObjectInputStream ois = new ObjectInputStream(bis);
 
-            tmpIdMap = (HashMap<String, Integer>) ois.readObject();
+            tmpIdMap = (HashMap<String, ? extends Number>) ois.readObject();
+            index.putAll(tmpIdMap);
+            try {
+                index.advanceTo(ois.readLong());
+                generation = ois.readLong();
+            } catch (EOFException e) {
+                System.out.println("No id sequence saved, continuing after the highest id.");
+            }
             ois.close();
             fis.close();
-
-            return  tmpIdMap;
+            return generation;
         } else {
-            System.out.println("No id map loaded, creating new id map.");
-            return new HashMap<>();
+            System.out.println("No id map loaded, rebuilding the id map.");
+            return -1;
+        }
+    }
+
+    /**
+     * Gives new ids to the files of the server data directory that are not in the file index, after the id map
+     * was lost or found corrupted. The directory is listed in parallel, so that the metadata of many files
+     * is read on several threads.
+     *
+     * @throws IOException when the data directory cannot be listed
+     */
+    private void rebuildIdMap() throws IOException {
+        Path fileStorage = Path.of(System.getProperty("user.dir"), "src", "server", "data");
+        if (!Files.isDirectory(fileStorage)) {
+            return;
+        }
+
+        List<String> fileNames;
+        try (Stream<Path> files = Files.list(fileStorage)) {
+            fileNames = files.parallel()
+                    .filter(Files::isRegularFile)
+                    .map(file -> file.getFileName().toString())
+                    .filter(fileName -> !index.contains(fileName))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        if (segments != null) {
+            fileNames.addAll(segments.names().stream()
+                    .filter(fileName -> !index.contains(fileName))
+                    .sorted()
+                    .collect(Collectors.toList()));
+        }
+        for (String fileName : fileNames) {
+            index.put(fileName, newFileId(fileName));
+        }
+        System.out.println("Rebuilt the id map, " + fileNames.size() + " files got new ids.");
+    }
+
+    /**
+     * Restores the file index from the last snapshot and the journal written since,
+     * then starts journaling the changes made by this server.
+     * Without a valid snapshot, the whole journal left is replayed and the data directory is scanned for the
+     * files it misses, and a new snapshot is saved.
+     *
+     * @throws IOException when the map or the journal cannot be read, or the journal cannot be created
+     * @throws ClassNotFoundException if the saved map is not a HashMap
+     */
+    private void openIdMap() throws IOException, ClassNotFoundException {
+        Path mapStorage = idMapDirectory();
+        if (!Files.isDirectory(mapStorage)) {
+            Files.createDirectories(mapStorage);
+            System.out.println("Created map storage");
+        }
+        if (cluster != null) {
+            cluster.openSequence(mapStorage);
+        }
+
+        long generation = readIdMap();
+        long replayed = IdJournal.replay(mapStorage, Math.max(generation, 0), index);
+        if (replayed > 0) {
+            System.out.println("Replayed " + replayed + " id journal records.");
+        }
+        if (generation < 0) {
+            rebuildIdMap();
+        }
+
+        journal = new IdJournal(mapStorage, Math.max(generation, 0));
+        index.attach(journal);
+        if (generation < 0) {
+            saveIdMap(index.snapshot());
         }
     }
 
     /**
-     * It retrieves the file name from the request tokens.
+     * It retrieves the file name requested by the client.
      * If the user did not specify a file name this method forms a new one.
      *
-     * @param commandToken the request tokens provided by client
+     * @param fileName the file name provided by client, possibly empty
      * @return the file name of the file needed
      */
-    private String getFileName(ArrayList<String> commandToken) {
-
-        String fileName = commandToken.get(1);
+    private String getFileName(String fileName) {
 
         if (fileName.isEmpty()) {
             int i = 1;
             fileName = "newFile" + i + ".dat";
-            while (idMap.containsKey(fileName)) {
+            while (index.contains(fileName)) {
                 i++;
                 fileName = "newFile" + i + ".dat";
             }
@@ -134,258 +521,1216 @@ public class Server extends Thread {
 
     /**
      * Saves a file in the server data directory.
-     * It also creates a new id for the saved file based on the hash of its name, it later adds this in the id hash map.
+     * It also takes a new id for the saved file from the id sequence, it later adds this to the file index.
      *
-     * @param fileContent byte array of the content of the file that needs to be saved
-     * @param fileName the name of the file that is being saved to form its new id
+     * The content is streamed to a staging file as it is received, marked if it is stored compressed, then
+     * renamed atomically into the data directory, so that a GET never finds a file half written, and queued on
+     * the write pipeline to be synced. With the segment storage, files up to the segment threshold are appended
+     * to a segment instead. With deduplication, a file whose content is already stored is replaced by a link to
+     * the stored content before it is published.
+     * A compressed body is stored as it is when compression at rest is enabled and the file does not go to a
+     * segment, and decompressed as it is received otherwise. A body stored compressed is still inflated as it is
+     * received, so that a body which does not inflate to the length it announces is never published.
+     * A durable save only returns once the file and its id are on disk, and removes the file if it could not be
+     * synced. Otherwise a failure to sync the file is only logged.
+     * The name is checked again and the file published and indexed under the write lock of its name, so that of
+     * two saves of the same name only one succeeds, whether the files go to a segment or not. The lock is released
+     * before waiting for the file and its id to be synced, so that reads and deletes of the name are not held up
+     * by the sync.
+     * If the file cannot be saved the content is still consumed, so that the connection is ready for the next
+     * request.
+     *
+     * @param fileContent the body of the request carrying the content of the file that needs to be saved
+     * @param fileName the name of the file that is being saved
+     * @param durable true to return once the file is durable, false to return once it is received
+     * @param compressed true if the body is the file in the {@link Compression} format
+     * @param id the id of the file, given by the node of the cluster forwarding it, or {@link #NEW_ID}
+     * @return the id of the saved file
+     * @throws FileAlreadyExistsException when a file with this name already exists
      * @throws IOException when an error occurs while saving the file
      */
-    private void saveFile(byte[] fileContent, String fileName) throws IOException {
+    private long saveFile(RequestBody fileContent, String fileName, boolean durable, boolean compressed, long id)
+            throws IOException {
 
         File putFile = new File(setUpFileStorage(fileName));
 
-        if (!putFile.exists() && !putFile.isDirectory()) {
-            try {
-                Files.write(putFile.toPath(), fileContent);
-                int fileId = Math.abs(fileName.hashCode());
-                idMap.put(fileName, fileId);
-            } catch (NoSuchFileException e) {
-                e.printStackTrace();
-                throw new IOException();
-            }
-        } else {
-            throw new IOException();
+        if (isTaken(putFile, fileName)) {
+            fileContent.discard();
+            throw new FileAlreadyExistsException(fileName);
         }
-    }
-
-    /**
-     * Loads the content of a file stored in the server data directory.
-     * The file can be searched by using its name or its id.
-     *
-     * @param action this string specifies if the client is searching the file by name or by id
-     * @param nameOrId this string contains the name or the id of the file being searched
-     * @return the byte array of the content of the retrieved file
-     * @throws FileNotFoundException when an error occurs while reading the content of the file
-     */
-    private byte[] getFile(String action, String nameOrId) throws FileNotFoundException {
-
-        byte[] fileContent;
-        File userFile;
-
-        switch (action) {
-
-            case "BY_NAME":
 
-                userFile = new File(setUpFileStorage(nameOrId));
+        boolean storeCompressed = compressed && compressionMarks && options.compressAtRest
+                && (segments == null || fileContent.length() > options.segmentThreshold);
+        if (storeCompressed) {
+            fileContent = new CompressedBody(fileContent);
+        } else if (compressed) {
+            fileContent = new InflatingBody(fileContent);
+        }
 
-                if (userFile.exists() && !userFile.isDirectory()) {
+        Path path = putFile.toPath();
+        byte[] segmentContent = null;
+        Path staged = null;
+        try {
+            if (segments != null && fileContent.length() <= options.segmentThreshold) {
+                if (!putFile.getParentFile().isDirectory()) {
+                    fileContent.discard();
+                    throw new NoSuchFileException(fileName);
+                }
+                segmentContent = fileContent.readAll();
+            } else {
+                staged = newStagingFile();
+                if (contents != null) {
+                    byte[] digest = fileContent.saveDigested(staged);
+                    if (storeCompressed) {
+                        markCompressed(staged);
+                    }
                     try {
-                        fileContent = Files.readAllBytes(userFile.toPath());
-                        return fileContent;
+                        contents.intern(staged, digest);
                     } catch (IOException e) {
+                        // the file is kept as its own copy
                         e.printStackTrace();
-                        throw new FileNotFoundException();
                     }
                 } else {
-                    throw new FileNotFoundException();
+                    fileContent.saveTo(staged);
+                    if (storeCompressed) {
+                        markCompressed(staged);
+                    }
                 }
+            }
 
-            case "BY_ID":
-
-                try {
-                    Integer.parseInt(nameOrId);
-                } catch (NumberFormatException e) {
-                    throw new FileNotFoundException();
+            CompletableFuture<Void> write;
+            long fileId;
+            long ticket;
+            Lock lock = locks.lockFor(fileName).writeLock();
+            lock.lock();
+            try {
+                if (isTaken(putFile, fileName)) {
+                    throw new FileAlreadyExistsException(fileName);
                 }
-
-                if (idMap.containsValue(Integer.parseInt(nameOrId))) {
-                    for (var entry : idMap.entrySet()) {
-                        if (entry.getValue().equals(Integer.parseInt(nameOrId))) {
-                            String fileName = entry.getKey();
-                            userFile = new File(setUpFileStorage(fileName));
-                            if (userFile.exists() && !userFile.isDirectory()) {
-                                try {
-                                    fileContent = Files.readAllBytes(userFile.toPath());
-                                    return fileContent;
-                                } catch (IOException e) {
-                                    e.printStackTrace();
-                                    throw new FileNotFoundException();
-                                }
-                            } else {
-                                throw new FileNotFoundException();
-                            }
-                        }
-                    }
+                if (segmentContent != null) {
+                    write = segments.put(fileName, segmentContent);
                 } else {
-                    throw new FileNotFoundException();
+                    Files.move(staged, path, StandardCopyOption.ATOMIC_MOVE);
+                    write = writes.submit(path);
+                }
+                try {
+                    fileId = id == NEW_ID ? newFileId(fileName) : id;
+                    ticket = index.putLater(fileName, fileId);
+                } catch (IOException e) {
+                    if (segments == null || !segments.delete(fileName)) {
+                        Files.deleteIfExists(path);
+                    }
+                    throw e;
                 }
+                cache.invalidate(fileName);
+            } finally {
+                lock.unlock();
+            }
 
-            default:
-                throw new FileNotFoundException();
+            if (durable) {
+                try {
+                    awaitWrite(write);
+                    index.awaitJournal(ticket);
+                } catch (IOException e) {
+                    unpublish(fileName, fileId, path);
+                    throw e;
+                }
+            } else {
+                write.whenComplete((written, e) -> {
+                    if (e != null) {
+                        System.out.println("File " + fileName + " was acknowledged but could not be synced: " + e);
+                    }
+                });
+            }
+            return fileId;
+        } finally {
+            if (staged != null) {
+                Files.deleteIfExists(staged);
+            }
         }
     }
 
     /**
-     * Delete a file stored in the server data directory.
-     * The specified file can be searched by name or id, and it gets deleted if it exists.
+     * Removes a published file whose save failed to be synced, unless it was deleted or replaced in the meantime.
      *
-     * @param action this string specifies if the client is searching the file by name or id
-     * @param nameOrId this string contains the name or the id of the file being searched
-     * @return true if the file was deleted successfully, false otherwise
-     * @throws FileNotFoundException when an error occurs while searching the file
+     * @param fileName the name of the file
+     * @param fileId the id the file was indexed with
+     * @param path the path of the file in the data directory, if it was not saved to a segment
      */
-    private boolean deleteFile(String action, String nameOrId) throws FileNotFoundException {
-        File userFile;
-
-        switch (action) {
-
-            case "BY_NAME":
-                userFile = new File(setUpFileStorage(nameOrId));
-                try {
-                    return Files.deleteIfExists(userFile.toPath());
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    throw new FileNotFoundException();
+    private void unpublish(String fileName, long fileId, Path path) {
+        Lock lock = locks.lockFor(fileName).writeLock();
+        lock.lock();
+        try {
+            if (fileName.equals(index.nameOf(fileId))) {
+                if (segments == null || !segments.delete(fileName)) {
+                    Files.deleteIfExists(path);
                 }
-
-            case "BY_ID":
-                if (idMap.containsValue(Integer.parseInt(nameOrId))) {
-                    for (var entry : idMap.entrySet()) {
-                        if (entry.getValue().equals(Integer.parseInt(nameOrId))) {
-                            String fileName = entry.getKey();
-                            userFile = new File(setUpFileStorage(fileName));
-                            try {
-                                return Files.deleteIfExists(userFile.toPath());
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                                throw new FileNotFoundException();
-                            }
-                        }
-                    }
-                } else {
-                    throw new FileNotFoundException();
+                if (contents != null) {
+                    contents.released();
                 }
-
-            default:
-                throw new FileNotFoundException();
+                cache.invalidate(fileName);
+                index.remove(fileName);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
-     * Processes the command provided by the client.
-     * It calls different methods based on the command's tokens.
+     * @param fileName the name of a file about to be indexed
+     * @return a new id from the sequence of the index, or from the cluster, carrying the slot of the file
+     * @throws IOException if the cluster could not reserve more ids
+     */
+    private long newFileId(String fileName) throws IOException {
+        return cluster != null ? cluster.newId(fileName) : index.newId();
+    }
+
+    /**
+     * @param id the id of a file
+     * @return true if a file with this id is indexed
+     */
+    boolean hasFile(long id) {
+        return index.nameOf(id) != null;
+    }
+
+    /**
+     * Marks a {@link Protocol#REPLICA} request received from another node of the cluster, which is the only
+     * source such requests are executed from.
      *
-     * @param input the object input stream to receive the request by clients
-     * @param output the output stream to send responses to clients or requested data
-     * @return true if the response was sent correctly, false otherwise
-     * @throws IOException when an error occurs while communicating between client and server
-     * @throws ClassNotFoundException if the input stream cannot read the tokens list provided by the client
+     * @param request a request decoded from a connection
+     * @param source the address the connection comes from
+     * @return the request, marked as sent by a peer if it is a replica request from a node of the cluster
      */
-    public boolean processCommand(ObjectInputStream input, DataOutputStream output)
-            throws IOException, ClassNotFoundException {
+    Request withSource(Request request, InetAddress source) {
+        if (cluster != null && request.hasFlag(Protocol.REPLICA) && cluster.isPeer(source)) {
+            return request.fromPeer();
+        }
+        return request;
+    }
 
-        ArrayList<String> commandToken;
-        commandToken = (ArrayList<String>) input.readObject();
+    /**
+     * @param putFile the file of the data directory a file would be saved to
+     * @param fileName the name of the file
+     * @return true if a file with this name is already stored, in the data directory or in a segment
+     */
+    private boolean isTaken(File putFile, String fileName) {
+        return putFile.exists() || putFile.isDirectory() || segments != null && segments.contains(fileName);
+    }
 
-        switch (commandToken.get(0)) {
+    /**
+     * Appends a part of a resumable upload to its session, and saves the file once its last part is received.
+     * A part of a multipart upload is written at its offset instead, and the file is saved by a commit.
+     * The file only gets an id, and becomes visible to the other clients, once it is complete, and it is then
+     * answered once the file and its id are on disk. Resumable and multipart uploads are large files, stored in
+     * the data directory as they were sent, without deduplication.
+     *
+     * @param body the offset of the part in the file and the length of the whole file, followed by the part
+     * @param fileName the name of the uploaded file
+     * @param multipart true if the part belongs to a multipart upload
+     * @return 202 with the number of bytes committed, 409 with that number if the part does not start there,
+     *         or the id of the saved file once the upload is complete
+     * @throws FileAlreadyExistsException when a file with this name already exists
+     * @throws StreamCorruptedException when the part does not fit in the file
+     * @throws IOException when an error occurs while saving the part or the file
+     */
+    private Response savePart(RequestBody body, String fileName, boolean multipart) throws IOException {
 
-            case "exit":
-                return false;
+        if (body.length() < Protocol.RANGE_LENGTH) {
+            body.discard();
+            throw new StreamCorruptedException("Resumable part without offset");
+        }
+        DataInputStream prefix = new DataInputStream(body.stream());
+        long offset = prefix.readLong();
+        long length = prefix.readLong();
+        long partLength = body.length() - Protocol.RANGE_LENGTH;
+        if (offset < 0 || length < 0 || partLength > length - offset) {
+            body.discard();
+            throw new StreamCorruptedException("Resumable part out of the file");
+        }
 
-            case "PUT":
-                String fileName = getFileName(commandToken);
-                ExecutorService executor = Executors.newSingleThreadExecutor();
-                int size = input.readInt();
-                byte[] userContent = new byte[size];
-                input.readFully(userContent, 0, userContent.length);
+        File putFile = new File(setUpFileStorage(fileName));
+        if (isTaken(putFile, fileName)) {
+            body.discard();
+            throw new FileAlreadyExistsException(fileName);
+        }
 
-                executor.submit(() -> {
-                    try {
-                        saveFile(userContent, fileName);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                });
+        if (multipart) {
+            return Response.committed(202, sessions.write(fileName, length, offset, partLength, body));
+        }
+        long committed = sessions.append(fileName, length, offset, body);
+        if (committed != offset + partLength) {
+            return Response.committed(409, committed);
+        } else if (committed < length) {
+            return Response.committed(202, committed);
+        }
 
-                executor.shutdown();
-                output.writeInt(200);
-                output.writeInt(Math.abs(fileName.hashCode()));
-                output.flush();
-                return true;
+        Lock lock = locks.lockFor(fileName).writeLock();
+        lock.lock();
+        try {
+            if (isTaken(putFile, fileName)) {
+                throw new FileAlreadyExistsException(fileName);
+            }
+            Path path = putFile.toPath();
+            sessions.complete(fileName, length, path);
+            return Response.saved(indexUploaded(fileName, path));
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            case "GET":
-                byte[] fileContent;
+    /**
+     * Saves the file of a multipart upload, once the parts received cover the whole file.
+     *
+     * @param fileName the name of the uploaded file
+     * @param length the length of the whole file
+     * @return the id of the saved file, or 409 with the number of bytes received if parts are missing
+     * @throws FileAlreadyExistsException when a file with this name already exists
+     * @throws IOException when an error occurs while saving the file
+     */
+    private Response commitUpload(String fileName, long length) throws IOException {
 
-                try {
-                    fileContent = getFile(commandToken.get(1), commandToken.get(2));
-                    output.writeInt(200);
-                    output.writeInt(fileContent.length);
-                    output.write(fileContent);
-                    output.flush();
-                    return true;
-                } catch (FileNotFoundException e) {
-                    output.writeInt(404);
-                    return true;
-                }
+        File putFile = new File(setUpFileStorage(fileName));
+        Lock lock = locks.lockFor(fileName).writeLock();
+        lock.lock();
+        try {
+            if (isTaken(putFile, fileName)) {
+                throw new FileAlreadyExistsException(fileName);
+            }
 
-            case "DELETE":
-                try {
-                    if (deleteFile(commandToken.get(1), commandToken.get(2))) {
-                        idMap.remove(commandToken.get(2));
-                        output.writeInt(200);
-                        return true;
+            Path path = putFile.toPath();
+            long received = sessions.commit(fileName, length, path);
+            if (received != length) {
+                return Response.committed(409, received);
+            }
+            return Response.saved(indexUploaded(fileName, path));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives an id to a file just moved into the data directory from an upload session, once it is on disk.
+     *
+     * @param fileName the name of the file
+     * @param path the path of the file
+     * @return the id of the file
+     * @throws IOException when the file cannot be synced, it is then removed
+     */
+    private long indexUploaded(String fileName, Path path) throws IOException {
+        long fileId = newFileId(fileName);
+        try {
+            awaitWrite(writes.submit(path));
+        } catch (IOException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+        index.put(fileName, fileId);
+        cache.invalidate(fileName);
+        return fileId;
+    }
+
+    /**
+     * Marks a file just saved as stored compressed, removing it if it cannot be marked.
+     *
+     * @param file the saved file, holding a compressed content
+     * @throws IOException if the file cannot be marked
+     */
+    private static void markCompressed(Path file) throws IOException {
+        try {
+            CompressedFiles.mark(file);
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.deleteIfExists(file);
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+    }
+
+    /**
+     * Waits until a file queued on the write pipeline is on disk.
+     *
+     * @param write the future returned by the write pipeline
+     * @throws IOException the error that prevented the file from being synced
+     */
+    private static void awaitWrite(CompletableFuture<Void> write) throws IOException {
+        try {
+            write.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Chooses the status sent to a client whose file could not be saved: 403 when the name is taken or not
+     * valid, 400 when the compressed body is not valid, 507 when the disk is full and 500 for any other storage
+     * error.
+     *
+     * @param e the error that prevented the file from being saved
+     * @return the status of the response
+     */
+    private static int saveFailureStatus(IOException e) {
+        if (e instanceof FileAlreadyExistsException || e instanceof NoSuchFileException) {
+            return 403;
+        }
+        if (e instanceof StreamCorruptedException) {
+            return 400;
+        }
+        String message = e.getMessage();
+        if (message != null && message.contains("No space left")) {
+            return 507;
+        }
+        return 500;
+    }
+
+    /**
+     * Finds the name of the file a client is searching, by name or by id.
+     *
+     * @param mode specifies if the client is searching the file by name or by id
+     * @param name the name of the file being searched by name
+     * @param id the id of the file being searched by id
+     * @return the name of the file
+     * @throws FileNotFoundException when no file has the searched id or the lookup mode is not valid
+     */
+    private String findFileName(byte mode, String name, long id) throws FileNotFoundException {
+
+        switch (mode) {
+
+            case Protocol.BY_NAME:
+
+                return name;
+
+            case Protocol.BY_ID:
+
+                long start = System.nanoTime();
+                String fileName = index.nameOf(id);
+                metrics.lookedUp(System.nanoTime() - start);
+                if (fileName == null) {
+                    throw new FileNotFoundException();
+                }
+                return fileName;
+
+            default:
+                throw new FileNotFoundException();
+        }
+    }
+
+    /**
+     * Locks a file found by {@link #findFileName}. A file searched by id may have been deleted or replaced under
+     * the same name before the lock was taken, so its id is looked up again once the lock is held.
+     *
+     * @param mode specifies if the client is searching the file by name or by id
+     * @param fileName the name of the file
+     * @param id the id of the file being searched by id
+     * @param write true to take the write lock of the name, false to take its read lock
+     * @return the lock held
+     * @throws FileNotFoundException when the file no longer has the searched id, the lock is then released
+     */
+    private Lock lockFile(byte mode, String fileName, long id, boolean write) throws FileNotFoundException {
+        Lock lock = write ? locks.lockFor(fileName).writeLock() : locks.lockFor(fileName).readLock();
+        lock.lock();
+        if (mode == Protocol.BY_ID && !fileName.equals(index.nameOf(id))) {
+            lock.unlock();
+            throw new FileNotFoundException();
+        }
+        return lock;
+    }
+
+    /**
+     * Retrieves a file stored in the server data directory so that its content can be sent to the client.
+     * The file can be searched by using its name or its id.
+     * Small files are sent from the file cache, and cached when they are read from disk or from their segment.
+     * Larger files are streamed from disk by the transport.
+     * A client accepting compressed contents gets the files stored compressed as they are, and the files sent
+     * from memory compressed when they compress well. Larger files stored as they are are sent as they are.
+     * The file is found and opened under the read lock of its name, and sent once the lock is released.
+     *
+     * @param mode specifies if the client is searching the file by name or by id
+     * @param name the name of the file being searched by name
+     * @param id the id of the file being searched by id
+     * @param legacy true if the file is retrieved for a legacy client, which cannot receive files over 2 GiB
+     * @param acceptCompressed true if the client accepts compressed contents
+     * @return the response carrying the content of the retrieved file, or 403 if it is too large for the client
+     * @throws IOException when the file does not exist or an error occurs while reading it
+     */
+    private Response getFile(byte mode, String name, long id, boolean legacy, boolean acceptCompressed)
+            throws IOException {
+
+        String fileName = findFileName(mode, name, id);
+        Lock lock = lockFile(mode, fileName, id, false);
+        try {
+            return readFile(fileName, legacy, acceptCompressed);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads a file for {@link #getFile}, from the cache, its segment or the data directory.
+     */
+    private Response readFile(String fileName, boolean legacy, boolean acceptCompressed) throws IOException {
+        ByteBuffer cached = cache.get(fileName);
+        if (cached != null) {
+            return contentResponse(cached, acceptCompressed);
+        }
+
+        long ticket = cache.ticket();
+        ByteBuffer stored = segments == null ? null : segments.read(fileName);
+        if (stored != null) {
+            ByteBuffer content = cache.accepts(stored.remaining()) ? cache.add(fileName, stored, ticket) : stored;
+            return contentResponse(content, acceptCompressed);
+        }
+
+        File userFile = new File(setUpFileStorage(fileName));
+        FileChannel file = openFile(userFile);
+        try {
+            if (compressionMarks && CompressedFiles.isCompressed(userFile.toPath())) {
+                return getCompressedFile(fileName, file, legacy, acceptCompressed, ticket);
+            }
+            long size = file.size();
+            if (legacy && size > Integer.MAX_VALUE) {
+                file.close();
+                return Response.status(403);
+            }
+            if (cache.accepts(size)) {
+                ByteBuffer content = cache.load(fileName, file, size, ticket);
+                file.close();
+                return contentResponse(content, acceptCompressed);
+            }
+            Response response = Response.file(file, size);
+            return acceptCompressed ? response.withEncoding(Protocol.ENCODING_IDENTITY) : response;
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Retrieves a file stored compressed. A client accepting compressed contents gets it as it is stored,
+     * otherwise it is decompressed: into the file cache if it is small enough, into a temporary file deleted
+     * once sent if not.
+     *
+     * @param fileName the name of the file
+     * @param file the open file, holding a compressed content
+     * @param legacy true if the file is retrieved for a legacy client, which cannot receive files over 2 GiB
+     * @param acceptCompressed true if the client accepts compressed contents
+     * @param ticket the cache ticket taken before the file was opened
+     * @return the response carrying the content of the file, or 403 if it is too large for the client
+     * @throws IOException when an error occurs while reading or decompressing the file
+     */
+    private Response getCompressedFile(String fileName, FileChannel file, boolean legacy, boolean acceptCompressed,
+                                       long ticket) throws IOException {
+        long compressedSize = file.size();
+        if (acceptCompressed) {
+            return Response.file(file, compressedSize).withEncoding(Protocol.ENCODING_DEFLATE);
+        }
+
+        try (Compression.InflatingStream input =
+                     new Compression.InflatingStream(Channels.newInputStream(file), compressedSize)) {
+            long size = input.length();
+            if (legacy && size > Integer.MAX_VALUE) {
+                return Response.status(403);
+            }
+            if (cache.accepts(size)) {
+                byte[] content = input.readNBytes((int) size);
+                if (content.length < size) {
+                    throw new EOFException("Compressed file shorter than announced");
+                }
+                return Response.content(cache.add(fileName, ByteBuffer.wrap(content), ticket));
+            }
+
+            return Response.file(inflateToTemporaryFile(input, size), size);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Retrieves a range of a file, so that a client can resume a download or fetch a part of a large file.
+     * Ranges of cached files and of files stored in a segment are sent from memory, ranges of the other files
+     * are read from disk with positional reads as they are sent. Ranges are sent as they are, even to clients
+     * accepting compressed contents, and do not fill the file cache. Like a whole file, the range is found under
+     * the read lock of the file name.
+     *
+     * @param mode specifies if the client is searching the file by name or by id
+     * @param name the name of the file being searched by name
+     * @param id the id of the file being searched by id
+     * @param offset the position of the first byte wanted
+     * @param length the number of bytes wanted, cut at the end of the file
+     * @return the response carrying the range, or 416 if the offset is past the end of the file
+     * @throws IOException when the file does not exist or an error occurs while reading it
+     */
+    private Response getRange(byte mode, String name, long id, long offset, long length) throws IOException {
+
+        String fileName = findFileName(mode, name, id);
+        Lock lock = lockFile(mode, fileName, id, false);
+        try {
+            return readRange(fileName, offset, length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads a range of a file for {@link #getRange}, from the cache, its segment or the data directory.
+     */
+    private Response readRange(String fileName, long offset, long length) throws IOException {
+        ByteBuffer content = cache.get(fileName);
+        if (content == null && segments != null) {
+            content = segments.read(fileName);
+        }
+        if (content != null) {
+            int size = content.remaining();
+            if (offset > size) {
+                return Response.status(416);
+            }
+            int count = (int) Math.min(length, size - offset);
+            return Response.range(content.slice(content.position() + (int) offset, count), size);
+        }
+
+        File userFile = new File(setUpFileStorage(fileName));
+        FileChannel file = openFile(userFile);
+        try {
+            if (compressionMarks && CompressedFiles.isCompressed(userFile.toPath())) {
+                return getCompressedRange(file, offset, length);
+            }
+            long size = file.size();
+            if (offset > size) {
+                file.close();
+                return Response.status(416);
+            }
+            return Response.range(file, offset, Math.min(length, size - offset), size);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Retrieves a range of a file stored compressed, decompressing the file up to the end of the range.
+     * A range small enough to be cached is decompressed into memory, a larger one into a temporary file deleted
+     * once sent.
+     *
+     * @param file the open file, holding a compressed content
+     * @param offset the position of the first byte wanted
+     * @param length the number of bytes wanted, cut at the end of the file
+     * @return the response carrying the range, or 416 if the offset is past the end of the file
+     * @throws IOException when an error occurs while reading or decompressing the file
+     */
+    private Response getCompressedRange(FileChannel file, long offset, long length) throws IOException {
+        try (Compression.InflatingStream input =
+                     new Compression.InflatingStream(Channels.newInputStream(file), file.size())) {
+            long size = input.length();
+            if (offset > size) {
+                return Response.status(416);
+            }
+            long count = Math.min(length, size - offset);
+            input.skipNBytes(offset);
+            if (count <= options.cacheMaxFileSize) {
+                byte[] content = input.readNBytes((int) count);
+                if (content.length < count) {
+                    throw new EOFException("Compressed file shorter than announced");
+                }
+                return Response.range(ByteBuffer.wrap(content), size);
+            }
+            return Response.range(inflateToTemporaryFile(input, count), 0, count, size);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Decompresses the next bytes of a compressed file into a temporary file, in the uploads directory.
+     *
+     * @param input the stream decompressing the file
+     * @param count the number of bytes to decompress
+     * @return the temporary file open for reading, deleted once closed
+     * @throws IOException when an error occurs while decompressing or writing the file
+     */
+    private FileChannel inflateToTemporaryFile(InputStream input, long count) throws IOException {
+        Path inflated = newUploadFile();
+        try {
+            try (OutputStream output = Files.newOutputStream(inflated)) {
+                byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
+                long remaining = count;
+                while (remaining > 0) {
+                    int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new EOFException("Compressed file shorter than announced");
+                    }
+                    output.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            }
+            return FileChannel.open(inflated, StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE);
+        } catch (IOException e) {
+            Files.deleteIfExists(inflated);
+            throw e;
+        }
+    }
+
+    /**
+     * Builds the response carrying a file content held in memory, compressed if the client accepts it and the
+     * content compresses well.
+     *
+     * @param content the content of the file
+     * @param acceptCompressed true if the client accepts compressed contents
+     * @return the response carrying the content
+     */
+    private static Response contentResponse(ByteBuffer content, boolean acceptCompressed) {
+        if (!acceptCompressed) {
+            return Response.content(content);
+        }
+        ByteBuffer compressed = Compression.deflate(content);
+        if (compressed == null) {
+            return Response.content(content).withEncoding(Protocol.ENCODING_IDENTITY);
+        }
+        return Response.content(compressed).withEncoding(Protocol.ENCODING_DEFLATE);
+    }
+
+    /**
+     * Opens a stored file for reading.
+     *
+     * @param userFile the file to open
+     * @return the channel to read the file from
+     * @throws FileNotFoundException when the file does not exist
+     * @throws IOException when the file exists but cannot be opened
+     */
+    private FileChannel openFile(File userFile) throws IOException {
+
+        if (userFile.exists() && !userFile.isDirectory()) {
+            return FileChannel.open(userFile.toPath(), StandardOpenOption.READ);
+        } else {
+            throw new FileNotFoundException();
+        }
+    }
+
+    /**
+     * Delete a file stored in the server data directory.
+     * The specified file can be searched by name or id, and it gets deleted if it exists.
+     * Whichever way it was searched, the deleted file is also removed from the file index.
+     * A file stored in a segment is deleted by appending a tombstone to the segments.
+     * The file is deleted and removed from the index under the write lock of its name.
+     *
+     * @param mode specifies if the client is searching the file by name or id
+     * @param name the name of the file being searched by name
+     * @param id the id of the file being searched by id
+     * @return true if the file was deleted successfully, false otherwise
+     * @throws FileNotFoundException when an error occurs while searching the file
+     */
+    private boolean deleteFile(byte mode, String name, long id) throws FileNotFoundException {
+        String fileName = findFileName(mode, name, id);
+        Lock lock = lockFile(mode, fileName, id, true);
+
+        File userFile = new File(setUpFileStorage(fileName));
+        try {
+            if (segments != null && segments.delete(fileName) || Files.deleteIfExists(userFile.toPath())) {
+                if (contents != null) {
+                    contents.released();
+                }
+                cache.invalidate(fileName);
+                index.remove(fileName);
+                return true;
+            }
+            return false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new FileNotFoundException();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Executes a request provided by the client and records it in the server metrics.
+     * A request that finds damaged entries in the index snapshot gets 500.
+     *
+     * @param request the decoded client request
+     * @return the response to send to the client, {@link Response#EXIT} if the server was asked to stop
+     */
+    Response execute(Request request) {
+        long start = System.nanoTime();
+        Response response;
+        try {
+            response = executeCommand(request);
+        } catch (UncheckedIOException e) {
+            e.printStackTrace();
+            response = Response.status(500);
+        }
+        metrics.requestExecuted(request.opcode, response.status, System.nanoTime() - start, request.bodyLength,
+                response.hasContent() ? response.fileSize : 0);
+        return response;
+    }
+
+    /**
+     * Executes a request provided by the client.
+     * It calls different methods based on the request's command, whatever transport the request was received on.
+     *
+     * @param request the decoded client request
+     * @return the response to send to the client, {@link Response#EXIT} if the server was asked to stop
+     */
+    private Response executeCommand(Request request) {
+
+        if (request.rejected) {
+            return retryLater(request);
+        }
+        if (request.hasFlag(Protocol.REPLICA) && (cluster == null || !request.fromPeer
+                || request.version < Protocol.REPLICA_VERSION)) {
+            // the id of a replica request is taken as it is, so only the nodes of the cluster may send one
+            return Response.status(400);
+        }
+
+        switch (request.opcode) {
+
+            case Protocol.EXIT:
+                return Response.EXIT;
+
+            case Protocol.PUT:
+                String fileName = getFileName(request.name);
+
+                try {
+                    if (request.hasFlag(Protocol.RESUMABLE) || request.hasFlag(Protocol.MULTIPART)) {
+                        if (cluster != null) {
+                            request.body.discard();
+                            return Response.status(501);
+                        }
+                        if (request.hasFlag(Protocol.COMPRESSED_BODY) || request.name.isEmpty()) {
+                            request.body.discard();
+                            return Response.status(400);
+                        }
+                        return savePart(request.body, fileName, request.hasFlag(Protocol.MULTIPART));
+                    }
+                    if (cluster != null && !request.hasFlag(Protocol.REPLICA)) {
+                        return cluster.put(request, fileName);
+                    }
+                    boolean durable = !request.hasFlag(Protocol.ACK_ON_RECEIPT);
+                    boolean compressed = request.hasFlag(Protocol.COMPRESSED_BODY);
+                    long id = request.hasFlag(Protocol.REPLICA) ? request.id : NEW_ID;
+                    return Response.saved(saveFile(request.body, fileName, durable, compressed, id));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return Response.status(saveFailureStatus(e));
+                }
+
+            case Protocol.RESUME:
+                try {
+                    if (cluster != null) {
+                        return Response.status(501);
+                    }
+                    if (request.mode != Protocol.BY_NAME || request.body == null
+                            || request.body.length() != 8) {
+                        return Response.status(400);
+                    }
+                    long length = new DataInputStream(request.body.stream()).readLong();
+                    return Response.committed(200, sessions.committed(request.name, length));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return Response.status(500);
+                }
+
+            case Protocol.COMMIT:
+                try {
+                    if (cluster != null) {
+                        return Response.status(501);
+                    }
+                    if (request.mode != Protocol.BY_NAME || request.body == null
+                            || request.body.length() != 8) {
+                        return Response.status(400);
+                    }
+                    long length = new DataInputStream(request.body.stream()).readLong();
+                    return commitUpload(request.name, length);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return Response.status(saveFailureStatus(e));
+                }
+
+            case Protocol.BATCH:
+                try {
+                    if (request.body == null) {
+                        return Response.status(400);
+                    }
+                    return batches.execute(request.body);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return Response.status(400);
+                }
+
+            case Protocol.STATS:
+                return Response.content(ByteBuffer.wrap(metrics.report().getBytes(StandardCharsets.UTF_8)));
+
+            case Protocol.GET:
+                try {
+                    if (request.hasFlag(Protocol.RANGE)) {
+                        if (request.body == null || request.body.length() != Protocol.RANGE_LENGTH) {
+                            return Response.status(400);
+                        }
+                        DataInputStream range = new DataInputStream(request.body.stream());
+                        long offset = range.readLong();
+                        long length = range.readLong();
+                        if (offset < 0 || length < 0) {
+                            return Response.status(400);
+                        }
+                        return getRange(request.mode, request.name, request.id, offset, length);
+                    }
+                    return getFile(request.mode, request.name, request.id, request.legacy,
+                            request.hasFlag(Protocol.ACCEPT_COMPRESSED));
+                } catch (FileNotFoundException | NoSuchFileException e) {
+                    return Response.status(404);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return Response.status(500);
+                }
+
+            case Protocol.DELETE:
+                if (cluster != null && !request.hasFlag(Protocol.REPLICA) && request.mode != Protocol.NONE) {
+                    return cluster.delete(request);
+                }
+                try {
+                    if (deleteFile(request.mode, request.name, request.id)) {
+                        return Response.status(200);
                     } else {
-                        output.writeInt(403);
-                        return true;
+                        return Response.status(403);
                     }
                 } catch (FileNotFoundException e) {
                     e.printStackTrace();
-                    output.writeInt(403);
-                    return true;
+                    return Response.status(403);
                 }
 
             default:
 
                 System.out.println("System invalid command.");
-                output.writeInt(400);
-                return true;
+                return Response.status(400);
         }
     }
 
-    @Override
-    public void run() {
+    /**
+     * @param request a request the server is too busy to execute
+     * @return 503 with the retry delay, or without it for a frame older than {@link Protocol#RETRY_DELAY_VERSION}
+     */
+    Response retryLater(Request request) {
+        if (request.version < Protocol.RETRY_DELAY_VERSION) {
+            return Response.status(503);
+        }
+        return Response.retryLater(options.retryAfterSeconds);
+    }
+
+    /**
+     * Processes the command provided by a legacy client.
+     * It reads the request tokens from the stream, streams the uploaded content to disk and sends back the response.
+     *
+     * @param connection the client connection to receive the request from and send the response to
+     * @return true if the response was sent correctly, false if the server was asked to stop
+     * @throws IOException when an error occurs while communicating between client and server
+     * @throws ClassNotFoundException if the input stream cannot read the tokens list provided by the client
+     */
+    boolean processCommand(StreamConnection connection) throws IOException, ClassNotFoundException {
 
-        try (ServerSocket server = new ServerSocket(PORT)) {
+        ObjectInputStream input = new ObjectInputStream(connection.input);
+        List<String> commandToken = LegacyRequestDecoder.readTokens(input);
+        RequestBody userContent = null;
 
-            serverOnline = true;
+        if (!commandToken.isEmpty() && commandToken.get(0).equals("PUT")) {
+            int size = input.readInt();
+            if (size < 0) {
+                throw new StreamCorruptedException("Negative content length " + size);
+            }
+            userContent = new StreamBody(input, size, connection.buffer);
+        }
 
+        Request request = admit(Request.fromTokens(commandToken, userContent));
+        Response response;
+        try {
+            response = execute(request);
+        } finally {
             try {
-                idMap = readIdMap();
-            } catch (IOException | ClassNotFoundException e) {
+                if (userContent != null) {
+                    userContent.discard();
+                }
+            } finally {
+                released(request);
+            }
+        }
+
+        boolean running = respond(response, true, connection);
+        connection.output.flush();
+        return running;
+    }
+
+    /**
+     * Processes a binary request frame provided by the client.
+     * It reads the frame header and body from the stream and sends back the response.
+     * The response is only flushed once no further pipelined request is waiting to be read,
+     * so that the responses to a burst of requests leave together.
+     *
+     * @param connection the client connection to receive the request from and send the response to
+     * @return true if the response was sent correctly, false if the server was asked to stop
+     * @throws IOException when an error occurs while communicating between client and server
+     */
+    boolean processFrame(StreamConnection connection) throws IOException {
+
+        RequestHeader header = connection.header;
+        header.read(connection.frames);
+        StreamBody body = new StreamBody(connection.frames, header.bodyLength, connection.buffer);
+        Request request = admit(withSource(Request.fromHeader(header, body), connection.socket.getInetAddress()));
+        Response response;
+
+        try {
+            response = execute(request);
+        } finally {
+            try {
+                body.discard();
+            } finally {
+                released(request);
+            }
+        }
+
+        boolean running = respond(response, false, connection);
+        if (connection.input.available() == 0) {
+            connection.output.flush();
+        }
+        return running;
+    }
+
+    /**
+     * Writes the response to a request, leaving it to the caller to flush the output.
+     * The content of a retrieved file is streamed from disk after the response header.
+     *
+     * @param response the response to send
+     * @param legacy true if the response is for a legacy client
+     * @param connection the client connection to send the response to
+     * @return true if the response was sent, false if the server was asked to stop
+     * @throws IOException when an error occurs while sending the response
+     */
+    private boolean respond(Response response, boolean legacy, StreamConnection connection) throws IOException {
+
+        if (response.isExit()) {
+            return false;
+        }
+
+        try {
+            ByteBuffer encoded = response.encodeHeader(legacy);
+            connection.output.write(encoded.array(), encoded.arrayOffset(), encoded.remaining());
+
+            if (response.file != null) {
+                connection.sendFile(response.file, response.fileOffset, response.fileSize);
+            } else if (response.content != null) {
+                connection.sendContent(response.content);
+            }
+        } finally {
+            response.close();
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the client to start its next request.
+     * While waiting the connection is idle, so stopping the server closes it instead of waiting for the timeout.
+     *
+     * @param connection the client connection
+     * @return the first byte of the next request, or -1 if the connection is closed or the server stopped
+     * @throws IOException when an error occurs while reading
+     */
+    private int awaitRequest(StreamConnection connection) throws IOException {
+        idleConnections.add(connection.socket);
+        try {
+            return serverOnline ? connection.peek() : -1;
+        } finally {
+            idleConnections.remove(connection.socket);
+        }
+    }
+
+    /**
+     * Serves a client connection until the client closes it or stays idle for longer than the idle timeout.
+     * Binary clients can send any number of requests on the connection, pipelined or not, and the responses are
+     * sent in the same order. Legacy clients send a single request, after which the connection is closed.
+     * The request format is detected from the first byte received, an exit request stops the whole server.
+     *
+     * @param socket the accepted client socket
+     */
+    private void handleConnection(Socket socket) {
+
+        metrics.connectionOpened();
+        try (StreamConnection connection = new StreamConnection(socket, options.zeroCopy)) {
+
+            socket.setSoTimeout(options.idleTimeoutMillis());
+            int firstByte = awaitRequest(connection);
+            if (firstByte < 0) {
+                return;
+            }
+
+            boolean running = true;
+            if (newDecoder((byte) firstByte) instanceof FrameRequestDecoder) {
+                do {
+                    running = processFrame(connection);
+                } while (running && awaitRequest(connection) >= 0);
+            } else {
+                running = processCommand(connection);
+            }
+
+            if (!running) {
+                shutdown();
+            }
+        } catch (SocketTimeoutException e) {
+            System.out.println("Closing idle connection.");
+        } catch (IOException | ClassNotFoundException e) {
+            if (serverOnline) {
                 e.printStackTrace();
             }
+        } finally {
+            metrics.connectionClosed();
+            admission.connectionClosed();
+        }
+    }
 
-            System.out.println("Server started!");
+    /**
+     * Accepts client connections until the server is stopped, serving each of them on the connection executor.
+     * Connections are accepted through a channel, so that file contents can be sent to them without copies.
+     * While the maximum number of connections is open, further clients wait in the listen backlog.
+     *
+     * @throws IOException if the server socket cannot be opened
+     */
+    void serve() throws IOException {
 
-            while (serverOnline) {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
 
-                try (
-                        Socket socket = server.accept();
-                        ObjectInputStream input = new ObjectInputStream(socket.getInputStream());
-                        DataOutputStream output = new DataOutputStream(socket.getOutputStream());
-                ) {
+            server.bind(new InetSocketAddress(PORT));
+            setListener(server);
+            System.out.println("Server started!");
 
-                    try {
-                        if (!processCommand(input, output)) {
-                            stop(input, output, socket);
-                        }
-                    } catch (EOFException | ClassNotFoundException e) {
+            while (serverOnline) {
+                try {
+                    if (!admission.awaitConnection(ACCEPT_POLL_MILLIS)) {
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+                try {
+                    Socket socket = server.accept().socket();
+                    connectionExecutor.submit(() -> handleConnection(socket));
+                } catch (IOException e) {
+                    admission.connectionClosed();
+                    if (serverOnline) {
                         e.printStackTrace();
                     }
                 }
             }
+        }
+    }
+
+    @Override
+    public void run() {
+
+        serverOnline = true;
+        connectionExecutor = newConnectionExecutor();
+        batchExecutor = newTaskExecutor();
+        batches = new BatchExecutor(this, batchExecutor);
+
+        writes = new WritePipeline(Path.of(setUpFileStorage("")), options.writeQueue);
+        ExecutorService executor = connectionExecutor;
+        metrics.setQueues(writes::queued,
+                () -> executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getQueue().size() : 0,
+                admission::inFlightBytes);
+        compressionMarks = CompressedFiles.supported(Path.of(setUpFileStorage("")));
+        if (options.storage.equals(ServerOptions.STORAGE_SEGMENTS)) {
+            try {
+                segments = new SegmentStore(segmentDirectory(), options.segmentSize, writes);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        try {
+            sessions = new UploadSessions(sessionDirectory(), options.sessionExpiryHours);
         } catch (IOException e) {
             e.printStackTrace();
         }
+        if (options.dedup) {
+            try {
+                contents = new ContentStore(Path.of(System.getProperty("user.dir"), "src", "server", "content"));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        try {
+            openIdMap();
+        } catch (IOException | ClassNotFoundException e) {
+            e.printStackTrace();
+        }
+        if (journal != null) {
+            snapshotExecutor = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "id-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long interval = options.snapshotIntervalSeconds;
+            snapshotExecutor.scheduleWithFixedDelay(this::snapshotIdMap, interval, interval, TimeUnit.SECONDS);
+        }
+        if (options.statsFile != null) {
+            statsExecutor = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "stats-dump");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long interval = options.statsIntervalSeconds;
+            statsExecutor.scheduleWithFixedDelay(this::dumpStats, interval, interval, TimeUnit.SECONDS);
+        }
+
+        try {
+            serve();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            serverOnline = false;
+            connectionExecutor.shutdown();
+            try {
+                connectionExecutor.awaitTermination(30, TimeUnit.SECONDS);
+                batchExecutor.shutdown();
+                batchExecutor.awaitTermination(30, TimeUnit.SECONDS);
+                if (snapshotExecutor != null) {
+                    snapshotExecutor.shutdown();
+                    snapshotExecutor.awaitTermination(30, TimeUnit.SECONDS);
+                }
+                if (statsExecutor != null) {
+                    statsExecutor.shutdown();
+                    statsExecutor.awaitTermination(30, TimeUnit.SECONDS);
+                    dumpStats();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (cluster != null) {
+                cluster.close();
+            }
+            writes.close();
+            if (segments != null) {
+                try {
+                    segments.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (contents != null) {
+                contents.close();
+            }
+            if (sessions != null) {
+                sessions.close();
+            }
+            snapshotIdMap();
+            if (options.cacheSize > 0) {
+                System.out.println(cache);
+            }
+            if (journal != null) {
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
     }
 }
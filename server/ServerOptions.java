@@ -0,0 +1,190 @@
+package server;
+
+/**
+ * The settings of a server, parsed from the command line options.
+ */
+class ServerOptions {
+    /** Binary request frames and legacy serialized requests are both accepted, detected by their first byte. */
+    static final String PROTOCOL_AUTO = "auto";
+    static final String PROTOCOL_BINARY = "binary";
+    static final String PROTOCOL_LEGACY = "legacy";
+    /** Every stored file is a file of the data directory. */
+    static final String STORAGE_FILES = "files";
+    /** Small files are packed into segment files, larger ones are files of the data directory. */
+    static final String STORAGE_SEGMENTS = "segments";
+
+    int port = 23456;
+    int threads = 0;
+    String transport = "blocking";
+    int loops = Runtime.getRuntime().availableProcessors();
+    String protocol = PROTOCOL_AUTO;
+    int idleTimeoutSeconds = 60;
+    boolean zeroCopy = true;
+    int snapshotIntervalSeconds = 60;
+    long cacheSize = 64L * 1024 * 1024;
+    long cacheMaxFileSize = 1024 * 1024;
+    String cachePolicy = FileCache.POLICY_TINY_LFU;
+    boolean cacheDirect = false;
+    int writeQueue = 1024;
+    String storage = STORAGE_FILES;
+    long segmentThreshold = 64 * 1024;
+    long segmentSize = 64L * 1024 * 1024;
+    boolean dedup = false;
+    boolean compressAtRest = true;
+    long sessionExpiryHours = 24;
+    String statsFile = null;
+    int statsIntervalSeconds = 60;
+    int maxConnections = 1024;
+    long maxInFlightBytes = 1024L * 1024 * 1024;
+    int retryAfterSeconds = 1;
+    /** The addresses of the nodes of the cluster the server is part of, null for a server on its own. */
+    String cluster = null;
+    String node = null;
+    int replicas = 3;
+    int writeQuorum = 0;
+
+    /**
+     * Parses the command line options.
+     * Accepted options:
+     * {@code --port N} to set the port the server listens on,
+     * {@code --threads N} to execute requests on a fixed pool of N threads instead of one (virtual) thread each,
+     * {@code --transport nio} to multiplex connections over non-blocking event loops instead of serving
+     * each connection on its own thread,
+     * {@code --loops N} to set the number of event loops of the non-blocking transport,
+     * {@code --protocol auto|binary|legacy} to choose the request formats accepted from clients,
+     * {@code --idle-timeout SECONDS} to close connections that have not sent a request for that long,
+     * {@code --zero-copy off} to copy file contents through Java buffers instead of letting the kernel send them,
+     * {@code --snapshot-interval SECONDS} to set how often the id map is saved and its journal truncated,
+     * {@code --cache-size BYTES} to set how many bytes of file contents are cached for GET requests, 0 to disable
+     * the cache, {@code --cache-max-file BYTES} to set the size of the largest cached file,
+     * {@code --cache-policy lru|tinylfu} to choose how cached files are evicted,
+     * {@code --cache-direct on} to hold cached contents in direct buffers outside of the Java heap,
+     * {@code --write-queue N} to set how many saved files may wait to be synced to disk before uploads wait,
+     * {@code --storage segments} to pack small files into segment files,
+     * {@code --segment-threshold BYTES} to set the size of the largest file stored in a segment,
+     * {@code --segment-size BYTES} to set the size a segment is sealed at,
+     * {@code --dedup on} to store the files of the data directory once per distinct content,
+     * {@code --compress-at-rest off} to decompress the files uploaded compressed before storing them,
+     * {@code --session-expiry HOURS} to set how long a resumable upload is kept without receiving a part,
+     * {@code --stats-file PATH} to write the server statistics to a file periodically and when the server stops,
+     * {@code --stats-interval SECONDS} to set how often the statistics file is written,
+     * {@code --max-connections N} to set how many connections may be open at once, 0 for no limit,
+     * {@code --max-in-flight BYTES} to set how many bytes of request bodies may be received or executed at once
+     * before further requests with a body get 503, 0 for no limit,
+     * {@code --retry-after SECONDS} to set how long clients are told to wait before retrying a request
+     * rejected with 503,
+     * {@code --cluster HOST:PORT,...} to run as a node of a cluster, listing every node in the same order on all
+     * of them, {@code --node HOST:PORT} to tell which node of the list this server is when its port is not enough,
+     * {@code --replicas N} to set the number of nodes each file is stored on,
+     * and {@code --write-quorum N} to set how many of them must save a file before it is acknowledged, a majority
+     * of the replicas by default.
+     *
+     * @param args the command line options
+     * @return the parsed options, defaults for the options not specified
+     */
+    static ServerOptions parse(String[] args) {
+        ServerOptions options = new ServerOptions();
+
+        for (int i = 0; i < args.length - 1; i++) {
+            switch (args[i]) {
+                case "--port":
+                    options.port = Integer.parseInt(args[++i]);
+                    break;
+                case "--threads":
+                    options.threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--transport":
+                    options.transport = args[++i];
+                    break;
+                case "--loops":
+                    options.loops = Integer.parseInt(args[++i]);
+                    break;
+                case "--protocol":
+                    options.protocol = args[++i];
+                    break;
+                case "--idle-timeout":
+                    options.idleTimeoutSeconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--zero-copy":
+                    options.zeroCopy = !args[++i].equals("off");
+                    break;
+                case "--snapshot-interval":
+                    options.snapshotIntervalSeconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--cache-size":
+                    options.cacheSize = Long.parseLong(args[++i]);
+                    break;
+                case "--cache-max-file":
+                    options.cacheMaxFileSize = Long.parseLong(args[++i]);
+                    break;
+                case "--cache-policy":
+                    options.cachePolicy = args[++i];
+                    break;
+                case "--cache-direct":
+                    options.cacheDirect = args[++i].equals("on");
+                    break;
+                case "--write-queue":
+                    options.writeQueue = Integer.parseInt(args[++i]);
+                    break;
+                case "--storage":
+                    options.storage = args[++i];
+                    break;
+                case "--segment-threshold":
+                    options.segmentThreshold = Long.parseLong(args[++i]);
+                    break;
+                case "--segment-size":
+                    options.segmentSize = Long.parseLong(args[++i]);
+                    break;
+                case "--dedup":
+                    options.dedup = args[++i].equals("on");
+                    break;
+                case "--compress-at-rest":
+                    options.compressAtRest = !args[++i].equals("off");
+                    break;
+                case "--session-expiry":
+                    options.sessionExpiryHours = Long.parseLong(args[++i]);
+                    break;
+                case "--stats-file":
+                    options.statsFile = args[++i];
+                    break;
+                case "--stats-interval":
+                    options.statsIntervalSeconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--max-connections":
+                    options.maxConnections = Integer.parseInt(args[++i]);
+                    break;
+                case "--max-in-flight":
+                    options.maxInFlightBytes = Long.parseLong(args[++i]);
+                    break;
+                case "--retry-after":
+                    options.retryAfterSeconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--cluster":
+                    options.cluster = args[++i];
+                    break;
+                case "--node":
+                    options.node = args[++i];
+                    break;
+                case "--replicas":
+                    options.replicas = Integer.parseInt(args[++i]);
+                    break;
+                case "--write-quorum":
+                    options.writeQuorum = Integer.parseInt(args[++i]);
+                    break;
+            }
+        }
+        return options;
+    }
+
+    int idleTimeoutMillis() {
+        return idleTimeoutSeconds * 1000;
+    }
+
+    boolean acceptsBinary() {
+        return !protocol.equals(PROTOCOL_LEGACY);
+    }
+
+    boolean acceptsLegacy() {
+        return !protocol.equals(PROTOCOL_BINARY);
+    }
+}
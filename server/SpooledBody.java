@@ -0,0 +1,114 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+
+/**
+ * A request body that the transport has already written to a spool file while receiving it.
+ * Saving the body moves the spool file in place instead of copying it.
+ */
+class SpooledBody implements RequestBody {
+    private final Path spoolFile;
+    private final long length;
+    private final MessageDigest digest;
+    private InputStream input;
+
+    SpooledBody(Path spoolFile, long length) {
+        this(spoolFile, length, null);
+    }
+
+    /**
+     * @param spoolFile the file holding the body
+     * @param length the number of bytes of the body
+     * @param digest the digest updated with the body while it was spooled, null if it was not hashed
+     */
+    SpooledBody(Path spoolFile, long length, MessageDigest digest) {
+        this.spoolFile = spoolFile;
+        this.length = length;
+        this.digest = digest;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public void saveTo(Path target) throws IOException {
+        try {
+            Files.move(spoolFile, target);
+        } finally {
+            discard();
+        }
+    }
+
+    @Override
+    public byte[] saveDigested(Path target) throws IOException {
+        MessageDigest digest = this.digest;
+        if (digest == null) {
+            digest = ContentStore.newDigest();
+            try (InputStream input = Files.newInputStream(spoolFile)) {
+                byte[] buffer = new byte[Server.TRANSFER_BUFFER_SIZE];
+                int read;
+                while ((read = input.read(buffer)) > 0) {
+                    digest.update(buffer, 0, read);
+                }
+            } catch (IOException e) {
+                discard();
+                throw e;
+            }
+        }
+        saveTo(target);
+        return digest.digest();
+    }
+
+    @Override
+    public byte[] readAll() throws IOException {
+        try {
+            return Files.readAllBytes(spoolFile);
+        } finally {
+            discard();
+        }
+    }
+
+    @Override
+    public void writeTo(FileChannel target, long position) throws IOException {
+        try {
+            InputStream input = stream();
+            byte[] buffer = new byte[Server.TRANSFER_BUFFER_SIZE];
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                while (chunk.hasRemaining()) {
+                    position += target.write(chunk, position);
+                }
+            }
+        } finally {
+            discard();
+        }
+    }
+
+    @Override
+    public InputStream stream() throws IOException {
+        if (input == null) {
+            input = Files.newInputStream(spoolFile);
+        }
+        return input;
+    }
+
+    @Override
+    public void discard() throws IOException {
+        try {
+            if (input != null) {
+                input.close();
+            }
+        } finally {
+            Files.deleteIfExists(spoolFile);
+        }
+    }
+}
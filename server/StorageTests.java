@@ -0,0 +1,421 @@
+package server;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Tests of the files the server keeps its state in: the id journal, the index snapshot, the file index on top of
+ * them and the segment store. Each test writes its files in a scratch directory, reopens them the way the server
+ * does after a restart or a crash, and damages them to check that a torn or corrupted file is recognized.
+ * <p>
+ * The project has no build file, so the tests are a self-contained harness like {@link Benchmarks}:
+ * {@code java -cp <classes> server.StorageTests} runs them all and exits with status 1 if one fails, and
+ * {@code --only PREFIX} runs the tests whose name starts with the prefix. The scratch directory is deleted at
+ * the end.
+ */
+public class StorageTests {
+    private static final int ENTRIES = 5_000;
+
+    private String only = "";
+    private Path scratch;
+    private int passed;
+    private final List<String> failures = new ArrayList<>();
+
+    /**
+     * A test, given a directory of its own.
+     */
+    private interface Test {
+        void run(Path directory) throws Exception;
+    }
+
+    /**
+     * Runs a test if it is selected, recording whether it passed.
+     *
+     * @param name the name of the test
+     * @param test the test to run
+     */
+    private void run(String name, Test test) throws IOException {
+        if (!name.startsWith(only)) {
+            return;
+        }
+        Path directory = Files.createDirectories(scratch.resolve(name));
+        try {
+            test.run(directory);
+            passed++;
+            System.out.println("PASS " + name);
+        } catch (Exception | AssertionError e) {
+            failures.add(name);
+            System.out.println("FAIL " + name + ": " + e);
+            e.printStackTrace();
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    /**
+     * Journals a mix of saves, replacements and deletes, then replays the journal into an empty index.
+     */
+    private static void journalReplay(Path directory) throws IOException {
+        Map<String, Long> expected = new HashMap<>();
+        try (IdJournal journal = new IdJournal(directory, 0)) {
+            FileIndex index = new FileIndex();
+            index.attach(journal);
+            applyChanges(index, expected, new Random(1), ENTRIES);
+        }
+
+        FileIndex replayed = new FileIndex();
+        long records = IdJournal.replay(directory, 0, replayed);
+        check(records > 0, "no record replayed");
+        checkIndex(replayed, expected);
+    }
+
+    /**
+     * Cuts the last record of a journal in half, as a crash while it is written would, and flips a byte of a
+     * record in the middle of another generation: replay keeps the records before the damaged ones.
+     */
+    private static void journalDamage(Path directory) throws IOException {
+        try (IdJournal journal = new IdJournal(directory, 0)) {
+            FileIndex index = new FileIndex();
+            index.attach(journal);
+            for (int i = 0; i < 10; i++) {
+                index.put("a" + i, i + 1);
+            }
+            index.snapshot();
+            for (int i = 0; i < 10; i++) {
+                index.put("b" + i, i + 100);
+            }
+        }
+
+        Path first = directory.resolve("journal-0.log");
+        Path second = directory.resolve("journal-1.log");
+        try (RandomAccessFile file = new RandomAccessFile(first.toFile(), "rw")) {
+            file.setLength(file.length() - 3);
+        }
+        byte[] bytes = Files.readAllBytes(second);
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(second, bytes);
+
+        FileIndex replayed = new FileIndex();
+        IdJournal.replay(directory, 0, replayed);
+        check(replayed.contains("a8") && !replayed.contains("a9"), "torn record not dropped alone");
+        check(replayed.contains("b0") && !replayed.contains("b9"), "records after the damaged one replayed");
+
+        FileIndex fromSecond = new FileIndex();
+        IdJournal.replay(directory, 1, fromSecond);
+        check(!fromSecond.contains("a0") && fromSecond.contains("b0"), "older generation replayed");
+    }
+
+    /**
+     * Writes a snapshot, reopens it and looks up every entry by name and by id.
+     */
+    private static void snapshotReopen(Path directory) throws IOException {
+        Map<String, Long> entries = new HashMap<>();
+        for (int i = 0; i < ENTRIES; i++) {
+            entries.put("file-" + i + (i % 7 == 0 ? "-\u00e9t\u00e9" : ""), (long) i * 3 + 1);
+        }
+        Path file = directory.resolve("index-0.bin");
+        IndexSnapshot.write(file, null, entries, ENTRIES * 3 + 1, 0);
+
+        IndexSnapshot snapshot = IndexSnapshot.open(file);
+        check(snapshot.count() == ENTRIES, "count " + snapshot.count());
+        check(snapshot.nextId() == ENTRIES * 3 + 1, "next id " + snapshot.nextId());
+        for (Map.Entry<String, Long> entry : entries.entrySet()) {
+            check(snapshot.idOf(entry.getKey()) == entry.getValue(), "id of " + entry.getKey());
+            check(entry.getKey().equals(snapshot.nameOf(entry.getValue())), "name of " + entry.getValue());
+        }
+        check(snapshot.idOf("missing") == IndexSnapshot.NO_ID, "missing name found");
+        check(snapshot.nameOf(2) == null, "missing id found");
+    }
+
+    /**
+     * Damages a snapshot in its names, its tables, its region CRCs and its header, and truncates it.
+     */
+    private static void snapshotDamage(Path directory) throws IOException {
+        Map<String, Long> entries = new HashMap<>();
+        for (int i = 0; i < ENTRIES; i++) {
+            entries.put("file-" + i, (long) i + 1);
+        }
+        Path file = directory.resolve("index-0.bin");
+        IndexSnapshot.write(file, null, entries, ENTRIES + 1, 0);
+        byte[] original = Files.readAllBytes(file);
+        int regionTable = original.length - 4 * (int) Math.ceil((original.length - 48) / (4 + 65536.0));
+
+        check(damagedOnRead(file, original, regionTable - 10), "damaged name read");
+        check(damagedOnRead(file, original, 100), "damaged table read");
+        check(damagedOnOpen(file, original, original.length - 2), "damaged region CRC accepted");
+        check(damagedOnOpen(file, original, 9), "damaged header accepted");
+
+        Files.write(file, java.util.Arrays.copyOf(original, original.length - 1));
+        try {
+            IndexSnapshot.open(file);
+            check(false, "truncated snapshot accepted");
+        } catch (IOException expected) {
+            // the length no longer matches the header
+        }
+    }
+
+    private static boolean damagedOnRead(Path file, byte[] original, int position) throws IOException {
+        byte[] bytes = original.clone();
+        bytes[position] ^= 1;
+        Files.write(file, bytes);
+        IndexSnapshot snapshot = IndexSnapshot.open(file);
+        try {
+            snapshot.forEach((name, id) -> { });
+            return false;
+        } catch (UncheckedIOException e) {
+            return true;
+        }
+    }
+
+    private static boolean damagedOnOpen(Path file, byte[] original, int position) throws IOException {
+        byte[] bytes = original.clone();
+        bytes[position] ^= 1;
+        Files.write(file, bytes);
+        try {
+            IndexSnapshot.open(file);
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Saves snapshots of an index changing while they are written, rebases the index on each of them, then
+     * recovers the index from the last snapshot and the journal written since, as after a crash.
+     */
+    private static void snapshotRebase(Path directory) throws IOException {
+        Map<String, Long> expected = new HashMap<>();
+        Random random = new Random(2);
+        FileIndex index = new FileIndex();
+        long generation = 0;
+
+        try (IdJournal journal = new IdJournal(directory, 0)) {
+            index.attach(journal);
+            for (int round = 0; round < 4; round++) {
+                applyChanges(index, expected, random, ENTRIES);
+                FileIndex.Snapshot copy = index.snapshot();
+                // changes made while the snapshot is written
+                applyChanges(index, expected, random, ENTRIES / 10);
+
+                Path file = directory.resolve("index-" + copy.generation + ".bin");
+                IndexSnapshot.write(file, copy.base, copy.changes, copy.nextId, copy.generation);
+                index.rebase(IndexSnapshot.open(file), copy.changes);
+                journal.deleteBefore(copy.generation);
+                generation = copy.generation;
+                checkIndex(index, expected);
+            }
+            applyChanges(index, expected, random, ENTRIES / 10);
+        }
+
+        FileIndex recovered = new FileIndex();
+        IndexSnapshot snapshot = IndexSnapshot.open(directory.resolve("index-" + generation + ".bin"));
+        recovered.load(snapshot);
+        IdJournal.replay(directory, snapshot.generation(), recovered);
+        checkIndex(recovered, expected);
+        check(recovered.nextId() >= index.nextId(), "sequence moved back");
+    }
+
+    /**
+     * Checks that an id held by a file is refused to another name, in the changes and in the snapshot.
+     */
+    private static void indexCollision(Path directory) throws IOException {
+        FileIndex index = new FileIndex();
+        index.put("a", 5);
+        check(refused(index, "b", 5), "id of a change given to another name");
+
+        FileIndex.Snapshot copy = index.snapshot();
+        Path file = directory.resolve("index-0.bin");
+        IndexSnapshot.write(file, copy.base, copy.changes, copy.nextId, copy.generation);
+        FileIndex loaded = new FileIndex();
+        loaded.load(IndexSnapshot.open(file));
+        check(refused(loaded, "b", 5), "id of the snapshot given to another name");
+        loaded.remove("a");
+        loaded.put("b", 5);
+        check("b".equals(loaded.nameOf(5)), "id of a deleted file not reusable");
+    }
+
+    private static boolean refused(FileIndex index, String name, long id) {
+        try {
+            index.put(name, id);
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Stores, replaces and deletes files in small segments, compacts them, then reopens the store and checks
+     * that the deleted files stay deleted and the others keep their last content.
+     */
+    private static void segmentsReopen(Path directory) throws IOException {
+        Map<String, String> expected = new HashMap<>();
+        WritePipeline writes = new WritePipeline(directory, 64);
+        SegmentStore store = new SegmentStore(directory, 4096, writes);
+        try {
+            for (int i = 0; i < 200; i++) {
+                store.put("f" + i, ("first " + i).getBytes(StandardCharsets.UTF_8)).join();
+                expected.put("f" + i, "first " + i);
+            }
+            for (int i = 0; i < 200; i += 2) {
+                store.delete("f" + i);
+                expected.remove("f" + i);
+            }
+            for (int i = 0; i < 200; i += 4) {
+                store.put("f" + i, ("second " + i).getBytes(StandardCharsets.UTF_8)).join();
+                expected.put("f" + i, "second " + i);
+            }
+            store.compact();
+        } finally {
+            store.close();
+            writes.close();
+        }
+
+        writes = new WritePipeline(directory, 64);
+        store = new SegmentStore(directory, 4096, writes);
+        try {
+            checkSegments(store, expected);
+        } finally {
+            store.close();
+            writes.close();
+        }
+    }
+
+    /**
+     * Cuts the last record of the last segment in half: reopening drops that file alone.
+     */
+    private static void segmentsTornRecord(Path directory) throws IOException {
+        Map<String, String> expected = new HashMap<>();
+        WritePipeline writes = new WritePipeline(directory, 64);
+        SegmentStore store = new SegmentStore(directory, 1 << 20, writes);
+        try {
+            for (int i = 0; i < 20; i++) {
+                store.put("f" + i, ("content " + i).getBytes(StandardCharsets.UTF_8)).join();
+                expected.put("f" + i, "content " + i);
+            }
+        } finally {
+            store.close();
+            writes.close();
+        }
+
+        Path last;
+        try (Stream<Path> files = Files.list(directory)) {
+            last = files.filter(file -> file.getFileName().toString().endsWith(".seg"))
+                    .max(Comparator.comparingLong(StorageTests::segmentNumber)).orElseThrow();
+        }
+        try (RandomAccessFile file = new RandomAccessFile(last.toFile(), "rw")) {
+            file.setLength(file.length() - 5);
+        }
+        expected.remove("f19");
+
+        writes = new WritePipeline(directory, 64);
+        store = new SegmentStore(directory, 1 << 20, writes);
+        try {
+            checkSegments(store, expected);
+        } finally {
+            store.close();
+            writes.close();
+        }
+    }
+
+    private static long segmentNumber(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring("segment-".length(), name.length() - ".seg".length()));
+    }
+
+    /**
+     * Applies random saves, replacements and deletes to an index and to the map of the entries it should hold.
+     */
+    private static void applyChanges(FileIndex index, Map<String, Long> expected, Random random, int changes)
+            throws IOException {
+        for (int i = 0; i < changes; i++) {
+            String name = "n" + random.nextInt(ENTRIES);
+            if (random.nextInt(3) > 0) {
+                long id = index.newId();
+                index.put(name, id);
+                expected.put(name, id);
+            } else {
+                check(index.remove(name) == (expected.remove(name) != null), "remove of " + name);
+            }
+        }
+    }
+
+    private static void checkIndex(FileIndex index, Map<String, Long> expected) {
+        for (Map.Entry<String, Long> entry : expected.entrySet()) {
+            check(index.contains(entry.getKey()), "lost " + entry.getKey());
+            check(entry.getKey().equals(index.nameOf(entry.getValue())), "wrong name for id " + entry.getValue());
+        }
+        for (int i = 0; i < ENTRIES; i++) {
+            String name = "n" + i;
+            check(index.contains(name) == expected.containsKey(name), "deleted " + name + " found");
+        }
+    }
+
+    private static void checkSegments(SegmentStore store, Map<String, String> expected) throws IOException {
+        check(store.names().size() == expected.size(), store.names().size() + " files instead of "
+                + expected.size());
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            ByteBuffer content = store.read(entry.getKey());
+            check(content != null, "lost " + entry.getKey());
+            check(StandardCharsets.UTF_8.decode(content).toString().equals(entry.getValue()),
+                    "wrong content for " + entry.getKey());
+        }
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toArray(Path[]::new)) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * Runs the tests.
+     *
+     * @param args {@code --only PREFIX} to run the tests whose name starts with the prefix
+     * @throws IOException if the scratch directory cannot be created
+     */
+    public static void main(String[] args) throws IOException {
+        StorageTests tests = new StorageTests();
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("--only")) {
+                tests.only = args[++i];
+            }
+        }
+
+        tests.scratch = Files.createTempDirectory("fileserver-tests");
+        try {
+            tests.run("journal.replay", StorageTests::journalReplay);
+            tests.run("journal.damage", StorageTests::journalDamage);
+            tests.run("snapshot.reopen", StorageTests::snapshotReopen);
+            tests.run("snapshot.damage", StorageTests::snapshotDamage);
+            tests.run("snapshot.rebase", StorageTests::snapshotRebase);
+            tests.run("index.collision", StorageTests::indexCollision);
+            tests.run("segments.reopen", StorageTests::segmentsReopen);
+            tests.run("segments.tornRecord", StorageTests::segmentsTornRecord);
+        } finally {
+            deleteRecursively(tests.scratch);
+        }
+
+        System.out.println(tests.passed + " passed, " + tests.failures.size() + " failed " + tests.failures);
+        if (!tests.failures.isEmpty()) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/**
+ * A request body read straight from the stream it is received on.
+ * The body is copied to disk through the buffer of its connection as the bytes arrive,
+ * so memory use does not depend on the size of the body.
+ */
+class StreamBody implements RequestBody {
+    private final InputStream input;
+    private final long length;
+    private final byte[] buffer;
+    private long remaining;
+
+    /**
+     * @param input the stream the body is read from, positioned at the start of the body
+     * @param length the number of bytes of the body
+     * @param buffer the buffer used to copy the body, reused across the requests of a connection
+     */
+    StreamBody(InputStream input, long length, byte[] buffer) {
+        this.input = input;
+        this.length = length;
+        this.buffer = buffer;
+        this.remaining = length;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public void saveTo(Path target) throws IOException {
+
+        OutputStream output = create(target);
+        try (output) {
+            while (remaining > 0) {
+                int read = read();
+                output.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            discard();
+            Files.deleteIfExists(target);
+            throw e;
+        }
+    }
+
+    @Override
+    public byte[] saveDigested(Path target) throws IOException {
+        MessageDigest digest = ContentStore.newDigest();
+
+        OutputStream output = create(target);
+        try (output) {
+            while (remaining > 0) {
+                int read = read();
+                digest.update(buffer, 0, read);
+                output.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            discard();
+            Files.deleteIfExists(target);
+            throw e;
+        }
+        return digest.digest();
+    }
+
+    @Override
+    public byte[] readAll() throws IOException {
+        byte[] content = new byte[Math.toIntExact(length)];
+        try {
+            int offset = 0;
+            while (remaining > 0) {
+                int read = read();
+                System.arraycopy(buffer, 0, content, offset, read);
+                offset += read;
+            }
+        } catch (IOException e) {
+            discard();
+            throw e;
+        }
+        return content;
+    }
+
+    @Override
+    public void writeTo(FileChannel target, long position) throws IOException {
+        try {
+            while (remaining > 0) {
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read());
+                while (chunk.hasRemaining()) {
+                    position += target.write(chunk, position);
+                }
+            }
+        } catch (IOException e) {
+            discard();
+            throw e;
+        }
+    }
+
+    @Override
+    public InputStream stream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int count) throws IOException {
+                if (remaining == 0) {
+                    return -1;
+                }
+                int read = input.read(bytes, offset, (int) Math.min(count, remaining));
+                if (read < 0) {
+                    throw new EOFException("Request body ended " + remaining + " bytes early");
+                }
+                remaining -= read;
+                return read;
+            }
+        };
+    }
+
+    @Override
+    public void discard() throws IOException {
+        while (remaining > 0) {
+            read();
+        }
+    }
+
+    /**
+     * Creates the file a body is saved to, discarding the body if it cannot be created. A file that already
+     * exists belongs to another request, so it is not deleted like a file this body failed to fill.
+     */
+    private OutputStream create(Path target) throws IOException {
+        try {
+            return Files.newOutputStream(target, StandardOpenOption.CREATE_NEW);
+        } catch (IOException e) {
+            discard();
+            throw e;
+        }
+    }
+
+    private int read() throws IOException {
+        int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (read < 0) {
+            throw new EOFException("Request body ended " + remaining + " bytes early");
+        }
+        remaining -= read;
+        return read;
+    }
+}
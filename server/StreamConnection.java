@@ -0,0 +1,119 @@
+package server;
+
+import protocol.RequestHeader;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A client connection served by a thread of the blocking transport, along with the buffers reused by its requests.
+ */
+class StreamConnection implements Closeable {
+    final Socket socket;
+    final BufferedInputStream input;
+    final DataInputStream frames;
+    final DataOutputStream output;
+    final RequestHeader header = new RequestHeader();
+    final byte[] buffer = new byte[Server.TRANSFER_BUFFER_SIZE];
+    private final SocketChannel channel;
+
+    /**
+     * @param socket the accepted client socket
+     * @param zeroCopy true to send file contents straight from the page cache when the socket has a channel
+     * @throws IOException if the streams of the socket cannot be opened
+     */
+    StreamConnection(Socket socket, boolean zeroCopy) throws IOException {
+        this.socket = socket;
+        // responses are flushed whole, so Nagle's algorithm would only hold back a file sent after its header
+        socket.setTcpNoDelay(true);
+        this.input = new BufferedInputStream(socket.getInputStream());
+        this.frames = new DataInputStream(input);
+        this.output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.channel = zeroCopy ? socket.getChannel() : null;
+    }
+
+    /**
+     * Peeks at the next byte of the connection without consuming it.
+     *
+     * @return the next byte, or -1 if the client closed the connection
+     * @throws IOException when an error occurs while reading
+     */
+    int peek() throws IOException {
+        input.mark(1);
+        int nextByte = input.read();
+        input.reset();
+        return nextByte;
+    }
+
+    /**
+     * Sends the content of a file after the response header already written to the output.
+     * With zero copy the header is flushed and the file is handed to the kernel with
+     * {@link FileChannel#transferTo}, so that its bytes never go through the Java heap.
+     * Otherwise the file is copied through the buffer of the connection. The file is read with positional reads,
+     * so that a range of it is sent without seeking.
+     *
+     * @param file the file to send
+     * @param offset the position of the first byte to send
+     * @param size the number of bytes to send from the offset
+     * @throws IOException when an error occurs while reading the file or sending it
+     */
+    void sendFile(FileChannel file, long offset, long size) throws IOException {
+
+        long end = offset + size;
+        if (channel != null) {
+            output.flush();
+            long position = offset;
+            while (position < end) {
+                long sent = file.transferTo(position, end - position, channel);
+                if (sent == 0 && position >= file.size()) {
+                    throw new EOFException("File shorter than announced");
+                }
+                position += sent;
+            }
+            return;
+        }
+
+        ByteBuffer chunk = ByteBuffer.wrap(buffer);
+        long position = offset;
+        while (position < end) {
+            chunk.clear().limit((int) Math.min(buffer.length, end - position));
+            int read = file.read(chunk, position);
+            if (read < 0) {
+                throw new EOFException("File shorter than announced");
+            }
+            output.write(buffer, 0, read);
+            position += read;
+        }
+    }
+
+    /**
+     * Sends a file content held in memory after the response header already written to the output.
+     *
+     * @param content the content to send, from its position to its limit
+     * @throws IOException when an error occurs while sending the content
+     */
+    void sendContent(ByteBuffer content) throws IOException {
+
+        if (channel != null) {
+            output.flush();
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+            return;
+        }
+
+        while (content.hasRemaining()) {
+            int length = Math.min(buffer.length, content.remaining());
+            content.get(buffer, 0, length);
+            output.write(buffer, 0, length);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
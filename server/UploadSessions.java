@@ -0,0 +1,291 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The resumable uploads in progress, so that a client whose connection dropped in the middle of a large
+ * upload can continue it instead of starting over.
+ * <p>
+ * A resumable upload is sent as a sequence of parts, each appended to a session file named after the file
+ * name and the length announced for the whole file, and synced before the part is acknowledged. The length of
+ * the session file is therefore the number of bytes the server committed, which a client asks for before
+ * sending the next part. Once the last part is received the session file is moved into the data directory;
+ * until then the upload has no id and is invisible to the other clients.
+ * <p>
+ * A multipart upload is sent as parts that may arrive in any order, on several connections at once. Each part
+ * is written at its offset in the session file and synced, and the ranges received are tracked in memory until a
+ * commit moves the session file into the data directory, once the parts cover the whole file. The ranges
+ * received are not kept across restarts, a multipart upload interrupted by a restart is sent again.
+ * <p>
+ * Sessions left without a new part for longer than their expiry are deleted by a background sweep.
+ */
+class UploadSessions {
+    private static final String SUFFIX = ".session";
+    private static final String MULTIPART_SUFFIX = ".multipart";
+    private static final int LOCK_STRIPES = 64;
+    private static final int SWEEP_INTERVAL_MINUTES = 60;
+
+    private final Path directory;
+    private final long expiryHours;
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+    private final ScheduledExecutorService sweeper;
+    private final Map<Path, TreeMap<Long, Long>> received = new ConcurrentHashMap<>();
+
+    /**
+     * @param directory the directory holding the session files, created if needed
+     * @param expiryHours how long a session is kept without receiving a part
+     * @throws IOException if the directory cannot be created
+     */
+    UploadSessions(Path directory, long expiryHours) throws IOException {
+        this.directory = directory;
+        this.expiryHours = expiryHours;
+        Files.createDirectories(directory);
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+
+        sweeper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "upload-session-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, 0, SWEEP_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * @param name the name of the uploaded file
+     * @param length the length of the whole file
+     * @return the number of bytes of the upload committed so far, 0 if it has not started
+     * @throws IOException if the session file cannot be read
+     */
+    long committed(String name, long length) throws IOException {
+        Path session = sessionFile(name, length);
+        ReentrantLock lock = lockFor(session);
+        lock.lock();
+        try {
+            return Files.exists(session) ? Files.size(session) : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends a part of an upload to its session and syncs it. A part starting at offset 0 starts the session
+     * over. A part that does not start where the committed bytes end is discarded, so that a client that
+     * lost track of the session asks again where to continue from.
+     *
+     * @param name the name of the uploaded file
+     * @param length the length of the whole file
+     * @param offset the offset of the part in the file
+     * @param part the body carrying the part, consumed whatever happens
+     * @return the number of bytes of the upload committed once the part is appended
+     * @throws IOException if the part cannot be received or written, the session then ends where it was
+     */
+    long append(String name, long length, long offset, RequestBody part) throws IOException {
+        Path session = sessionFile(name, length);
+        ReentrantLock lock = lockFor(session);
+        lock.lock();
+        try {
+            long committed = Files.exists(session) ? Files.size(session) : 0;
+            if (offset != 0 && offset != committed) {
+                part.discard();
+                return committed;
+            }
+
+            try (FileChannel file = FileChannel.open(session, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                try {
+                    file.truncate(offset);
+                    part.writeTo(file, offset);
+                    file.force(false);
+                } catch (IOException e) {
+                    file.truncate(offset);
+                    throw e;
+                }
+                return file.size();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the session of a completed upload to the place of the stored file.
+     *
+     * @param name the name of the uploaded file
+     * @param length the length of the whole file
+     * @param target the path of the stored file
+     * @throws java.nio.file.FileAlreadyExistsException if a file was stored with this name meanwhile
+     * @throws IOException if the session file cannot be moved
+     */
+    void complete(String name, long length, Path target) throws IOException {
+        Path session = sessionFile(name, length);
+        ReentrantLock lock = lockFor(session);
+        lock.lock();
+        try {
+            Files.move(session, target);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes a part of a multipart upload at its offset in the session file and syncs it. The part is received
+     * without holding the lock of the session, so that the parts sent on several connections are written at
+     * the same time.
+     *
+     * @param name the name of the uploaded file
+     * @param length the length of the whole file
+     * @param offset the offset of the part in the file
+     * @param partLength the length of the part
+     * @param part the body carrying the part, consumed whatever happens
+     * @return the number of bytes of the upload received so far
+     * @throws IOException if the part cannot be received or written
+     */
+    long write(String name, long length, long offset, long partLength, RequestBody part) throws IOException {
+        Path session = sessionFile(name, length, MULTIPART_SUFFIX);
+        try (FileChannel file = FileChannel.open(session, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            part.writeTo(file, offset);
+            file.force(false);
+        }
+
+        ReentrantLock lock = lockFor(session);
+        lock.lock();
+        try {
+            TreeMap<Long, Long> ranges = received.computeIfAbsent(session, file -> new TreeMap<>());
+            addRange(ranges, offset, offset + partLength);
+            return receivedBytes(ranges);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the session of a multipart upload to the place of the stored file, if its parts cover the whole file.
+     *
+     * @param name the name of the uploaded file
+     * @param length the length of the whole file
+     * @param target the path of the stored file
+     * @return the number of bytes of the upload received, the length of the file if the upload was committed
+     * @throws java.nio.file.FileAlreadyExistsException if a file was stored with this name meanwhile
+     * @throws IOException if the session file cannot be moved
+     */
+    long commit(String name, long length, Path target) throws IOException {
+        Path session = sessionFile(name, length, MULTIPART_SUFFIX);
+        ReentrantLock lock = lockFor(session);
+        lock.lock();
+        try {
+            TreeMap<Long, Long> ranges = received.get(session);
+            long bytes = ranges == null ? 0 : receivedBytes(ranges);
+            if (bytes == length && Files.exists(session)) {
+                Files.move(session, target);
+                received.remove(session);
+            }
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a range to the ranges received, merging the ranges it overlaps or touches.
+     *
+     * @param ranges the ranges received, the end of each range by its start
+     */
+    private static void addRange(TreeMap<Long, Long> ranges, long start, long end) {
+        Map.Entry<Long, Long> before = ranges.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        Map.Entry<Long, Long> after;
+        while ((after = ranges.ceilingEntry(start)) != null && after.getKey() <= end) {
+            end = Math.max(end, after.getValue());
+            ranges.remove(after.getKey());
+        }
+        ranges.put(start, end);
+    }
+
+    private static long receivedBytes(TreeMap<Long, Long> ranges) {
+        long bytes = 0;
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            bytes += range.getValue() - range.getKey();
+        }
+        return bytes;
+    }
+
+    /**
+     * Deletes the sessions that did not receive a part for longer than the expiry.
+     */
+    void sweep() {
+        FileTime expired = FileTime.from(Instant.now().minus(expiryHours, ChronoUnit.HOURS));
+        long deleted = 0;
+
+        try (DirectoryStream<Path> sessions =
+                     Files.newDirectoryStream(directory, "*{" + SUFFIX + "," + MULTIPART_SUFFIX + "}")) {
+            for (Path session : sessions) {
+                ReentrantLock lock = lockFor(session);
+                lock.lock();
+                try {
+                    if (Files.getLastModifiedTime(session).compareTo(expired) < 0 && Files.deleteIfExists(session)) {
+                        received.remove(session);
+                        deleted++;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (deleted > 0) {
+            System.out.println("Deleted " + deleted + " expired upload sessions.");
+        }
+    }
+
+    /**
+     * Stops the background sweep. Sessions in progress are kept for the next run of the server.
+     */
+    void close() {
+        sweeper.shutdown();
+        try {
+            sweeper.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Names the session file after a digest of the file name, so that names with directories or characters the
+     * file system does not accept still get a session, and after the length of the file, so that a different
+     * file uploaded with the same name does not continue the session of another one.
+     */
+    private Path sessionFile(String name, long length) {
+        return sessionFile(name, length, SUFFIX);
+    }
+
+    private Path sessionFile(String name, long length, String suffix) {
+        byte[] digest = ContentStore.newDigest().digest(name.getBytes(StandardCharsets.UTF_8));
+        return directory.resolve(HexFormat.of().formatHex(digest) + "-" + length + suffix);
+    }
+
+    private ReentrantLock lockFor(Path session) {
+        return locks[Math.floorMod(session.getFileName().hashCode(), LOCK_STRIPES)];
+    }
+}
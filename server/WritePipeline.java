@@ -0,0 +1,205 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The pipeline making saved files durable, shared by all the connections.
+ * <p>
+ * Saved files are queued and a single writer thread syncs them in batches: it takes every file queued since
+ * its previous batch and forces the files one at a time, then syncs the data directory once for the whole batch.
+ * Only the directory sync is shared by the uploads of a batch, each file still costs its own force, but a file
+ * queued several times in a batch, such as a segment receiving many small files, is forced once. The queue is
+ * bounded, and a connection submitting a file while it is full waits for room, which slows down clients that
+ * upload faster than the disk can keep up.
+ * <p>
+ * Each submitted file gets a future completed once it is durable, or completed with the I/O error that
+ * prevented it, so the caller decides whether to answer the client before or after the write is durable.
+ * Files still submitted while the pipeline closes get a future completed with an error rather than one that
+ * is never completed.
+ */
+class WritePipeline implements Closeable {
+    private static final int MAX_BATCH = 256;
+    private static final Write END = new Write(null);
+
+    private final Path directory;
+    private final BlockingQueue<Write> queue;
+    private final Thread writer;
+    private volatile boolean closed;
+    /** Set by the writer thread once it synced its last batch, before it fails the writes queued after it. */
+    private volatile boolean stopped;
+    private boolean directorySyncSupported = true;
+
+    /**
+     * A file waiting to be synced.
+     */
+    private static final class Write {
+        final Path file;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Write(Path file) {
+            this.file = file;
+        }
+    }
+
+    /**
+     * @param directory the directory holding the saved files
+     * @param capacity the number of files that may wait to be synced
+     */
+    WritePipeline(Path directory, int capacity) {
+        this.directory = directory;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.writer = new Thread(this::run, "write-pipeline");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a saved file to be synced, waiting for room in the queue if it is full.
+     *
+     * @param file the saved file
+     * @return the future completed once the file and its directory entry are on disk
+     * @throws IOException if the pipeline is closed or the thread is interrupted while waiting
+     */
+    CompletableFuture<Void> submit(Path file) throws IOException {
+        if (closed) {
+            throw new IOException("The write pipeline is closed");
+        }
+        Write write = new Write(file);
+        try {
+            queue.put(write);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the write pipeline", e);
+        }
+        if (stopped && queue.remove(write)) {
+            // queued after the writer thread failed the leftover writes
+            write.done.completeExceptionally(new IOException("The write pipeline is closed"));
+        }
+        return write.done;
+    }
+
+    /**
+     * @return the number of saved files waiting in the queue to be synced
+     */
+    int queued() {
+        return queue.size();
+    }
+
+    /**
+     * Syncs the files already queued and stops the writer thread.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            queue.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The loop of the writer thread.
+     */
+    private void run() {
+        List<Write> batch = new ArrayList<>();
+
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            boolean end = batch.remove(END);
+            sync(batch);
+            batch.clear();
+            if (end) {
+                stopped = true;
+                failLeftovers();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Syncs the entries of a directory, so that the files created, renamed or deleted in it survive a crash.
+     * Directories cannot be opened as files on some platforms, where their entries are synced with the files.
+     *
+     * @param directory the directory to sync
+     * @return false if the directory cannot be opened, on platforms that do not sync directories
+     * @throws IOException if the directory was opened but could not be synced
+     */
+    static boolean syncDirectory(Path directory) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return false;
+        }
+        try (channel) {
+            channel.force(true);
+        }
+        return true;
+    }
+
+    /**
+     * Fails the writes submitted concurrently with {@link #close()} and queued after its end marker.
+     */
+    private void failLeftovers() {
+        List<Write> leftovers = new ArrayList<>();
+        queue.drainTo(leftovers);
+        IOException closed = new IOException("The write pipeline is closed");
+        for (Write write : leftovers) {
+            write.done.completeExceptionally(closed);
+        }
+    }
+
+    private void sync(List<Write> batch) {
+        Map<Path, List<Write>> writesByFile = new LinkedHashMap<>();
+        for (Write write : batch) {
+            writesByFile.computeIfAbsent(write.file, file -> new ArrayList<>()).add(write);
+        }
+        List<Write> written = new ArrayList<>(batch.size());
+
+        for (Map.Entry<Path, List<Write>> writes : writesByFile.entrySet()) {
+            try (FileChannel file = FileChannel.open(writes.getKey(), StandardOpenOption.READ)) {
+                file.force(true);
+                written.addAll(writes.getValue());
+            } catch (IOException e) {
+                e.printStackTrace();
+                for (Write write : writes.getValue()) {
+                    write.done.completeExceptionally(e);
+                }
+            }
+        }
+
+        if (directorySyncSupported && !written.isEmpty()) {
+            try {
+                directorySyncSupported = syncDirectory(directory);
+            } catch (IOException e) {
+                e.printStackTrace();
+                for (Write write : written) {
+                    write.done.completeExceptionally(e);
+                }
+                return;
+            }
+        }
+
+        for (Write write : written) {
+            write.done.complete(null);
+        }
+    }
+}